@@ -2,7 +2,9 @@ package edu.gatech.chai.VRDR.cli;
 
 import edu.gatech.chai.VRDR.context.VRDRFhirContext;
 import edu.gatech.chai.VRDR.messaging.BaseMessage;
+import edu.gatech.chai.VRDR.messaging.util.BundleTranscoder;
 import edu.gatech.chai.VRDR.messaging.util.MessagingExample;
+import ca.uhn.fhir.rest.api.EncodingEnum;
 import org.hl7.fhir.r4.model.Bundle;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
@@ -11,14 +13,24 @@ import picocli.CommandLine.Option;
 import picocli.CommandLine.Parameters;
 import picocli.CommandLine.Spec;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Command(name = "vrdr-cli", version = "VRDR CLI v1.4.0-STU2", mixinStandardHelpOptions = true,
         description = "Generate example records for testing and pasting in Canary")
 public class Console {
-    private VRDRFhirContext ctx = new VRDRFhirContext();
+    private VRDRFhirContext ctx = VRDRFhirContext.shared();
 
     @Spec CommandSpec spec;
 
@@ -50,21 +62,115 @@ public class Console {
                 throw new CommandLine.ParameterException(spec.commandLine(), "Invalid message type: " + messageType);
         }
 
-        if (outputXml) {
-            String bundleStr = ctx
-                    .getCtx()
-                    .newXmlParser()
-                    .setPrettyPrint(true)
-                    .encodeResourceToString(message);
-            writeToFile(bundleStr, outputFile);
+        writeToFile(message, outputXml ? EncodingEnum.XML : EncodingEnum.JSON, outputFile);
+    }
+
+    @Command(name = "convert",
+        description = "Converts a message or document between JSON and XML, into XML with -x and into JSON otherwise")
+    public void convert(
+        @Parameters(arity = "1..1", paramLabel = "<input-file>", description = "Path to the message, gzipped when it ends in .gz")
+        String inputFile,
+        @Parameters(arity = "1..1", paramLabel = "<output-file>", description = "Path to the output file, gzipped when it ends in .gz")
+        String outputFile) {
+
+        BundleTranscoder transcoder = new BundleTranscoder(ctx);
+        transcoder.setPrettyPrint(true);
+        try {
+            transcoder.transcode(Paths.get(inputFile), outputXml ? EncodingEnum.XML : EncodingEnum.JSON, Paths.get(outputFile));
+        }
+        catch (Exception e) {
+            System.out.println("Error converting file: " + e);
+        }
+    }
+
+    @Command(name = "serve",
+        description = "Runs an HTTP service for parsing, converting, acknowledging and splitting messages")
+    public void serve(
+        @Option(names = { "--host" }, defaultValue = "127.0.0.1", description = "Address to listen on, the service has no authentication so only bind other interfaces behind one that has (default: ${DEFAULT-VALUE})")
+        String host,
+        @Option(names = { "-p", "--port" }, defaultValue = "8080", description = "Port to listen on (default: ${DEFAULT-VALUE})")
+        int port,
+        @Option(names = { "-t", "--threads" }, description = "Worker threads (default: number of processors)")
+        Integer threads,
+        @Option(names = { "-q", "--queue" }, defaultValue = "64", description = "Requests that may wait for a worker before new ones are rejected (default: ${DEFAULT-VALUE})")
+        int queueCapacity,
+        @Option(names = { "--max-body" }, defaultValue = "16777216", description = "Largest request body in bytes, larger ones are answered with 413 (default: ${DEFAULT-VALUE})")
+        long maxBodyBytes) throws IOException, InterruptedException {
+
+        long start = System.nanoTime();
+        ctx.prescanDefinitions();
+        BaseMessage.parseJson(BaseMessage.class, ctx,
+                ctx.getJsonParser(false).encodeResourceToString(new MessagingExample().createDeathRecordSubmissionMessage()));
+        MessageService service = new MessageService(ctx, new InetSocketAddress(host, port),
+                threads == null ? Runtime.getRuntime().availableProcessors() : threads, queueCapacity);
+        service.setMaxBodyBytes(maxBodyBytes);
+        service.start();
+        System.out.println(String.format("Listening on %s:%d, warmed up in %d ms", host, service.getPort(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            service.stop(1);
+            stopped.countDown();
+        }));
+        stopped.await();
+    }
+
+    @Command(name = "cds-train", hidden = true,
+        description = "Exercises the create and parse code paths once, used to train the class data sharing archive")
+    public void trainClassDataSharing() throws IOException {
+        Path dir = Files.createTempDirectory("vrdr-cds-train");
+        Throwable failure = null;
+        try {
+            for (MessageTypeEnum messageType : MessageTypeEnum.values()) {
+                for (boolean xml : new boolean[] { false, true }) {
+                    outputXml = xml;
+                    Path file = dir.resolve(messageType.name + (xml ? ".xml" : ".json"));
+                    createSubmission(messageType, file.toString());
+                    String content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+                    Bundle parsed = xml ? BaseMessage.parseXML(Bundle.class, ctx, content)
+                            : BaseMessage.parseJson(Bundle.class, ctx, content);
+                    ctx.getJsonParser(false).encodeResourceToString(parsed);
+                    Files.delete(file);
+                }
+            }
+        } catch (Throwable e) {
+            failure = e;
+            throw e;
+        } finally {
+            outputXml = false;
+            try {
+                deleteRecursively(dir);
+            } catch (IOException e) {
+                // a failed clean up must not hide why training failed
+                if (failure == null) {
+                    throw e;
+                }
+                failure.addSuppressed(e);
+            }
         }
-        else {
-            String bundleStr = ctx
-                    .getCtx()
-                    .newJsonParser()
-                    .setPrettyPrint(true)
-                    .encodeResourceToString(message);
-            writeToFile(bundleStr, outputFile);
+    }
+
+    // deletes what it can and throws the first failure afterwards
+    private static void deleteRecursively(Path dir) throws IOException {
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(dir)) {
+            paths = walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+        }
+        IOException failure = null;
+        for (Path path : paths) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
         }
     }
 
@@ -78,11 +184,9 @@ public class Console {
         }
     }
 
-    private void writeToFile(String str, String outputFile) {
-        try {
-            Path path = Paths.get(outputFile);
-            byte[] strToBytes = str.getBytes();
-            Files.write(path, strToBytes);
+    private void writeToFile(Bundle message, EncodingEnum encoding, String outputFile) {
+        try (Writer writer = Files.newBufferedWriter(Paths.get(outputFile), StandardCharsets.UTF_8)) {
+            ctx.getParser(encoding, true, true).encodeResourceToWriter(message, writer);
         }
         catch (Exception e) {
             System.out.println("Error writing to file: " + e);
@@ -0,0 +1,388 @@
+package edu.gatech.chai.VRDR.cli;
+
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import edu.gatech.chai.VRDR.context.VRDRFhirContext;
+import edu.gatech.chai.VRDR.messaging.AcknowledgementMessage;
+import edu.gatech.chai.VRDR.messaging.BaseMessage;
+import edu.gatech.chai.VRDR.messaging.util.BundleOfBundlesReader;
+import edu.gatech.chai.VRDR.messaging.util.BundleTranscoder;
+import edu.gatech.chai.VRDR.messaging.util.Gzip;
+import edu.gatech.chai.VRDR.messaging.util.LimitedInputStream;
+import edu.gatech.chai.VRDR.messaging.util.MessageParseException;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Small HTTP front end over the messaging API that keeps one warmed {@link VRDRFhirContext} for the life of the
+ * process, so callers pay for the FHIR definitions once instead of on every CLI invocation.
+ *
+ * <p>All endpoints take the message in the request body, as JSON or XML (detected from the first character):
+ * <ul>
+ * <li>{@code POST /parse} returns a JSON summary of the message type and its identifiers</li>
+ * <li>{@code POST /convert?to=json|xml} re-encodes the bundle, by default into the other format, streaming it from one
+ * format into the other when it can</li>
+ * <li>{@code POST /ack?format=json|xml} returns an acknowledgement of the message</li>
+ * <li>{@code POST /split} splits a JSON bundle of bundles into newline delimited JSON messages, reading one entry at
+ * a time</li>
+ * <li>{@code GET /stats} returns request counts and latencies per endpoint</li>
+ * </ul>
+ *
+ * <p>Requests run on a fixed pool of worker threads with a bounded queue, when the queue is full the request is
+ * answered with 503 right away. A request body over {@link #setMaxBodyBytes(long) max body bytes} is answered with
+ * 413. Every response carries a {@code Server-Timing} header with the time spent on it.
+ *
+ * <p>The service has no authentication and the messages carry death records, so unless given another address it only
+ * listens on the loopback interface.
+ */
+public class MessageService {
+    private static final String FHIR_JSON = "application/fhir+json; charset=utf-8";
+    private static final String FHIR_XML = "application/fhir+xml; charset=utf-8";
+    private static final String FHIR_NDJSON = "application/fhir+ndjson; charset=utf-8";
+    private static final String JSON = "application/json; charset=utf-8";
+    private static final String TEXT = "text/plain; charset=utf-8";
+    public static final long DEFAULT_MAX_BODY_BYTES = 16 * 1024 * 1024;
+    // enough for the whitespace a pretty printer leaves before the root
+    private static final int ENCODING_LOOKAHEAD = 4096;
+
+    private final VRDRFhirContext ctx;
+    private final BundleTranscoder transcoder;
+    private final HttpServer server;
+    private final ThreadPoolExecutor workers;
+    private final Map<String, EndpointStats> stats = new LinkedHashMap<>();
+    private final Gson gson = new Gson();
+    private volatile long maxBodyBytes = DEFAULT_MAX_BODY_BYTES;
+
+    public MessageService(VRDRFhirContext ctx, InetSocketAddress address, int threads, int queueCapacity)
+            throws IOException {
+        if (threads < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("The worker pool needs at least one thread and one queue slot");
+        }
+        this.ctx = ctx;
+        this.transcoder = new BundleTranscoder(ctx);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                    Thread thread = new Thread(runnable, "vrdr-service-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.server = HttpServer.create(address, 0);
+        // the server's own dispatcher thread only hands exchanges to the workers, see dispatch()
+        this.server.setExecutor(null);
+        register("/parse", "POST", withBody(this::parse));
+        register("/convert", "POST", withBody(this::convert));
+        register("/ack", "POST", withBody(this::acknowledge));
+        register("/split", "POST", this::split);
+        register("/stats", "GET", withBody(this::stats));
+    }
+
+    // listens on the loopback interface only
+    public MessageService(VRDRFhirContext ctx, int port, int threads, int queueCapacity) throws IOException {
+        this(ctx, new InetSocketAddress(InetAddress.getLoopbackAddress(), port), threads, queueCapacity);
+    }
+
+    public void setMaxBodyBytes(long maxBodyBytes) {
+        if (maxBodyBytes < 0) {
+            throw new IllegalArgumentException("The maximum body size must not be negative");
+        }
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        workers.shutdown();
+    }
+
+    // reads the request body as it goes, limited to the maximum body size
+    private interface Endpoint {
+        Response handle(HttpExchange exchange, InputStream body) throws Exception;
+    }
+
+    // takes the whole request body as a String
+    private interface StringEndpoint {
+        Response handle(HttpExchange exchange, String body) throws Exception;
+    }
+
+    private static Endpoint withBody(StringEndpoint endpoint) {
+        return (exchange, body) -> endpoint.handle(exchange, readBody(body));
+    }
+
+    private static class Response {
+        final int status;
+        final String contentType;
+        final String body;
+
+        Response(int status, String contentType, String body) {
+            this.status = status;
+            this.contentType = contentType;
+            this.body = body;
+        }
+    }
+
+    private static class EndpointStats {
+        final LongAdder count = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+    }
+
+    private void register(String path, String method, Endpoint endpoint) {
+        EndpointStats endpointStats = new EndpointStats();
+        stats.put(path, endpointStats);
+        server.createContext(path, exchange -> dispatch(exchange, method, endpoint, endpointStats));
+    }
+
+    private void dispatch(HttpExchange exchange, String method, Endpoint endpoint, EndpointStats endpointStats)
+            throws IOException {
+        long start = System.nanoTime();
+        try {
+            workers.execute(() -> handle(exchange, method, endpoint, endpointStats, start));
+        } catch (RejectedExecutionException e) {
+            endpointStats.rejected.increment();
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            send(exchange, new Response(503, TEXT, "Service is at capacity, retry later"), start);
+            exchange.close();
+        }
+    }
+
+    private void handle(HttpExchange exchange, String method, Endpoint endpoint, EndpointStats endpointStats,
+            long start) {
+        try {
+            Response response;
+            if (!method.equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", method);
+                response = new Response(405, TEXT, "Use " + method + " for " + exchange.getRequestURI().getPath());
+            } else {
+                response = respond(exchange, endpoint);
+            }
+            send(exchange, response, start);
+        } catch (IOException e) {
+            // the client went away, there is nobody left to report to
+        } finally {
+            exchange.close();
+            endpointStats.record(System.nanoTime() - start);
+        }
+    }
+
+    private Response respond(HttpExchange exchange, Endpoint endpoint) {
+        try (InputStream body = requestBody(exchange)) {
+            return endpoint.handle(exchange, body);
+        } catch (LimitedInputStream.LimitExceededException e) {
+            return new Response(413, TEXT, e.getMessage());
+        } catch (UncheckedIOException e) {
+            if (e.getCause() instanceof LimitedInputStream.LimitExceededException) {
+                return new Response(413, TEXT, e.getCause().getMessage());
+            }
+            return new Response(500, TEXT, e.toString());
+        } catch (MessageParseException e) {
+            return extractionError(e);
+        } catch (IllegalArgumentException e) {
+            return new Response(400, TEXT, e.getMessage());
+        } catch (Exception e) {
+            return new Response(500, TEXT, e.toString());
+        }
+    }
+
+    private Response extractionError(MessageParseException e) {
+        try {
+            return new Response(400, FHIR_JSON, e.createExtractionErrorMessage().toJson(ctx));
+        } catch (RuntimeException ignored) {
+            // the source message lacks the header or parameters needed to address an extraction error
+            return new Response(400, TEXT, e.getMessage());
+        }
+    }
+
+    private static void send(HttpExchange exchange, Response response, long start) throws IOException {
+        byte[] bytes = response.body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", response.contentType);
+        exchange.getResponseHeaders().set("Server-Timing",
+                String.format("app;dur=%.3f", (System.nanoTime() - start) / 1e6));
+        exchange.sendResponseHeaders(response.status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    // a body that declares a length over the maximum is refused before any of it is read
+    private InputStream requestBody(HttpExchange exchange) throws IOException {
+        long limit = maxBodyBytes;
+        String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (contentLength != null) {
+            try {
+                if (Long.parseLong(contentLength.trim()) > limit) {
+                    throw new LimitedInputStream.LimitExceededException(
+                            "Request body is larger than the maximum of " + limit + " bytes");
+                }
+            } catch (NumberFormatException ignored) {
+                // the server rejects a malformed length itself, the limit below still applies
+            }
+        }
+        return new LimitedInputStream(exchange.getRequestBody(), limit, "Request body");
+    }
+
+    private static String readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        int read;
+        while ((read = in.read(chunk)) != -1) {
+            buffer.write(chunk, 0, read);
+        }
+        return new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static EncodingEnum detectEncoding(String body) {
+        for (int i = 0; i < body.length(); i++) {
+            char c = body.charAt(i);
+            if (!Character.isWhitespace(c) && c != '\uFEFF') {
+                return c == '<' ? EncodingEnum.XML : EncodingEnum.JSON;
+            }
+        }
+        throw new IllegalArgumentException("Request body is empty");
+    }
+
+    private static EncodingEnum requestedEncoding(HttpExchange exchange, String name, EncodingEnum defaultEncoding) {
+        String query = exchange.getRequestURI().getQuery();
+        if (query != null) {
+            for (String param : query.split("&")) {
+                if (param.startsWith(name + "=")) {
+                    String value = param.substring(name.length() + 1);
+                    if (value.equalsIgnoreCase("json")) {
+                        return EncodingEnum.JSON;
+                    } else if (value.equalsIgnoreCase("xml")) {
+                        return EncodingEnum.XML;
+                    }
+                    throw new IllegalArgumentException("Unsupported format: " + value + ", use json or xml");
+                }
+            }
+        }
+        return defaultEncoding;
+    }
+
+    private BaseMessage parseMessage(String body, EncodingEnum encoding) {
+        return encoding == EncodingEnum.XML
+                ? BaseMessage.parseXML(BaseMessage.class, ctx, body)
+                : BaseMessage.parseJson(BaseMessage.class, ctx, body);
+    }
+
+    private Response encodeMessage(BaseMessage message, EncodingEnum encoding) {
+        return encoding == EncodingEnum.XML
+                ? new Response(200, FHIR_XML, message.toXML(ctx))
+                : new Response(200, FHIR_JSON, message.toJson(ctx));
+    }
+
+    private Response parse(HttpExchange exchange, String body) {
+        BaseMessage message = parseMessage(body, detectEncoding(body));
+        JsonObject summary = new JsonObject();
+        summary.addProperty("messageType", message.getClass().getSimpleName());
+        summary.addProperty("eventUri", message.getMessageType());
+        summary.addProperty("messageId", message.getMessageHeaderId());
+        summary.addProperty("source", message.getMessageSource());
+        summary.addProperty("destination", message.getMessageDestination());
+        summary.addProperty("certNo", message.getCertNo());
+        summary.addProperty("deathYear", message.getDeathYear());
+        summary.addProperty("jurisdictionId", message.getJurisdictionId());
+        summary.addProperty("stateAuxiliaryId", message.getStateAuxiliaryId());
+        summary.addProperty("nchsIdentifier", message.getNCHSIdentifier());
+        return new Response(200, JSON, gson.toJson(summary));
+    }
+
+    private Response convert(HttpExchange exchange, String body) {
+        EncodingEnum from = detectEncoding(body);
+        EncodingEnum to = requestedEncoding(exchange, "to", from == EncodingEnum.XML ? EncodingEnum.JSON : EncodingEnum.XML);
+        return new Response(200, to == EncodingEnum.XML ? FHIR_XML : FHIR_JSON, transcoder.transcode(body, to));
+    }
+
+    private Response acknowledge(HttpExchange exchange, String body) {
+        EncodingEnum from = detectEncoding(body);
+        BaseMessage message = parseMessage(body, from);
+        return encodeMessage(new AcknowledgementMessage(message), requestedEncoding(exchange, "format", from));
+    }
+
+    // only the entry being split and the NDJSON written so far are held, not the parsed batch
+    private Response split(HttpExchange exchange, InputStream body) throws IOException {
+        InputStream content = Gzip.decompressIfGzipped(body);
+        if (firstContentByte(content) != '{') {
+            throw new IllegalArgumentException("Bundles of bundles are only supported in JSON");
+        }
+        StringBuilder ndjson = new StringBuilder();
+        try (BundleOfBundlesReader reader = new BundleOfBundlesReader(ctx,
+                new BufferedReader(new InputStreamReader(content, StandardCharsets.UTF_8)))) {
+            while (reader.hasNext()) {
+                ndjson.append(reader.next().toJson(ctx)).append('\n');
+            }
+        }
+        return new Response(200, FHIR_NDJSON, ndjson.toString());
+    }
+
+    // the first byte after any whitespace and byte order mark, read ahead so the stream is left where it was
+    private static int firstContentByte(InputStream content) throws IOException {
+        content.mark(ENCODING_LOOKAHEAD);
+        try {
+            for (int i = 0, b = content.read(); i < ENCODING_LOOKAHEAD && b >= 0; i++, b = content.read()) {
+                if (b != ' ' && b != '\t' && b != '\r' && b != '\n' && b != 0xEF && b != 0xBB && b != 0xBF) {
+                    return b;
+                }
+            }
+            throw new IllegalArgumentException("Request body is empty");
+        } finally {
+            content.reset();
+        }
+    }
+
+    private Response stats(HttpExchange exchange, String body) {
+        JsonObject all = new JsonObject();
+        for (Map.Entry<String, EndpointStats> entry : stats.entrySet()) {
+            EndpointStats endpointStats = entry.getValue();
+            long count = endpointStats.count.sum();
+            JsonObject json = new JsonObject();
+            json.addProperty("count", count);
+            json.addProperty("rejected", endpointStats.rejected.sum());
+            json.addProperty("meanMs", count == 0 ? 0 : endpointStats.totalNanos.sum() / 1e6 / count);
+            json.addProperty("maxMs", endpointStats.maxNanos.get() / 1e6);
+            all.add(entry.getKey(), json);
+        }
+        return new Response(200, JSON, gson.toJson(all));
+    }
+}
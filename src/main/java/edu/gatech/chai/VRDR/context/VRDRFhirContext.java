@@ -1,32 +1,44 @@
 package edu.gatech.chai.VRDR.context;
 
-import edu.gatech.chai.VRDR.messaging.*;
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.MessageHeader;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Resource;
 
+import java.util.List;
+
+/**
+ * {@link VRDRFhirContextDataStructuresOnly} with the VRDR messaging profiles registered as well.
+ * <p>
+ * Building a context is expensive, so applications should normally use {@link #shared()} rather than creating one
+ * per request; see {@link VRDRFhirContextDataStructuresOnly} for the thread-safety rules.
+ */
 public class VRDRFhirContext extends VRDRFhirContextDataStructuresOnly {
+
+    private static class SharedHolder {
+        static final VRDRFhirContext INSTANCE = new VRDRFhirContext();
+    }
+
+    /**
+     * Returns a lazily created, process-wide context that may be used concurrently from any number of threads.
+     */
+    public static VRDRFhirContext shared() {
+        return SharedHolder.INSTANCE;
+    }
+
     public VRDRFhirContext() {
         super();
-        ctx.setDefaultTypeForProfile("http://cdc.gov/nchs/nvss/fhir/vital-records-messaging/StructureDefinition/VRM-DeathRecordSubmissionMessage",
-                Bundle.class);
-        ctx.setDefaultTypeForProfile("http://cdc.gov/nchs/nvss/fhir/vital-records-messaging/StructureDefinition/VRM-DeathRecordUpdateMessage",
-                Bundle.class);
-        ctx.setDefaultTypeForProfile("http://cdc.gov/nchs/nvss/fhir/vital-records-messaging/StructureDefinition/VRM-DeathRecordVoidMessage",
-                Bundle.class);
-        ctx.setDefaultTypeForProfile("http://cdc.gov/nchs/nvss/fhir/vital-records-messaging/StructureDefinition/VRM-DeathRecordAliasMessage",
-                Bundle.class);
-        ctx.setDefaultTypeForProfile("http://cdc.gov/nchs/nvss/fhir/vital-records-messaging/StructureDefinition/VRM-StatusMessage",
-                Bundle.class);
-        ctx.setDefaultTypeForProfile("http://cdc.gov/nchs/nvss/fhir/vital-records-messaging/StructureDefinition/VRM-CauseOfDeathCodingMessage",
-                Bundle.class);
-        ctx.setDefaultTypeForProfile("http://cdc.gov/nchs/nvss/fhir/vital-records-messaging/StructureDefinition/VRM-CauseOfDeathCodingUpdateMessage",
-                Bundle.class);
-        ctx.setDefaultTypeForProfile("http://cdc.gov/nchs/nvss/fhir/vital-records-messaging/StructureDefinition/VRM-DemographicsCodingMessage",
-                Bundle.class);
-        ctx.setDefaultTypeForProfile("http://cdc.gov/nchs/nvss/fhir/vital-records-messaging/StructureDefinition/VRM-DemographicsCodingUpdateMessage",
-                Bundle.class);
-        ctx.setDefaultTypeForProfile("http://cdc.gov/nchs/nvss/fhir/vital-records-messaging/StructureDefinition/VRM-AcknowledgementMessage",
-                Bundle.class);
-        ctx.setDefaultTypeForProfile("http://cdc.gov/nchs/nvss/fhir/vital-records-messaging/StructureDefinition/VRM-ExtractionErrorMessage",
-                Bundle.class);
+        // messages are parsed as plain bundles and wrapped in their message class afterwards
+        for (String profile : VRDRProfileRegistry.MESSAGE_PROFILES.keySet()) {
+            ctx.setDefaultTypeForProfile(profile, Bundle.class);
+        }
+    }
+
+    @Override
+    protected List<Class<? extends Resource>> prescanClasses() {
+        List<Class<? extends Resource>> classes = super.prescanClasses();
+        classes.add(MessageHeader.class);
+        classes.add(Parameters.class);
+        return classes;
     }
 }
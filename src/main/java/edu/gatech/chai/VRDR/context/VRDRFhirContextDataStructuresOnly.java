@@ -1,95 +1,64 @@
 package edu.gatech.chai.VRDR.context;
 
 import ca.uhn.fhir.context.FhirContext;
-import edu.gatech.chai.VRDR.model.*;
-import org.hl7.fhir.r4.model.Practitioner;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.parser.LenientErrorHandler;
+import ca.uhn.fhir.parser.StrictErrorHandler;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Wraps a HAPI {@link FhirContext} with the VRDR profiles registered.
+ * <p>
+ * Once constructed the context is safe to share between threads: all profile registration happens in the
+ * constructor, and the parsers handed out by {@link #getParser(EncodingEnum, boolean, boolean)} are cached per
+ * thread, since HAPI parsers themselves are not thread-safe. Calling {@link #setCtx(FhirContext)} or registering
+ * further profiles on {@link #getCtx()} while other threads are using the context is not safe.
+ */
 public class VRDRFhirContextDataStructuresOnly {
 	FhirContext ctx;
+	// one slot per combination of format (json/xml), pretty/compact and lenient/strict
+	private volatile ThreadLocal<IParser[]> parserCache = newParserCache();
+	// every parser handed out by getParser and whether it is lenient, weakly so they go with their threads
+	private static final Map<IParser, Boolean> SHARED_PARSERS = Collections.synchronizedMap(new WeakHashMap<>());
 
 	public VRDRFhirContextDataStructuresOnly() {
 		ctx = FhirContext.forR4();
 		// these types come from http://hl7.org/fhir/us/vrdr/index.html
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-activity-at-time-of-death",
-				ActivityAtTimeOfDeath.class);
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-automated-underlying-cause-of-death",
-				AutomatedUnderlyingCauseOfDeath.class);
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-autopsy-performed-indicator",
-				AutopsyPerformedIndicator.class);
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-birth-record-identifier",
-				BirthRecordIdentifier.class);
-		ctx.setDefaultTypeForProfile( "http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-cause-of-death-coded-bundle",
-				CauseOfDeathCodedContentBundle.class);
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-cause-of-death-part1",
-				CauseOfDeathPart1.class);
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-cause-of-death-part2",
-				CauseOfDeathPart2.class);
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-certifier",
-				Certifier.class);
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-coded-race-and-ethnicity",
-				CodedRaceAndEthnicity.class);
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-coding-status-values",
-				CodingStatusValues.class);
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-death-certificate",
-				DeathCertificate.class);
-		ctx.setDefaultTypeForProfile( "http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-death-certificate-document",
-				DeathCertificateDocument.class);
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-death-certification",
-				DeathCertificationProcedure.class);
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-death-date",
-				DeathDate.class);
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-death-location",
-				DeathLocation.class);
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-decedent",
-				Decedent.class);
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-decedent-age",
-				DecedentAge.class);
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-decedent-disposition-method",
-				DecedentDispositionMethod.class);
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-decedent-education-level",
-				DecedentEducationLevel.class);
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-decedent-father",
-				DecedentFather.class);
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-military-service",
-				DecedentMilitaryService.class);
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-decedent-mother",
-				DecedentMother.class);
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-decedent-pregnancy-status",
-				DecedentPregnancyStatus.class);
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-decedent-spouse",
-				DecedentSpouse.class);
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-decedent-usual-work",
-				DecedentUsualWork.class);
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-demographic-coded-bundle",
-				DemographicCodedContentBundle.class);
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-disposition-location",
-				DispositionLocation.class);
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-entity-axis-cause-of-death",
-				EntityAxisCauseOfDeath.class);
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-examiner-contacted",
-				ExaminerContacted.class);
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-funeral-home",
-				FuneralHome.class);
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-injury-incident",
-				InjuryIncident.class);
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-injury-location",
-				InjuryLocation.class);
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-input-race-and-ethnicity",
-				InputRaceAndEthnicity.class);
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-manner-of-death",
-				MannerOfDeath.class);
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-manual-underlying-cause-of-death",
-				ManualUnderlyingCauseOfDeath.class);
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/us-core-practitioner",
-				Practitioner.class);
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-place-of-injury",
-				PlaceOfInjury.class);
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-record-axis-cause-of-death",
-				RecordAxisCauseOfDeath.class);
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-surgery-date",
-				SurgeryDate.class);
-		ctx.setDefaultTypeForProfile("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-tobacco-use-contributed-to-death",
-				TobaccoUseContributedToDeath.class);
+		for (Map.Entry<String, Class<? extends Resource>> profile : VRDRProfileRegistry.DATA_STRUCTURE_PROFILES.entrySet()) {
+			ctx.setDefaultTypeForProfile(profile.getKey(), profile.getValue());
+		}
+	}
+
+	/**
+	 * Scans the HAPI runtime definitions of every registered profile class up front instead of on first use.
+	 * This moves the cost rather than saving it: in a fresh JVM on one CPU the first message parse dropped from
+	 * about 2.3-2.9 s to 0.5 s after a prescan of about 1.9-2.2 s, so the total is unchanged. HAPI serializes
+	 * scanning internally, so this is a single pass; only {@link #prescanDefinitionsAsync()} overlapping other
+	 * startup work shortens startup.
+	 */
+	public void prescanDefinitions() {
+		for (Class<? extends Resource> resourceClass : prescanClasses()) {
+			ctx.getResourceDefinition(resourceClass);
+		}
+	}
+
+	public CompletableFuture<Void> prescanDefinitionsAsync() {
+		return CompletableFuture.runAsync(this::prescanDefinitions);
+	}
+
+	protected List<Class<? extends Resource>> prescanClasses() {
+		List<Class<? extends Resource>> classes = new ArrayList<>(VRDRProfileRegistry.DATA_STRUCTURE_PROFILES.values());
+		classes.add(Bundle.class);
+		return classes;
 	}
 
 	public FhirContext getCtx() {
@@ -98,6 +67,60 @@ public class VRDRFhirContextDataStructuresOnly {
 
 	public void setCtx(FhirContext ctx) {
 		this.ctx = ctx;
+		this.parserCache = newParserCache();
+	}
+
+	/**
+	 * Returns a parser owned by the calling thread, configured for the given format, pretty printing and error
+	 * handling. The same instance is returned on every call from the same thread with the same arguments, so
+	 * callers must not reconfigure it.
+	 *
+	 * @param encoding    {@link EncodingEnum#JSON} or {@link EncodingEnum#XML}
+	 * @param prettyPrint whether encoded output is pretty printed
+	 * @param lenient     true for a {@link LenientErrorHandler}, false for a {@link StrictErrorHandler}
+	 */
+	public IParser getParser(EncodingEnum encoding, boolean prettyPrint, boolean lenient) {
+		int slot;
+		if (encoding == EncodingEnum.JSON) {
+			slot = 0;
+		} else if (encoding == EncodingEnum.XML) {
+			slot = 4;
+		} else {
+			throw new IllegalArgumentException("Unsupported encoding " + encoding);
+		}
+		slot += (prettyPrint ? 2 : 0) + (lenient ? 1 : 0);
+		IParser[] parsers = parserCache.get();
+		IParser parser = parsers[slot];
+		if (parser == null) {
+			parser = encoding.newParser(ctx)
+					.setPrettyPrint(prettyPrint)
+					.setParserErrorHandler(lenient ? new LenientErrorHandler() : new StrictErrorHandler());
+			parsers[slot] = parser;
+			SHARED_PARSERS.put(parser, lenient);
+		}
+		return parser;
+	}
+
+	// true for a parser handed out by getParser, which later callers on its thread share and so must not be reconfigured
+	public static boolean isSharedParser(IParser parser) {
+		return SHARED_PARSERS.containsKey(parser);
+	}
+
+	// true for a parser handed out by getParser with a LenientErrorHandler
+	public static boolean isSharedLenientParser(IParser parser) {
+		return Boolean.TRUE.equals(SHARED_PARSERS.get(parser));
+	}
+
+	public IParser getJsonParser(boolean prettyPrint) {
+		return getParser(EncodingEnum.JSON, prettyPrint, true);
+	}
+
+	public IParser getXmlParser(boolean prettyPrint) {
+		return getParser(EncodingEnum.XML, prettyPrint, true);
+	}
+
+	private static ThreadLocal<IParser[]> newParserCache() {
+		return ThreadLocal.withInitial(() -> new IParser[8]);
 	}
 
 }
@@ -0,0 +1,129 @@
+package edu.gatech.chai.VRDR.context;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.hl7.fhir.r4.model.Resource;
+
+import edu.gatech.chai.VRDR.messaging.BaseMessage;
+
+// Generated by tools/generate_profile_registry.py from the @ResourceDef annotations in
+// edu.gatech.chai.VRDR.model and edu.gatech.chai.VRDR.messaging, do not edit by hand.
+public final class VRDRProfileRegistry {
+    public static final Map<String, Class<? extends Resource>> DATA_STRUCTURE_PROFILES;
+    public static final Map<String, Class<? extends BaseMessage>> MESSAGE_PROFILES;
+
+    static {
+        Map<String, Class<? extends Resource>> dataStructureProfiles = new LinkedHashMap<>();
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/us-core-practitioner",
+                org.hl7.fhir.r4.model.Practitioner.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-activity-at-time-of-death",
+                edu.gatech.chai.VRDR.model.ActivityAtTimeOfDeath.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-automated-underlying-cause-of-death",
+                edu.gatech.chai.VRDR.model.AutomatedUnderlyingCauseOfDeath.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-autopsy-performed-indicator",
+                edu.gatech.chai.VRDR.model.AutopsyPerformedIndicator.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-birth-record-identifier",
+                edu.gatech.chai.VRDR.model.BirthRecordIdentifier.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-cause-of-death-coded-bundle",
+                edu.gatech.chai.VRDR.model.CauseOfDeathCodedContentBundle.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-cause-of-death-part1",
+                edu.gatech.chai.VRDR.model.CauseOfDeathPart1.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-cause-of-death-part2",
+                edu.gatech.chai.VRDR.model.CauseOfDeathPart2.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-certifier",
+                edu.gatech.chai.VRDR.model.Certifier.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-coded-race-and-ethnicity",
+                edu.gatech.chai.VRDR.model.CodedRaceAndEthnicity.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-coding-status-values",
+                edu.gatech.chai.VRDR.model.CodingStatusValues.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-death-certificate",
+                edu.gatech.chai.VRDR.model.DeathCertificate.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-death-certificate-document",
+                edu.gatech.chai.VRDR.model.DeathCertificateDocument.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-death-certification",
+                edu.gatech.chai.VRDR.model.DeathCertificationProcedure.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-death-date",
+                edu.gatech.chai.VRDR.model.DeathDate.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-death-location",
+                edu.gatech.chai.VRDR.model.DeathLocation.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-decedent",
+                edu.gatech.chai.VRDR.model.Decedent.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-decedent-age",
+                edu.gatech.chai.VRDR.model.DecedentAge.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-decedent-disposition-method",
+                edu.gatech.chai.VRDR.model.DecedentDispositionMethod.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-decedent-education-level",
+                edu.gatech.chai.VRDR.model.DecedentEducationLevel.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-decedent-father",
+                edu.gatech.chai.VRDR.model.DecedentFather.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-decedent-mother",
+                edu.gatech.chai.VRDR.model.DecedentMother.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-decedent-pregnancy-status",
+                edu.gatech.chai.VRDR.model.DecedentPregnancyStatus.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-decedent-spouse",
+                edu.gatech.chai.VRDR.model.DecedentSpouse.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-decedent-usual-work",
+                edu.gatech.chai.VRDR.model.DecedentUsualWork.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-demographic-coded-bundle",
+                edu.gatech.chai.VRDR.model.DemographicCodedContentBundle.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-disposition-location",
+                edu.gatech.chai.VRDR.model.DispositionLocation.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-entity-axis-cause-of-death",
+                edu.gatech.chai.VRDR.model.EntityAxisCauseOfDeath.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-examiner-contacted",
+                edu.gatech.chai.VRDR.model.ExaminerContacted.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-funeral-home",
+                edu.gatech.chai.VRDR.model.FuneralHome.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-injury-incident",
+                edu.gatech.chai.VRDR.model.InjuryIncident.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-injury-location",
+                edu.gatech.chai.VRDR.model.InjuryLocation.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-input-race-and-ethnicity",
+                edu.gatech.chai.VRDR.model.InputRaceAndEthnicity.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-manner-of-death",
+                edu.gatech.chai.VRDR.model.MannerOfDeath.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-manual-underlying-cause-of-death",
+                edu.gatech.chai.VRDR.model.ManualUnderlyingCauseOfDeath.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-military-service",
+                edu.gatech.chai.VRDR.model.DecedentMilitaryService.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-place-of-injury",
+                edu.gatech.chai.VRDR.model.PlaceOfInjury.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-record-axis-cause-of-death",
+                edu.gatech.chai.VRDR.model.RecordAxisCauseOfDeath.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-surgery-date",
+                edu.gatech.chai.VRDR.model.SurgeryDate.class);
+        dataStructureProfiles.put("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-tobacco-use-contributed-to-death",
+                edu.gatech.chai.VRDR.model.TobaccoUseContributedToDeath.class);
+        DATA_STRUCTURE_PROFILES = Collections.unmodifiableMap(dataStructureProfiles);
+
+        Map<String, Class<? extends BaseMessage>> messageProfiles = new LinkedHashMap<>();
+        messageProfiles.put("http://cdc.gov/nchs/nvss/fhir/vital-records-messaging/StructureDefinition/VRM-AcknowledgementMessage",
+                edu.gatech.chai.VRDR.messaging.AcknowledgementMessage.class);
+        messageProfiles.put("http://cdc.gov/nchs/nvss/fhir/vital-records-messaging/StructureDefinition/VRM-CauseOfDeathCodingMessage",
+                edu.gatech.chai.VRDR.messaging.CauseOfDeathCodingMessage.class);
+        messageProfiles.put("http://cdc.gov/nchs/nvss/fhir/vital-records-messaging/StructureDefinition/VRM-CauseOfDeathCodingUpdateMessage",
+                edu.gatech.chai.VRDR.messaging.CauseOfDeathCodingUpdateMessage.class);
+        messageProfiles.put("http://cdc.gov/nchs/nvss/fhir/vital-records-messaging/StructureDefinition/VRM-DeathRecordAliasMessage",
+                edu.gatech.chai.VRDR.messaging.DeathRecordAliasMessage.class);
+        messageProfiles.put("http://cdc.gov/nchs/nvss/fhir/vital-records-messaging/StructureDefinition/VRM-DeathRecordSubmissionMessage",
+                edu.gatech.chai.VRDR.messaging.DeathRecordSubmissionMessage.class);
+        messageProfiles.put("http://cdc.gov/nchs/nvss/fhir/vital-records-messaging/StructureDefinition/VRM-DeathRecordUpdateMessage",
+                edu.gatech.chai.VRDR.messaging.DeathRecordUpdateMessage.class);
+        messageProfiles.put("http://cdc.gov/nchs/nvss/fhir/vital-records-messaging/StructureDefinition/VRM-DeathRecordVoidMessage",
+                edu.gatech.chai.VRDR.messaging.DeathRecordVoidMessage.class);
+        messageProfiles.put("http://cdc.gov/nchs/nvss/fhir/vital-records-messaging/StructureDefinition/VRM-DemographicsCodingMessage",
+                edu.gatech.chai.VRDR.messaging.DemographicsCodingMessage.class);
+        messageProfiles.put("http://cdc.gov/nchs/nvss/fhir/vital-records-messaging/StructureDefinition/VRM-DemographicsCodingUpdateMessage",
+                edu.gatech.chai.VRDR.messaging.DemographicsCodingUpdateMessage.class);
+        messageProfiles.put("http://cdc.gov/nchs/nvss/fhir/vital-records-messaging/StructureDefinition/VRM-ExtractionErrorMessage",
+                edu.gatech.chai.VRDR.messaging.ExtractionErrorMessage.class);
+        messageProfiles.put("http://cdc.gov/nchs/nvss/fhir/vital-records-messaging/StructureDefinition/VRM-StatusMessage",
+                edu.gatech.chai.VRDR.messaging.StatusMessage.class);
+        MESSAGE_PROFILES = Collections.unmodifiableMap(messageProfiles);
+    }
+
+    private VRDRProfileRegistry() {
+    }
+}
@@ -1,11 +1,28 @@
 package edu.gatech.chai.VRDR.messaging;
 
+import ca.uhn.fhir.parser.DataFormatException;
 import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.parser.JsonParser;
 import ca.uhn.fhir.parser.LenientErrorHandler;
 import ca.uhn.fhir.parser.JsonParser4BundleOfBundles;
+import ca.uhn.fhir.parser.json.GsonStructure;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 import edu.gatech.chai.VRDR.context.VRDRFhirContext;
+import edu.gatech.chai.VRDR.messaging.util.BinaryCodec;
+import edu.gatech.chai.VRDR.messaging.util.CanonicalJson;
+import edu.gatech.chai.VRDR.messaging.util.BundleOfBundlesReader;
+import edu.gatech.chai.VRDR.messaging.util.BundleOfBundlesWriter;
+import edu.gatech.chai.VRDR.messaging.util.BundleOfBundlesResult;
 import edu.gatech.chai.VRDR.messaging.util.DocumentBundler;
+import edu.gatech.chai.VRDR.messaging.util.Gzip;
 import edu.gatech.chai.VRDR.messaging.util.MessageParseException;
+import edu.gatech.chai.VRDR.messaging.util.MessageTypeRegistry;
+import edu.gatech.chai.VRDR.messaging.util.ParseResult;
+import edu.gatech.chai.VRDR.messaging.util.RelayJsonLikeWriter;
 import edu.gatech.chai.VRDR.model.DeathCertificateDocument;
 import edu.gatech.chai.VRDR.model.DeathDate;
 import edu.gatech.chai.VRDR.model.DeathLocation;
@@ -16,7 +33,17 @@ import org.hl7.fhir.r4.model.*;
 
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 public class BaseMessage extends Bundle {
 
@@ -131,19 +158,24 @@ public class BaseMessage extends Bundle {
     }
 
     protected void addBundleEntryForHeaderAndParameters() {
-        // add message header to bundle
-        Bundle.BundleEntryComponent headerBundleComponent = new Bundle.BundleEntryComponent();
-        headerBundleComponent.setFullUrl(ensureRefPrefix(messageHeader.getId()));
-        headerBundleComponent.setResource(messageHeader);
-        headerBundleComponent.getResource().setId(ensureBareId(messageHeader.getId()));
-        addEntry(headerBundleComponent);
+        // either may be missing when an invalid message was read with ignoreExceptions
+        if (messageHeader != null) {
+            // add message header to bundle
+            Bundle.BundleEntryComponent headerBundleComponent = new Bundle.BundleEntryComponent();
+            headerBundleComponent.setFullUrl(ensureRefPrefix(messageHeader.getId()));
+            headerBundleComponent.setResource(messageHeader);
+            headerBundleComponent.getResource().setId(ensureBareId(messageHeader.getId()));
+            addEntry(headerBundleComponent);
+        }
 
-        // add parameters resource to bundle
-        Bundle.BundleEntryComponent parametersBundleComponent = new Bundle.BundleEntryComponent();
-        parametersBundleComponent.setFullUrl(ensureRefPrefix(messageParameters.getId()));
-        parametersBundleComponent.setResource(messageParameters);
-        parametersBundleComponent.getResource().setId(ensureBareId(messageParameters.getId()));
-        addEntry(parametersBundleComponent);
+        if (messageParameters != null) {
+            // add parameters resource to bundle
+            Bundle.BundleEntryComponent parametersBundleComponent = new Bundle.BundleEntryComponent();
+            parametersBundleComponent.setFullUrl(ensureRefPrefix(messageParameters.getId()));
+            parametersBundleComponent.setResource(messageParameters);
+            parametersBundleComponent.getResource().setId(ensureBareId(messageParameters.getId()));
+            addEntry(parametersBundleComponent);
+        }
     }
 
     protected <T extends Bundle> void setDocumentBundleFromMessageBundle(Class<T> tClass,
@@ -182,7 +214,11 @@ public class BaseMessage extends Bundle {
     }
 
     protected String getMessageEventTypeMismatchErrorMessage(String messageType) {
-        return "Message event uri type " + getMessageEventType() + " does not match the expected message type "
+        return getMessageEventTypeMismatchErrorMessage(getMessageEventType(), messageType);
+    }
+
+    private static String getMessageEventTypeMismatchErrorMessage(String messageEventType, String messageType) {
+        return "Message event uri type " + messageEventType + " does not match the expected message type "
                 + messageType;
     }
 
@@ -227,8 +263,9 @@ public class BaseMessage extends Bundle {
     }
 
     private void extractDeathYear(DeathCertificateDocument from) {
-        if (from != null && from.getDeathDate() != null && from.getDeathDate().size() > 0) {
-            DeathDate deathDate = from.getDeathDate().get(0);
+        List<DeathDate> deathDates = from != null ? from.getDeathDate() : Collections.emptyList();
+        if (!deathDates.isEmpty()) {
+            DeathDate deathDate = deathDates.get(0);
             if (deathDate.getEffective() instanceof DateTimeType) {
                 DateTimeType dateTimeType = (DateTimeType) deathDate.getEffective();
                 this.setDeathYear(dateTimeType.getYear());
@@ -381,23 +418,61 @@ public class BaseMessage extends Bundle {
     }
 
     public String toJson(VRDRFhirContext ctx, boolean prettyPrint) {
-        return ctx
-                .getCtx()
-                .newJsonParser()
-                .setPrettyPrint(prettyPrint)
-                .encodeResourceToString(
-                        cloneAsBundle());
+        StringWriter writer = new StringWriter();
+        try {
+            encodeJson(ctx, prettyPrint, writer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return writer.toString();
     }
 
     public String toJson(VRDRFhirContext ctx) {
         return toJson(ctx, false);
     }
 
+    // documents parsed with parseJsonForRelay that have not changed since are written as they were received, HAPI
+    // encodes the rest of the message with their entries holding only the full url
+    private void encodeJson(VRDRFhirContext ctx, boolean prettyPrint, Writer writer) throws IOException {
+        Bundle bundle = cloneAsBundle();
+        IParser parser = ctx.getJsonParser(prettyPrint);
+        List<Bundle.BundleEntryComponent> relayed = parser instanceof JsonParser
+                ? takeRelayedEntries(bundle)
+                : Collections.<Bundle.BundleEntryComponent>emptyList();
+        if (relayed.isEmpty()) {
+            parser.encodeResourceToWriter(bundle, writer);
+        } else {
+            ((JsonParser) parser).encodeResourceToJsonLikeWriter(bundle, new RelayJsonLikeWriter(writer, relayed));
+        }
+    }
+
+    // replaces the entries of the clone whose document can be relayed with ones holding only the full url, returning
+    // the replaced entries in order
+    private static List<Bundle.BundleEntryComponent> takeRelayedEntries(Bundle clone) {
+        List<Bundle.BundleEntryComponent> relayed = null;
+        for (ListIterator<Bundle.BundleEntryComponent> entries = clone.getEntry().listIterator(); entries.hasNext(); ) {
+            Bundle.BundleEntryComponent entry = entries.next();
+            // entries with anything but a full url and the document are encoded by HAPI as a whole, and the cheap
+            // checks come before the equalsDeep of isReceivedJsonCurrent
+            if (entry.getResource() instanceof DeathCertificateDocument
+                    && ((DeathCertificateDocument) entry.getResource()).hasReceivedJson()
+                    && entry.hasFullUrl() && entry.getId() == null
+                    && !entry.hasExtension() && !entry.hasModifierExtension() && !entry.hasLink() && !entry.hasSearch()
+                    && !entry.hasRequest() && !entry.hasResponse()
+                    && ((DeathCertificateDocument) entry.getResource()).isReceivedJsonCurrent()) {
+                if (relayed == null) {
+                    relayed = new ArrayList<>();
+                }
+                relayed.add(entry);
+                entries.set(new Bundle.BundleEntryComponent().setFullUrl(entry.getFullUrl()));
+            }
+        }
+        return relayed != null ? relayed : Collections.<Bundle.BundleEntryComponent>emptyList();
+    }
+
     public String toXML(VRDRFhirContext ctx, boolean prettyPrint) {
         return ctx
-                .getCtx()
-                .newXmlParser()
-                .setPrettyPrint(prettyPrint)
+                .getXmlParser(prettyPrint)
                 .encodeResourceToString(
                         cloneAsBundle());
     }
@@ -406,6 +481,41 @@ public class BaseMessage extends Bundle {
         return toXML(ctx, false);
     }
 
+    // the compact form of BinaryCodec, for queueing between stages that use the same version of this library
+    public byte[] toBinary(VRDRFhirContext ctx) {
+        return new BinaryCodec(ctx).encode(this);
+    }
+
+    // the SHA-256 of the canonical JSON with ids and timestamps normalized, equal for resubmissions of the same message
+    public String getFingerprint(VRDRFhirContext ctx) {
+        return CanonicalJson.forDuplicates(ctx).fingerprint(this);
+    }
+
+    // writes the message as it would be returned by toJson or toXML, the writer is flushed but not closed
+    public void encodeTo(VRDRFhirContext ctx, EncodingEnum encoding, boolean prettyPrint, Writer writer)
+            throws IOException {
+        if (encoding == EncodingEnum.JSON) {
+            encodeJson(ctx, prettyPrint, writer);
+        } else {
+            ctx.getParser(encoding, prettyPrint, true).encodeResourceToWriter(cloneAsBundle(), writer);
+        }
+        writer.flush();
+    }
+
+    // writes UTF-8 through a buffer, the stream is flushed but not closed
+    public void encodeTo(VRDRFhirContext ctx, EncodingEnum encoding, boolean prettyPrint, OutputStream stream)
+            throws IOException {
+        encodeTo(ctx, encoding, prettyPrint, new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8)));
+    }
+
+    // writes UTF-8, replacing the file if it exists, gzipped when the file name ends in .gz
+    public void encodeTo(VRDRFhirContext ctx, EncodingEnum encoding, boolean prettyPrint, Path path)
+            throws IOException {
+        try (Writer writer = Gzip.newBufferedWriter(path)) {
+            encodeTo(ctx, encoding, prettyPrint, writer);
+        }
+    }
+
     public String getMessageType() {
         if (messageHeader != null && messageHeader.getEvent() != null && messageHeader.getEvent() instanceof UriType) {
             return ((UriType) messageHeader.getEvent()).getValue();
@@ -505,11 +615,96 @@ public class BaseMessage extends Bundle {
     }
 
     public static <T extends Bundle> T parseXML(Class<T> tClass, VRDRFhirContext ctx, String xmlString) {
-        return parse(tClass, ctx.getCtx().newXmlParser(), null, xmlString);
+        return parseWithConfiguredParser(tClass, ctx.getXmlParser(false), null, xmlString);
     }
 
     public static <T extends Bundle> T parseJson(Class<T> tClass, VRDRFhirContext ctx, String jsonString) {
-        return parse(tClass, ctx.getCtx().newJsonParser(), null, jsonString);
+        return parseWithConfiguredParser(tClass, ctx.getJsonParser(false), null, jsonString);
+    }
+
+    /**
+     * Parses like parseJson, also keeping the JSON of the death certificate document in the message, or of the
+     * document itself when parsing one. As long as the document is not changed, relaying the message, or wrapping the
+     * document in another message, writes the document to JSON as it was received instead of encoding it again.
+     */
+    public static <T extends Bundle> T parseJsonForRelay(Class<T> tClass, VRDRFhirContext ctx, String jsonString) {
+        return parseJsonForRelay(tClass, ctx, new StringReader(jsonString));
+    }
+
+    public static <T extends Bundle> T parseJsonForRelay(Class<T> tClass, VRDRFhirContext ctx, Reader reader) {
+        try (Reader jsonReader = reader) {
+            JsonObject json = RELAY_GSON.fromJson(jsonReader, JsonObject.class);
+            if (json == null) {
+                throw new DataFormatException("No JSON content");
+            }
+            // HAPI parses the same tree, so the content is only read once
+            GsonStructure structure = new GsonStructure();
+            structure.setNativeObject(json);
+            Bundle bundle = ((JsonParser) ctx.getJsonParser(false)).parseResource(Bundle.class, structure);
+            Map<DeathCertificateDocument, JsonObject> received = new IdentityHashMap<>();
+            findReceivedDocuments(bundle, json, received);
+            T result = wrapBundle(tClass, bundle);
+            // after the constructors, whose own changes to the documents are not changes made by the caller
+            received.forEach(DeathCertificateDocument::retainReceivedJson);
+            return result;
+        } catch (MessageParseException e) {
+            throw e;
+        } catch (InvocationTargetException e) {
+            if (e.getTargetException() instanceof MessageParseException) {
+                throw (MessageParseException) e.getTargetException();
+            } else {
+                throw new IllegalArgumentException(
+                        "Unable to instantiate class with bundle parameter, exception: " + e.getMessage());
+            }
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Unable to parse bundle, exception: " + e);
+        }
+    }
+
+    // pairs the parsed documents with their JSON, checking the id in case lenient parsing dropped an entry
+    private static void findReceivedDocuments(Bundle bundle, JsonObject json, Map<DeathCertificateDocument, JsonObject> received) {
+        if (bundle instanceof DeathCertificateDocument) {
+            received.put((DeathCertificateDocument) bundle, json);
+            return;
+        }
+        JsonElement entries = json.get("entry");
+        if (entries == null || !entries.isJsonArray()) {
+            return;
+        }
+        for (int i = 0; i < bundle.getEntry().size() && i < entries.getAsJsonArray().size(); i++) {
+            Resource resource = bundle.getEntry().get(i).getResource();
+            JsonElement entry = entries.getAsJsonArray().get(i);
+            if (resource instanceof DeathCertificateDocument && entry.isJsonObject()
+                    && entry.getAsJsonObject().get("resource") instanceof JsonObject) {
+                JsonObject document = entry.getAsJsonObject().getAsJsonObject("resource");
+                JsonElement id = document.get("id");
+                if (id != null && id.isJsonPrimitive() && id.getAsString().equals(resource.getIdElement().getIdPart())) {
+                    received.put((DeathCertificateDocument) resource, document);
+                }
+            }
+        }
+    }
+
+    // decodes what toBinary gave, in a process using the same version of this library
+    public static <T extends Bundle> T parseBinary(Class<T> tClass, VRDRFhirContext ctx, byte[] bytes) {
+        try {
+            Resource resource = new BinaryCodec(ctx).decode(bytes);
+            if (!(resource instanceof Bundle)) {
+                throw new IllegalArgumentException("The encoded resource is a " + resource.fhirType() + ", not a Bundle");
+            }
+            return wrapBundle(tClass, (Bundle) resource);
+        } catch (MessageParseException e) {
+            throw e;
+        } catch (InvocationTargetException e) {
+            if (e.getTargetException() instanceof MessageParseException) {
+                throw (MessageParseException) e.getTargetException();
+            } else {
+                throw new IllegalArgumentException(
+                        "Unable to instantiate class with bundle parameter, exception: " + e.getMessage());
+            }
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Unable to parse bundle, exception: " + e);
+        }
     }
 
     public static <T extends Bundle> T parseJsonBundleOfBundles(Class<T> tClass, VRDRFhirContext ctx,
@@ -517,30 +712,281 @@ public class BaseMessage extends Bundle {
         return parse(tClass, new JsonParser4BundleOfBundles(ctx.getCtx(), new LenientErrorHandler()), null, jsonString);
     }
 
+    // the file may be gzipped, it is decompressed as it is parsed
     public static <T extends Bundle> T parseXMLFile(Class<T> tClass, VRDRFhirContext ctx, String filePath) {
-        return parse(tClass, ctx.getCtx().newXmlParser(), getInputStream(filePath), null);
+        return parseWithConfiguredParser(tClass, ctx.getXmlParser(false), fileReader(filePath), null);
     }
 
     public static <T extends Bundle> T parseJsonFile(Class<T> tClass, VRDRFhirContext ctx, String filePath) {
-        return parse(tClass, ctx.getCtx().newJsonParser(), getInputStream(filePath), null);
+        return parseWithConfiguredParser(tClass, ctx.getJsonParser(false), fileReader(filePath), null);
+    }
+
+    // null when the file cannot be opened, like getInputStream
+    private static Reader fileReader(String filePath) {
+        InputStream stream = getInputStream(filePath);
+        if (stream == null) {
+            return null;
+        }
+        try {
+            return utf8Reader(Gzip.decompressIfGzipped(stream));
+        } catch (IOException e) {
+            closeQuietly(stream);
+            throw new IllegalArgumentException("Unable to parse bundle, exception: " + e);
+        }
     }
 
+    /**
+     * Parses with the given parser, which is made lenient first. A parser from {@link VRDRFhirContext#getParser} is
+     * shared with later callers on the thread and is not reconfigured, so only its lenient variant is accepted.
+     */
     public static <T extends Bundle> T parse(Class<T> tClass, IParser parser, InputStream stream, String bundleString) {
         if (stream != null && bundleString != null) {
             throw new IllegalArgumentException("Cannot parse from both a stream and a string, one must be null");
         }
-        try (InputStreamReader reader = stream == null ? null : new InputStreamReader(stream)) {
+        if (!VRDRFhirContext.isSharedParser(parser)) {
             parser.setParserErrorHandler(new LenientErrorHandler());
-            Bundle bundle = reader != null
-                    ? parser.setParserErrorHandler(new LenientErrorHandler()).parseResource(Bundle.class, reader)
-                    : parser.setParserErrorHandler(new LenientErrorHandler()).parseResource(Bundle.class, bundleString);
-            if (BaseMessage.class.isAssignableFrom(tClass)) {
-                return (T) tClass.getConstructor(Bundle.class).newInstance(bundle);
-            } else if (Bundle.class.isAssignableFrom(tClass)) {
-                return (T) bundle;
+        } else if (!VRDRFhirContext.isSharedLenientParser(parser)) {
+            throw new IllegalArgumentException("A strict parser from the context cannot be made lenient, it is shared;"
+                    + " pass a lenient one or a parser of your own");
+        }
+        return parseWithConfiguredParser(tClass, parser, utf8Reader(stream), bundleString);
+    }
+
+    // reads the JSON tree the way HAPI does, for parseJsonForRelay
+    private static final Gson RELAY_GSON = new GsonBuilder().disableHtmlEscaping().create();
+
+    // files up to this size are read into memory, larger ones are memory mapped
+    public static final long MEMORY_MAP_THRESHOLD = 1024 * 1024;
+
+    // parses a JSON or XML file, telling the two apart from the first non-whitespace byte, a gzipped file is
+    // decompressed as it is parsed
+    public static <T extends Bundle> T parse(Class<T> tClass, VRDRFhirContext ctx, Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(2);
+            channel.read(header, 0);
+            header.flip();
+            if (Gzip.isGzipped(header)) {
+                return parse(tClass, ctx, Channels.newInputStream(channel));
+            } else if (size <= MEMORY_MAP_THRESHOLD) {
+                ByteBuffer buffer = ByteBuffer.allocate((int) size);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) {
+                        break;
+                    }
+                }
+                buffer.flip();
+                return parse(tClass, ctx, buffer);
+            } else if (size <= Integer.MAX_VALUE) {
+                return parse(tClass, ctx, channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
             } else {
-                throw new IllegalArgumentException("Cannot parse to class " + tClass.getName());
+                throw new IllegalArgumentException("Unable to parse bundle, file is larger than 2 GB: " + path);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to parse bundle, exception: " + e);
+        }
+    }
+
+    public static <T extends Bundle> T parse(Class<T> tClass, VRDRFhirContext ctx, byte[] bytes) {
+        return parse(tClass, ctx, ByteBuffer.wrap(bytes));
+    }
+
+    // parses the remaining bytes of the buffer as UTF-8 without copying them, the buffer position is not changed,
+    // gzipped bytes are decompressed as they are parsed
+    public static <T extends Bundle> T parse(Class<T> tClass, VRDRFhirContext ctx, ByteBuffer buffer) {
+        if (Gzip.isGzipped(buffer)) {
+            return parse(tClass, ctx, new ByteBufferInputStream(buffer.duplicate()));
+        }
+        EncodingEnum encoding = detectEncoding(buffer);
+        return parseWithConfiguredParser(tClass, ctx.getParser(encoding, false, true), utf8Reader(buffer), null);
+    }
+
+    /**
+     * Parses a JSON or XML stream, gzipped or not, telling them apart like {@link #parse(Class, VRDRFhirContext, Path)}.
+     * The content is decoded as it is read, it is never held as one String. The stream is closed.
+     */
+    public static <T extends Bundle> T parse(Class<T> tClass, VRDRFhirContext ctx, InputStream stream) {
+        InputStream content;
+        EncodingEnum encoding;
+        try {
+            content = Gzip.decompressIfGzipped(stream);
+            encoding = detectEncoding(readAhead(content));
+        } catch (IOException e) {
+            closeQuietly(stream);
+            throw new IllegalArgumentException("Unable to parse bundle, exception: " + e);
+        } catch (RuntimeException e) {
+            closeQuietly(stream);
+            throw e;
+        }
+        return parseWithConfiguredParser(tClass, ctx.getParser(encoding, false, true), utf8Reader(content), null);
+    }
+
+    // enough for the whitespace a pretty printer leaves before the root
+    private static final int ENCODING_LOOKAHEAD = 4096;
+
+    // reads the first bytes of a markable stream ahead to tell the encoding, leaving the stream past any byte order
+    // mark among them
+    private static ByteBuffer readAhead(InputStream content) throws IOException {
+        byte[] lead = new byte[ENCODING_LOOKAHEAD];
+        content.mark(lead.length);
+        int length = 0;
+        for (int read; length < lead.length && (read = content.read(lead, length, lead.length - length)) > 0; ) {
+            length += read;
+        }
+        content.reset();
+        ByteBuffer leadBuffer = ByteBuffer.wrap(lead, 0, length);
+        if (hasByteOrderMark(leadBuffer)) {
+            content.skip(3);
+        }
+        return leadBuffer;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+            // the parse error is the one worth reporting
+        }
+    }
+
+    /**
+     * Parses like {@link #parseJson(Class, VRDRFhirContext, String)}, but reports bad content in the returned result
+     * instead of throwing. The bundle and message type checks the message constructors make are done up front from the
+     * header, so a batch with many records of the wrong type or without a header does not pay for building and
+     * unwinding an exception for each of them.
+     * <p>
+     * Only those checks avoid the exception. Content that is not a readable bundle is still reported by catching the
+     * exception the FHIR parser throws for it, and so is a problem only a message constructor knows about, such as one
+     * of a class missing from {@link MessageTypeRegistry}. Such records cost about what they cost in the throwing parse
+     * methods; the result just saves the caller the catch.
+     */
+    public static <T extends Bundle> ParseResult<T> tryParseJson(Class<T> tClass, VRDRFhirContext ctx, String jsonString) {
+        return tryParseWithConfiguredParser(tClass, ctx.getJsonParser(false), null, jsonString);
+    }
+
+    // see tryParseJson for which failures avoid an exception
+    public static <T extends Bundle> ParseResult<T> tryParseXML(Class<T> tClass, VRDRFhirContext ctx, String xmlString) {
+        return tryParseWithConfiguredParser(tClass, ctx.getXmlParser(false), null, xmlString);
+    }
+
+    public static <T extends Bundle> ParseResult<T> tryParse(Class<T> tClass, VRDRFhirContext ctx, byte[] bytes) {
+        return tryParse(tClass, ctx, ByteBuffer.wrap(bytes));
+    }
+
+    // accepts what parse(Class, VRDRFhirContext, ByteBuffer) does, gzipped bytes included; content that is neither JSON
+    // nor XML is reported without an exception, the rest as for tryParseJson
+    public static <T extends Bundle> ParseResult<T> tryParse(Class<T> tClass, VRDRFhirContext ctx, ByteBuffer buffer) {
+        InputStream content = null;
+        int first;
+        if (Gzip.isGzipped(buffer)) {
+            try {
+                content = Gzip.decompressIfGzipped(new ByteBufferInputStream(buffer.duplicate()));
+                first = firstContentByte(readAhead(content));
+            } catch (IOException e) {
+                return ParseResult.failure(null, OperationOutcome.IssueType.STRUCTURE,
+                        "Unable to parse bundle, exception: " + e);
+            }
+        } else {
+            first = firstContentByte(buffer);
+        }
+        if (first != '<' && first != '{') {
+            return ParseResult.failure(null, OperationOutcome.IssueType.STRUCTURE, unknownContentErrorMessage(first));
+        }
+        EncodingEnum encoding = first == '<' ? EncodingEnum.XML : EncodingEnum.JSON;
+        return tryParseWithConfiguredParser(tClass, ctx.getParser(encoding, false, true),
+                content != null ? utf8Reader(content) : utf8Reader(buffer), null);
+    }
+
+    // decodes the remaining bytes of the buffer without copying them or moving its position
+    private static Reader utf8Reader(ByteBuffer buffer) {
+        ByteBuffer content = buffer.duplicate();
+        // the UTF-8 decoder keeps a byte order mark, which neither parser accepts before the root
+        if (hasByteOrderMark(content)) {
+            content.position(content.position() + 3);
+        }
+        return new InputStreamReader(new ByteBufferInputStream(content), StandardCharsets.UTF_8);
+    }
+
+    // XML when the first byte after any whitespace and byte order mark is '<', JSON when it is '{'
+    public static EncodingEnum detectEncoding(ByteBuffer buffer) {
+        int first = firstContentByte(buffer);
+        if (first == '<') {
+            return EncodingEnum.XML;
+        } else if (first == '{') {
+            return EncodingEnum.JSON;
+        }
+        throw new IllegalArgumentException(unknownContentErrorMessage(first));
+    }
+
+    // the first byte after any whitespace and byte order mark, -1 when there is none
+    private static int firstContentByte(ByteBuffer buffer) {
+        int position = hasByteOrderMark(buffer) ? buffer.position() + 3 : buffer.position();
+        for (int i = position; i < buffer.limit(); i++) {
+            byte b = buffer.get(i);
+            if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                return b & 0xFF;
+            }
+        }
+        return -1;
+    }
+
+    private static String unknownContentErrorMessage(int first) {
+        return first < 0 ? "Unable to parse bundle, content is empty"
+                : "Unable to parse bundle, content is neither JSON nor XML, first character was: '" + (char) first + "'";
+    }
+
+    private static boolean hasByteOrderMark(ByteBuffer buffer) {
+        int position = buffer.position();
+        return buffer.limit() - position >= 3 && (buffer.get(position) & 0xFF) == 0xEF
+                && (buffer.get(position + 1) & 0xFF) == 0xBB && (buffer.get(position + 2) & 0xFF) == 0xBF;
+    }
+
+    // reads a buffer from its position to its limit, advancing the position
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
             }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    private static Reader utf8Reader(InputStream stream) {
+        return stream == null ? null : new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+    }
+
+    // parsers handed out by the context cache are already lenient, so leave their error handler alone
+    private static <T extends Bundle> T parseWithConfiguredParser(Class<T> tClass, IParser parser, Reader streamReader,
+            String bundleString) {
+        try (Reader reader = streamReader) {
+            Bundle bundle = reader != null
+                    ? parser.parseResource(Bundle.class, reader)
+                    : parser.parseResource(Bundle.class, bundleString);
+            return wrapBundle(tClass, bundle);
+        } catch (MessageParseException e) {
+            throw e;
         } catch (InvocationTargetException e) {
             if (e.getTargetException() instanceof MessageParseException) {
                 throw (MessageParseException) e.getTargetException();
@@ -553,68 +999,174 @@ public class BaseMessage extends Bundle {
         }
     }
 
+    private static <T extends Bundle> ParseResult<T> tryParseWithConfiguredParser(Class<T> tClass, IParser parser,
+            Reader streamReader, String bundleString) {
+        Bundle bundle;
+        try (Reader reader = streamReader) {
+            bundle = reader != null
+                    ? parser.parseResource(Bundle.class, reader)
+                    : parser.parseResource(Bundle.class, bundleString);
+        } catch (Exception e) {
+            return ParseResult.failure(null, OperationOutcome.IssueType.STRUCTURE,
+                    "Unable to parse bundle, exception: " + e);
+        }
+
+        if (BaseMessage.class.isAssignableFrom(tClass)) {
+            String errorMessage = checkMessageBundle((Class<? extends BaseMessage>) tClass, bundle);
+            if (errorMessage != null) {
+                return ParseResult.failure(bundle, OperationOutcome.IssueType.INVALID, errorMessage);
+            }
+        } else if (!tClass.isInstance(bundle)) {
+            return ParseResult.failure(bundle, OperationOutcome.IssueType.INVALID, "Parsed bundle is of type "
+                    + bundle.getClass().getCanonicalName() + " not of expected type " + tClass.getCanonicalName());
+        }
+
+        // content problems only the message constructors know about are still thrown by them and caught here
+        try {
+            return ParseResult.success(wrapBundle(tClass, bundle));
+        } catch (InvocationTargetException e) {
+            return ParseResult.failure(bundle, OperationOutcome.IssueType.EXCEPTION,
+                    e.getTargetException() instanceof MessageParseException
+                            ? e.getTargetException().getMessage()
+                            : "Unable to instantiate class with bundle parameter, exception: " + e.getMessage());
+        } catch (MessageParseException e) {
+            return ParseResult.failure(bundle, OperationOutcome.IssueType.EXCEPTION, e.getMessage());
+        } catch (Exception e) {
+            return ParseResult.failure(bundle, OperationOutcome.IssueType.EXCEPTION,
+                    "Unable to parse bundle, exception: " + e);
+        }
+    }
+
+    private static <T extends Bundle> T wrapBundle(Class<T> tClass, Bundle bundle) throws ReflectiveOperationException {
+        if (tClass == BaseMessage.class) {
+            return (T) createMessage(bundle);
+        } else if (BaseMessage.class.isAssignableFrom(tClass)) {
+            Function<Bundle, ? extends BaseMessage> factory = MessageTypeRegistry.getFactory((Class<? extends BaseMessage>) tClass);
+            return factory != null ? (T) factory.apply(bundle) : tClass.getConstructor(Bundle.class).newInstance(bundle);
+        } else if (Bundle.class.isAssignableFrom(tClass)) {
+            return (T) bundle;
+        } else {
+            throw new IllegalArgumentException("Cannot parse to class " + tClass.getName());
+        }
+    }
+
+    // the checks createMessage and the message constructors make, returning the error text they would throw, or null
+    // when the bundle passes them or the class was not registered, as then only its constructor knows what it accepts
+    private static String checkMessageBundle(Class<? extends BaseMessage> tClass, Bundle bundle) {
+        MessageHeader header = CommonUtil.findEntry(bundle, MessageHeader.class, true);
+        String messageType = header != null && header.getEvent() instanceof UriType
+                ? ((UriType) header.getEvent()).getValue()
+                : null;
+        String expectedType;
+        if (tClass == BaseMessage.class) {
+            if (header == null || header.isEmpty()) {
+                return "Failed to find a Bundle Entry containing a Resource of type MessageHeader";
+            } else if (messageType == null) {
+                return "Message type was missing from MessageHeader";
+            } else if (MessageTypeRegistry.getFactory(messageType) == null) {
+                return "Unsupported message type: " + messageType;
+            }
+            expectedType = messageType;
+        } else {
+            expectedType = MessageTypeRegistry.getEventUri(tClass);
+            if (expectedType == null) {
+                return null;
+            }
+        }
+
+        if (bundle.getType() != BundleType.MESSAGE) {
+            return "The FHIR Bundle must be of type message, not " + bundle.getType();
+        } else if (header == null) {
+            return "Failed to find a Bundle Entry containing a Resource of type " + MessageHeader.class.getCanonicalName();
+        } else if (CommonUtil.findEntry(bundle, Parameters.class, true) == null) {
+            return "Failed to find a Bundle Entry containing a Resource of type " + Parameters.class.getCanonicalName();
+        } else if (!expectedType.equals(messageType)) {
+            return getMessageEventTypeMismatchErrorMessage(messageType, expectedType);
+        }
+        return null;
+    }
+
     public static List<BaseMessage> parseBundleOfBundles(VRDRFhirContext ctx, String bundleStrings) {
         Bundle outerBundle = BaseMessage.parseJsonBundleOfBundles(Bundle.class, ctx, bundleStrings);
         List<BaseMessage> listMessages = new ArrayList();
         ListIterator iterator = outerBundle.getEntry().listIterator();
-        BaseMessage message;
-        String messageType;
         while (iterator.hasNext()) {
             BundleEntryComponent bundleEntryComponent = (BundleEntryComponent) iterator.next();
             Resource resource = bundleEntryComponent.getResource();
             if (resource.getResourceType().toString().equals("Bundle")) {
                 Bundle bundle = (Bundle) resource;
                 if (bundle != null) {
-                    message = new BaseMessage(bundle, true);
-                    messageType = message.getMessageType();
-                    switch (messageType) {
-                        case DeathRecordSubmissionMessage.MESSAGE_TYPE:
-                            listMessages.add(new DeathRecordSubmissionMessage(bundle));
-                            break;
-                        case DeathRecordUpdateMessage.MESSAGE_TYPE:
-                            listMessages.add(new DeathRecordUpdateMessage(bundle));
-                            break;
-                        case AcknowledgementMessage.MESSAGE_TYPE:
-                            listMessages.add(new AcknowledgementMessage(bundle));
-                            break;
-                        case DeathRecordVoidMessage.MESSAGE_TYPE:
-                            listMessages.add(new DeathRecordVoidMessage(bundle));
-                            break;
-                        case DeathRecordAliasMessage.MESSAGE_TYPE:
-                            listMessages.add(new DeathRecordAliasMessage(bundle));
-                            break;
-                        case CauseOfDeathCodingMessage.MESSAGE_TYPE:
-                            listMessages.add(new CauseOfDeathCodingMessage(bundle));
-                            break;
-                        case DemographicsCodingMessage.MESSAGE_TYPE:
-                            listMessages.add(new DemographicsCodingMessage(bundle));
-                            break;
-                        case CauseOfDeathCodingUpdateMessage.MESSAGE_TYPE:
-                            listMessages.add(new CauseOfDeathCodingUpdateMessage(bundle));
-                            break;
-                        case DemographicsCodingUpdateMessage.MESSAGE_TYPE:
-                            listMessages.add(new DemographicsCodingUpdateMessage(bundle));
-                            break;
-                        case ExtractionErrorMessage.MESSAGE_TYPE:
-                            listMessages.add(new ExtractionErrorMessage(bundle));
-                            break;
-                        case StatusMessage.MESSAGE_TYPE:
-                            listMessages.add(new StatusMessage(bundle));
-                            break;
-                        default:
-                            String errorText;
-                            if (message.messageHeader == null || message.messageHeader.isEmpty()) {
-                                errorText = "Failed to find a Bundle Entry containing a Resource of type MessageHeader";
-                            } else if (messageType == null) {
-                                errorText = "Message type was missing from MessageHeader";
-                            } else {
-                                errorText = "Unsupported message type: " + messageType;
-                            }
-                            throw new MessageParseException(errorText, message);
-                    }
+                    listMessages.add(createMessage(bundle));
                 }
             }
         }
         return listMessages;
     }
+
+    // reads one inner message at a time, close the stream when done with it
+    public static Stream<BaseMessage> streamBundleOfBundles(VRDRFhirContext ctx, Reader reader) {
+        return new BundleOfBundlesReader(ctx, reader).stream();
+    }
+
+    public static Stream<BaseMessage> streamBundleOfBundles(VRDRFhirContext ctx, InputStream stream) {
+        return new BundleOfBundlesReader(ctx, stream).stream();
+    }
+
+    // decodes the inner messages on a pool with the given parallelism, entries that fail are reported in the result
+    public static BundleOfBundlesResult parseBundleOfBundlesParallel(VRDRFhirContext ctx, String bundleStrings,
+            int parallelism) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            return parseBundleOfBundlesParallel(ctx, new StringReader(bundleStrings), pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public static BundleOfBundlesResult parseBundleOfBundlesParallel(VRDRFhirContext ctx, Reader reader,
+            ForkJoinPool pool) {
+        try (BundleOfBundlesReader bundleReader = new BundleOfBundlesReader(ctx, reader)) {
+            return bundleReader.readAll(pool);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // writes the messages as a bundle of bundles, encoding them on a pool with the given parallelism
+    public static String encodeBundleOfBundles(VRDRFhirContext ctx, List<? extends BaseMessage> messages,
+            boolean prettyPrint, int parallelism) {
+        StringWriter writer = new StringWriter();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try (BundleOfBundlesWriter bundleWriter = new BundleOfBundlesWriter(ctx, writer, prettyPrint)) {
+            bundleWriter.writeAll(messages, pool);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            pool.shutdown();
+        }
+        return writer.toString();
+    }
+
+    // wraps a parsed bundle in the message class registered for its header event, the same dispatch
+    // parse(BaseMessage.class, ...) uses when the caller does not know the message type up front
+    public static BaseMessage createMessage(Bundle bundle) {
+        MessageHeader header = CommonUtil.findEntry(bundle, MessageHeader.class, true);
+        String messageType = header != null && header.getEvent() instanceof UriType
+                ? ((UriType) header.getEvent()).getValue()
+                : null;
+        Function<Bundle, ? extends BaseMessage> factory = MessageTypeRegistry.getFactory(messageType);
+        if (factory != null) {
+            return factory.apply(bundle);
+        }
+
+        String errorText;
+        if (header == null || header.isEmpty()) {
+            errorText = "Failed to find a Bundle Entry containing a Resource of type MessageHeader";
+        } else if (messageType == null) {
+            errorText = "Message type was missing from MessageHeader";
+        } else {
+            errorText = "Unsupported message type: " + messageType;
+        }
+        throw new MessageParseException(errorText, bundle);
+    }
 }
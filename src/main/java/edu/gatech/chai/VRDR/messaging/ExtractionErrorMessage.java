@@ -96,8 +96,11 @@ public class ExtractionErrorMessage extends BaseMessage {
 
     public void addIssue(OperationOutcome.IssueSeverity issueSeverity, OperationOutcome.IssueType issueType,
             String message) {
-        Issue issue = new Issue(issueSeverity, issueType, message);
-        getIssues().add(issue);
+        OperationOutcome.OperationOutcomeIssueComponent detailEntry = new OperationOutcome.OperationOutcomeIssueComponent();
+        detailEntry.setSeverity(issueSeverity);
+        detailEntry.setCode(issueType);
+        detailEntry.setDiagnostics(message);
+        details.addIssue(detailEntry);
     }
 
     public List<Issue> getIssues() {
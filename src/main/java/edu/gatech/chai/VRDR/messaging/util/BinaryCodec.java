@@ -0,0 +1,495 @@
+package edu.gatech.chai.VRDR.messaging.util;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import edu.gatech.chai.VRDR.context.VRDRFhirContext;
+import edu.gatech.chai.VRDR.context.VRDRProfileRegistry;
+import edu.gatech.chai.VRDR.messaging.BaseMessage;
+import edu.gatech.chai.VRDR.model.util.CommonUtil;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Element;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A compact binary form of resources, documents and messages, for queueing records between stages of one system
+ * rather than for exchange. Every element is written as its class, then its populated children by position in the HAPI
+ * definition, each with a count, and primitives as their string value, all with varint lengths. Strings, class names
+ * included, are written once and referred to by number after that, and profile URLs, the code systems in
+ * {@link CommonUtil} and the model class names are numbered up front, so records share them without writing them at
+ * all. Decoding fills the same model classes HAPI would, so encoding a decoded record to FHIR gives the same JSON or
+ * XML as the record it was encoded from.
+ *
+ * <p>The up front strings come from the library and the positions from the child order of the HAPI definitions, so
+ * both ends must use the same version of the library and of HAPI. A header records a checksum of the up front strings
+ * and of the layouts, the class and child names in order of every composite element a model class can hold, and
+ * decoding with a different one is refused. A codec can be shared by threads.
+ */
+public class BinaryCodec {
+
+    private static final byte[] MAGIC = { 'V', 'R', 'D', 'B' };
+    private static final int FORMAT_VERSION = 1;
+    private static final List<String> DICTIONARY = dictionary();
+    private static final Map<String, Integer> DICTIONARY_NUMBERS = numbers(DICTIONARY);
+    // the layouts of element classes, per HAPI context, kept for as long as the context is
+    private static final Map<FhirContext, Map<String, Layout>> LAYOUTS = Collections.synchronizedMap(new WeakHashMap<>());
+    // the header checksums, per HAPI context as the layouts come from its definitions
+    private static final Map<FhirContext, Integer> CHECKSUMS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final FhirContext ctx;
+    private final Map<String, Layout> layouts;
+    private final int checksum;
+
+    public BinaryCodec(VRDRFhirContext ctx) {
+        this.ctx = ctx.getCtx();
+        this.layouts = LAYOUTS.computeIfAbsent(this.ctx, key -> new ConcurrentHashMap<>());
+        this.checksum = CHECKSUMS.computeIfAbsent(this.ctx, BinaryCodec::checksum);
+    }
+
+    public byte[] encode(Resource resource) {
+        Output out = new Output();
+        out.bytes(MAGIC, MAGIC.length);
+        out.varint(FORMAT_VERSION);
+        out.int32(checksum);
+        writeElement(resource, null, out);
+        return Arrays.copyOf(out.buffer, out.size);
+    }
+
+    // the stream is not closed
+    public void encode(Resource resource, OutputStream stream) throws IOException {
+        stream.write(encode(resource));
+    }
+
+    /**
+     * Decodes a resource, messages are decoded as the plain Bundle they are sent as, like {@code BaseMessage.parseJson}
+     * parses them before wrapping them in their message class.
+     */
+    public Resource decode(byte[] bytes) {
+        Input in = new Input(bytes);
+        for (byte b : MAGIC) {
+            if (in.pos >= bytes.length || bytes[in.pos++] != b) {
+                throw new IllegalArgumentException("Not a binary encoded record");
+            }
+        }
+        int version = in.varint();
+        if (version != FORMAT_VERSION || in.int32() != checksum) {
+            throw new IllegalArgumentException("The record was encoded by an incompatible version of the library");
+        }
+        IBase element;
+        try {
+            element = readElement(in, null, null);
+        } catch (IllegalArgumentException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            // content that does not fit the classes it names, as only a damaged record would have
+            throw new IllegalArgumentException("Malformed binary record: " + e, e);
+        }
+        if (!(element instanceof Resource)) {
+            throw new IllegalArgumentException("The encoded element is not a resource");
+        }
+        if (in.pos != bytes.length) {
+            throw new IllegalArgumentException("Unexpected bytes after the encoded record");
+        }
+        return (Resource) element;
+    }
+
+    public Resource decode(InputStream stream) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        for (int read = stream.read(chunk); read >= 0; read = stream.read(chunk)) {
+            buffer.write(chunk, 0, read);
+        }
+        return decode(buffer.toByteArray());
+    }
+
+    // the class is left out when it is the one type the child can hold
+    private void writeElement(IBase element, String childType, Output out) {
+        // messages are sent as plain bundles, their message class is restored from the header when they are wrapped
+        String type = (element instanceof BaseMessage ? Bundle.class : element.getClass()).getName();
+        if (type.equals(childType)) {
+            out.varint(0);
+        } else {
+            out.varint(1);
+            out.string(type);
+        }
+        Layout layout = layout(type);
+        if (layout.children == null) {
+            IPrimitiveType<?> primitive = (IPrimitiveType<?>) element;
+            String value = primitive.getValueAsString();
+            Element asElement = element instanceof Element ? (Element) element : null;
+            String id = asElement != null ? asElement.getId() : null;
+            boolean hasExtension = asElement != null && asElement.hasExtension();
+            out.varint((value != null ? 1 : 0) | (id != null ? 2 : 0) | (hasExtension ? 4 : 0));
+            if (value != null) {
+                out.string(value);
+            }
+            if (id != null) {
+                out.string(id);
+            }
+            if (hasExtension) {
+                writeValues(asElement.getExtension(), null, out);
+            }
+            return;
+        }
+        for (int i = 0; i < layout.children.length; i++) {
+            List<? extends IBase> values = layout.children[i].getAccessor().getValues(element);
+            if (!values.isEmpty() && hasContent(values)) {
+                out.varint(i + 1);
+                writeValues(values, layout.childTypes[i], out);
+            }
+        }
+        out.varint(0);
+    }
+
+    private void writeValues(List<? extends IBase> values, String childType, Output out) {
+        int count = 0;
+        for (IBase value : values) {
+            if (value != null && !value.isEmpty()) {
+                count++;
+            }
+        }
+        out.varint(count);
+        for (IBase value : values) {
+            if (value != null && !value.isEmpty()) {
+                writeElement(value, childType, out);
+            }
+        }
+    }
+
+    private static boolean hasContent(List<? extends IBase> values) {
+        for (IBase value : values) {
+            if (value != null && !value.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private IBase readElement(Input in, BaseRuntimeChildDefinition child, String childType) {
+        int tag = in.varint();
+        if (tag == 0 && childType == null) {
+            throw new IllegalArgumentException("Missing element class at byte " + in.pos);
+        }
+        Layout layout = layout(tag == 0 ? childType : in.string());
+        Object argument = child != null ? child.getInstanceConstructorArguments() : null;
+        IBase element = argument != null ? layout.definition.newInstance(argument) : layout.definition.newInstance();
+        if (layout.children == null) {
+            int flags = in.varint();
+            if ((flags & 1) != 0) {
+                ((IPrimitiveType<?>) element).setValueAsString(in.string());
+            }
+            if ((flags & 2) != 0) {
+                ((Element) element).setId(in.string());
+            }
+            if ((flags & 4) != 0) {
+                for (int count = in.varint(); count > 0; count--) {
+                    ((Element) element).addExtension((Extension) readElement(in, null, null));
+                }
+            }
+            return element;
+        }
+        if (layout.clearOnCreate) {
+            clear(layout, element);
+        }
+        for (int position = in.varint(); position != 0; position = in.varint()) {
+            if (position > layout.children.length) {
+                throw new IllegalArgumentException("Unknown child " + position + " of " + layout.definition.getName());
+            }
+            BaseRuntimeChildDefinition valueChild = layout.children[position - 1];
+            for (int count = in.varint(); count > 0; count--) {
+                valueChild.getMutator().addValue(element, readElement(in, valueChild, layout.childTypes[position - 1]));
+            }
+        }
+        return element;
+    }
+
+    // model classes fill in their profile, an id and fixed codes when created, which the decoded values replace
+    private static void clear(Layout layout, IBase element) {
+        for (BaseRuntimeChildDefinition child : layout.children) {
+            if (child.getMax() == 1) {
+                child.getMutator().setValue(element, null);
+            } else {
+                child.getAccessor().getValues(element).clear();
+            }
+        }
+    }
+
+    private Layout layout(String className) {
+        Layout layout = layouts.get(className);
+        if (layout == null) {
+            layout = newLayout(className);
+            layouts.put(className, layout);
+        }
+        return layout;
+    }
+
+    private Layout newLayout(String className) {
+        Class<?> type;
+        try {
+            type = Class.forName(className, false, BinaryCodec.class.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException("Unknown element class " + className);
+        }
+        if (!IBase.class.isAssignableFrom(type)) {
+            throw new IllegalArgumentException("Not a FHIR element class " + className);
+        }
+        @SuppressWarnings("unchecked")
+        BaseRuntimeElementDefinition<?> definition = ctx.getElementDefinition((Class<? extends IBase>) type);
+        if (definition == null) {
+            throw new IllegalArgumentException("No FHIR definition for " + className);
+        }
+        if (IPrimitiveType.class.isAssignableFrom(type)) {
+            return new Layout(definition, null, null, false);
+        }
+        List<BaseRuntimeChildDefinition> children = ((BaseRuntimeElementCompositeDefinition<?>) definition).getChildrenAndExtension();
+        String[] childTypes = new String[children.size()];
+        for (int i = 0; i < childTypes.length; i++) {
+            BaseRuntimeElementDefinition<?> childDefinition = children.get(i).getChildByName(children.get(i).getElementName());
+            childTypes[i] = childDefinition != null ? childDefinition.getImplementingClass().getName() : null;
+        }
+        Layout layout = new Layout(definition, children.toArray(new BaseRuntimeChildDefinition[0]), childTypes, false);
+        IBase created = definition.newInstance();
+        if (!created.isEmpty()) {
+            clear(layout, created);
+            if (!created.isEmpty()) {
+                throw new IllegalStateException("Unable to clear the values " + className + " is created with");
+            }
+            layout = new Layout(definition, layout.children, childTypes, true);
+        }
+        return layout;
+    }
+
+    /*
+     * The dictionary and the layout of every composite element reachable from the model classes and Bundle, as the
+     * class with the name and single type of each child in order. A HAPI upgrade or model change that adds, drops or
+     * moves a child changes it.
+     */
+    private static int checksum(FhirContext ctx) {
+        List<Class<? extends IBase>> roots = new ArrayList<>(VRDRProfileRegistry.DATA_STRUCTURE_PROFILES.values());
+        roots.add(Bundle.class);
+        Map<String, String> signatures = new TreeMap<>();
+        ArrayDeque<BaseRuntimeElementDefinition<?>> pending = new ArrayDeque<>();
+        for (Class<? extends IBase> root : roots) {
+            pending.add(ctx.getElementDefinition(root));
+        }
+        while (!pending.isEmpty()) {
+            BaseRuntimeElementDefinition<?> definition = pending.poll();
+            String className = definition.getImplementingClass().getName();
+            if (!(definition instanceof BaseRuntimeElementCompositeDefinition) || signatures.containsKey(className)) {
+                continue;
+            }
+            StringBuilder signature = new StringBuilder();
+            for (BaseRuntimeChildDefinition child : ((BaseRuntimeElementCompositeDefinition<?>) definition).getChildrenAndExtension()) {
+                BaseRuntimeElementDefinition<?> single = child.getChildByName(child.getElementName());
+                signature.append(child.getElementName()).append(':')
+                        .append(single != null ? single.getImplementingClass().getName() : "*").append(',');
+                for (String name : child.getValidChildNames()) {
+                    BaseRuntimeElementDefinition<?> childDefinition = child.getChildByName(name);
+                    if (childDefinition != null) {
+                        pending.add(childDefinition);
+                    }
+                }
+            }
+            signatures.put(className, signature.toString());
+        }
+        return 31 * DICTIONARY.hashCode() + signatures.toString().hashCode();
+    }
+
+    // the strings numbered up front: profile URLs, model class names and the code systems and URLs in CommonUtil
+    private static List<String> dictionary() {
+        TreeSet<String> strings = new TreeSet<>();
+        for (Map.Entry<String, Class<? extends Resource>> profile : VRDRProfileRegistry.DATA_STRUCTURE_PROFILES.entrySet()) {
+            strings.add(profile.getKey());
+            strings.add(profile.getValue().getName());
+        }
+        strings.addAll(VRDRProfileRegistry.MESSAGE_PROFILES.keySet());
+        for (Field field : CommonUtil.class.getFields()) {
+            if (field.getType() == String.class && Modifier.isStatic(field.getModifiers()) && Modifier.isFinal(field.getModifiers())) {
+                try {
+                    if (field.get(null) != null) {
+                        strings.add((String) field.get(null));
+                    }
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        return Collections.unmodifiableList(new ArrayList<>(strings));
+    }
+
+    private static Map<String, Integer> numbers(List<String> strings) {
+        Map<String, Integer> numbers = new HashMap<>();
+        for (String string : strings) {
+            numbers.put(string, numbers.size());
+        }
+        return numbers;
+    }
+
+    // where a URL like string is split into the part it likely shares with others and the rest, or -1
+    private static int splitAt(String value) {
+        int slash = value.lastIndexOf('/', value.length() - 2);
+        return value.length() >= 12 && slash >= 8 ? slash : -1;
+    }
+
+    private static class Layout {
+        private final BaseRuntimeElementDefinition<?> definition;
+        // null for primitives
+        private final BaseRuntimeChildDefinition[] children;
+        // the class of the one type each child can hold, null when it can hold more than one
+        private final String[] childTypes;
+        private final boolean clearOnCreate;
+
+        Layout(BaseRuntimeElementDefinition<?> definition, BaseRuntimeChildDefinition[] children, String[] childTypes,
+                boolean clearOnCreate) {
+            this.definition = definition;
+            this.children = children;
+            this.childTypes = childTypes;
+            this.clearOnCreate = clearOnCreate;
+        }
+    }
+
+    private static class Output {
+        private byte[] buffer = new byte[4096];
+        private int size;
+        // the strings written so far that are not in the dictionary, numbered after it
+        private final Map<String, Integer> strings = new HashMap<>();
+
+        void varint(int value) {
+            ensure(5);
+            while ((value & ~0x7f) != 0) {
+                buffer[size++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buffer[size++] = (byte) value;
+        }
+
+        void int32(int value) {
+            ensure(4);
+            buffer[size++] = (byte) (value >>> 24);
+            buffer[size++] = (byte) (value >>> 16);
+            buffer[size++] = (byte) (value >>> 8);
+            buffer[size++] = (byte) value;
+        }
+
+        void bytes(byte[] bytes, int length) {
+            ensure(length);
+            System.arraycopy(bytes, 0, buffer, size, length);
+            size += length;
+        }
+
+        /*
+         * A string seen before is written as its number plus two. A new one is written as one and the strings before
+         * and after its last slash, so URLs share their common leading parts, or as zero and its UTF-8 bytes.
+         */
+        void string(String value) {
+            Integer number = DICTIONARY_NUMBERS.get(value);
+            if (number == null) {
+                number = strings.get(value);
+            }
+            if (number != null) {
+                varint(number + 2);
+                return;
+            }
+            int slash = splitAt(value);
+            if (slash > 0) {
+                varint(1);
+                string(value.substring(0, slash + 1));
+                string(value.substring(slash + 1));
+            } else {
+                byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+                varint(0);
+                varint(utf8.length);
+                bytes(utf8, utf8.length);
+            }
+            strings.put(value, DICTIONARY.size() + strings.size());
+        }
+
+        private void ensure(int length) {
+            if (size + length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + length));
+            }
+        }
+    }
+
+    private static class Input {
+        private final byte[] buffer;
+        private int pos;
+        // the strings read so far that are not in the dictionary
+        private final List<String> strings = new ArrayList<>();
+
+        Input(byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        int varint() {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                byte b = next();
+                value |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed length at byte " + pos);
+        }
+
+        int int32() {
+            return (next() & 0xff) << 24 | (next() & 0xff) << 16 | (next() & 0xff) << 8 | (next() & 0xff);
+        }
+
+        String string() {
+            int number = varint() - 2;
+            if (number >= 0) {
+                if (number < DICTIONARY.size()) {
+                    return DICTIONARY.get(number);
+                } else if (number - DICTIONARY.size() >= strings.size()) {
+                    throw new IllegalArgumentException("Unknown string " + number + " at byte " + pos);
+                }
+                return strings.get(number - DICTIONARY.size());
+            }
+            String value;
+            if (number == -1) {
+                value = string() + string();
+            } else {
+                int length = varint();
+                if (length < 0 || length > buffer.length - pos) {
+                    throw new IllegalArgumentException("Truncated string at byte " + pos);
+                }
+                value = new String(buffer, pos, length, StandardCharsets.UTF_8);
+                pos += length;
+            }
+            strings.add(value);
+            return value;
+        }
+
+        private byte next() {
+            if (pos >= buffer.length) {
+                throw new IllegalArgumentException("Truncated record");
+            }
+            return buffer[pos++];
+        }
+    }
+}
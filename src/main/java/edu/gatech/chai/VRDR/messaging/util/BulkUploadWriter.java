@@ -0,0 +1,225 @@
+package edu.gatech.chai.VRDR.messaging.util;
+
+import com.google.gson.stream.JsonWriter;
+import edu.gatech.chai.VRDR.context.VRDRFhirContext;
+import edu.gatech.chai.VRDR.messaging.BaseMessage;
+import edu.gatech.chai.VRDR.model.util.UploadUtil;
+import org.hl7.fhir.r4.model.InstantType;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Writes messages into bulk upload payloads one at a time, the streaming counterpart of
+ * {@link UploadUtil#CreateBulkUploadPayload}, which gives the same payload for a list that fits in one batch. Only the
+ * message being appended is held in memory. A payload is finished and the next one started when it holds
+ * {@link #setMaxEntries(int) max entries}, or when the next entry would take it over {@link #setMaxBytes(long) max
+ * bytes} of UTF-8. A message that is larger than the byte budget on its own is written as a payload by itself.
+ *
+ * <p>A writer is not thread safe and must be closed to finish the last payload.
+ */
+public class BulkUploadWriter implements Closeable {
+
+    // opens the stream for a payload, numbered from 1, the writer closes it once the payload is finished
+    @FunctionalInterface
+    public interface PayloadSink {
+        OutputStream open(int payloadNumber) throws IOException;
+    }
+
+    private final VRDRFhirContext ctx;
+    private final String url;
+    private final PayloadSink sink;
+    private int maxEntries = Integer.MAX_VALUE;
+    private long maxBytes = Long.MAX_VALUE;
+    private boolean prettyPrint;
+
+    private OutputStream out;
+    private int payloadCount;
+    private int payloadEntries;
+    private long payloadBytes;
+    private int entryCount;
+    private boolean closed;
+
+    public BulkUploadWriter(VRDRFhirContext ctx, String url, PayloadSink sink) {
+        this.ctx = ctx;
+        this.url = url;
+        this.sink = sink;
+    }
+
+    // writes the payloads to bulk-upload-1.json, bulk-upload-2.json... in the directory
+    public BulkUploadWriter(VRDRFhirContext ctx, String url, Path directory) {
+        this(ctx, url, directory, false);
+    }
+
+    // gzipped payloads are named bulk-upload-1.json.gz... and compressed as they are written, max bytes still counts the
+    // uncompressed JSON
+    public BulkUploadWriter(VRDRFhirContext ctx, String url, Path directory, boolean gzip) {
+        this(ctx, url, payloadNumber -> Gzip.newOutputStream(
+                directory.resolve("bulk-upload-" + payloadNumber + (gzip ? ".json.gz" : ".json"))));
+    }
+
+    public void setMaxEntries(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("A payload must be allowed at least one entry");
+        }
+        this.maxEntries = maxEntries;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("A payload must be allowed at least one byte");
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    public void setPrettyPrint(boolean prettyPrint) {
+        this.prettyPrint = prettyPrint;
+    }
+
+    public void append(BaseMessage message) throws IOException {
+        checkOpen();
+        appendEntry(encodeEntry(message));
+    }
+
+    /**
+     * Appends the messages in order, encoding their entries on the pool, one task per message. Payloads are rotated
+     * the same way as when appending them one at a time. The messages must not be modified until this returns.
+     */
+    public void appendAll(List<? extends BaseMessage> messages, ForkJoinPool pool) throws IOException {
+        checkOpen();
+        ParallelEncoding.encodeInOrder(messages, message -> {
+            try {
+                return encodeEntry(message);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, pool, this::appendEntry);
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("The bulk upload writer is closed");
+        }
+    }
+
+    private void appendEntry(byte[] entry) throws IOException {
+        if (out != null && payloadBytes + separator().length + entry.length + tail().length > maxBytes) {
+            finishPayload();
+        }
+        if (out == null) {
+            startPayload();
+        }
+        write(payloadEntries == 0 ? firstSeparator() : separator());
+        write(entry);
+        payloadEntries++;
+        entryCount++;
+        if (payloadEntries >= maxEntries) {
+            finishPayload();
+        }
+    }
+
+    // the number of payloads started so far
+    public int getPayloadCount() {
+        return payloadCount;
+    }
+
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            finishPayload();
+        }
+    }
+
+    private void startPayload() throws IOException {
+        out = new BufferedOutputStream(sink.open(++payloadCount));
+        payloadEntries = 0;
+        payloadBytes = 0;
+        write(head());
+    }
+
+    private void finishPayload() throws IOException {
+        if (out != null) {
+            try {
+                write(tail());
+            } finally {
+                OutputStream finished = out;
+                out = null;
+                finished.close();
+            }
+        }
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        out.write(bytes);
+        payloadBytes += bytes.length;
+    }
+
+    // the batch bundle up to the opening of its entry array, laid out like the HAPI encoder would
+    private byte[] head() throws IOException {
+        StringWriter head = new StringWriter();
+        JsonWriter json = newJsonWriter(head);
+        json.beginObject();
+        json.name("resourceType").value("Bundle");
+        json.name("id").value(UUID.randomUUID().toString());
+        json.name("type").value("batch");
+        json.name("timestamp").value(new InstantType(new Date()).getValueAsString());
+        json.name("entry").beginArray();
+        json.flush();
+        return head.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] tail() {
+        return (prettyPrint ? "\n  ]\n}" : "]}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] firstSeparator() {
+        return (prettyPrint ? "\n    " : "").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] separator() {
+        return (prettyPrint ? ",\n    " : ",").getBytes(StandardCharsets.UTF_8);
+    }
+
+    // one entry of the entry array, indented for its place in the payload, safe to call from several threads
+    private byte[] encodeEntry(BaseMessage message) throws IOException {
+        String resource = ctx.getJsonParser(prettyPrint).encodeResourceToString(message);
+        ByteArrayOutputStream entryBuffer = new ByteArrayOutputStream(resource.length() + 128);
+        Writer writer = new OutputStreamWriter(entryBuffer, StandardCharsets.UTF_8);
+        JsonWriter json = newJsonWriter(prettyPrint ? new IndentingWriter(writer, "    ") : writer);
+        json.beginObject();
+        json.name("resource").jsonValue(prettyPrint ? resource.replace("\n", "\n  ") : resource);
+        json.name("request").beginObject();
+        json.name("method").value("POST");
+        json.name("url").value(url);
+        json.endObject();
+        json.endObject();
+        json.flush();
+        return entryBuffer.toByteArray();
+    }
+
+    private JsonWriter newJsonWriter(Writer writer) {
+        JsonWriter json = new JsonWriter(writer);
+        if (prettyPrint) {
+            json.setIndent("  ");
+        }
+        return json;
+    }
+}
@@ -0,0 +1,265 @@
+package edu.gatech.chai.VRDR.messaging.util;
+
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.JsonParser4BundleOfBundles;
+import ca.uhn.fhir.parser.LenientErrorHandler;
+import ca.uhn.fhir.parser.json.GsonStructure;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.MalformedJsonException;
+import edu.gatech.chai.VRDR.context.VRDRFhirContext;
+import edu.gatech.chai.VRDR.messaging.BaseMessage;
+import org.hl7.fhir.r4.model.Bundle;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Reads the messages of a JSON bundle of bundles, such as an NCHS bulk response, one entry at a time. Only the entry
+ * being parsed is held in memory, so the heap needed does not grow with the size of the batch the way it does for
+ * {@link BaseMessage#parseBundleOfBundles(VRDRFhirContext, String)}. Entries that are not bundles are skipped, like
+ * they are there, and the rest of the outer bundle after the entry array is not read.
+ *
+ * <p>A reader is not thread safe and must be closed, or used through {@link #stream()} in a try-with-resources.
+ */
+public class BundleOfBundlesReader implements Iterator<BaseMessage>, Closeable {
+
+    private final VRDRFhirContext ctx;
+    private final JsonReader reader;
+    private final JsonParser4BundleOfBundles parser;
+    private final JsonParser jsonParser = new JsonParser();
+    private boolean started;
+    private boolean finished;
+    private int entryIndex;
+    private BaseMessage next;
+
+    public BundleOfBundlesReader(VRDRFhirContext ctx, Reader reader) {
+        this.ctx = ctx;
+        this.reader = new JsonReader(reader);
+        this.parser = new JsonParser4BundleOfBundles(ctx.getCtx(), new LenientErrorHandler());
+    }
+
+    // the stream may be gzipped, it is decompressed as it is read
+    public BundleOfBundlesReader(VRDRFhirContext ctx, InputStream stream) {
+        this(ctx, new BufferedReader(Gzip.utf8Reader(stream)));
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !finished) {
+            try {
+                next = readNext();
+            } catch (JsonIOException e) {
+                // Gson wraps what the underlying reader throws, such as a limit on the stream being passed
+                finished = true;
+                if (e.getCause() instanceof IOException && !(e.getCause() instanceof EOFException)
+                        && !(e.getCause() instanceof MalformedJsonException)) {
+                    throw new UncheckedIOException((IOException) e.getCause());
+                }
+                throw new IllegalArgumentException("Unable to parse bundle, exception: " + e);
+            } catch (JsonParseException | IllegalStateException | DataFormatException | EOFException
+                    | MalformedJsonException e) {
+                finished = true;
+                throw new IllegalArgumentException("Unable to parse bundle, exception: " + e);
+            } catch (IOException e) {
+                finished = true;
+                throw new UncheckedIOException(e);
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public BaseMessage next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        BaseMessage message = next;
+        next = null;
+        return message;
+    }
+
+    /**
+     * Returns the remaining messages as a sequential stream, closing the stream closes this reader.
+     */
+    public Stream<BaseMessage> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL),
+                false).onClose(() -> {
+                    try {
+                        close();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+
+    @Override
+    public void close() throws IOException {
+        finished = true;
+        next = null;
+        reader.close();
+    }
+
+    /**
+     * Reads the remaining entries and decodes them on the given pool, one task per entry. The returned messages keep
+     * the order of the entries, an entry that cannot be decoded is reported as a failure with its index in the entry
+     * array instead of failing the whole batch. Only a syntax error in the outer bundle, which makes the remaining
+     * entry boundaries unknown, is thrown.
+     */
+    public BundleOfBundlesResult readAll(ForkJoinPool pool) {
+        List<Entry> entries = new ArrayList<>();
+        try {
+            if (!started) {
+                started = true;
+                finished = !moveToEntries();
+            }
+            while (!finished && reader.hasNext()) {
+                entries.add(readEntry());
+            }
+            if (!finished) {
+                reader.endArray();
+                finished = true;
+            }
+        } catch (JsonIOException e) {
+            // Gson wraps what the underlying reader throws, such as a limit on the stream being passed
+            finished = true;
+            if (e.getCause() instanceof IOException && !(e.getCause() instanceof EOFException)
+                    && !(e.getCause() instanceof MalformedJsonException)) {
+                throw new UncheckedIOException((IOException) e.getCause());
+            }
+            throw new IllegalArgumentException("Unable to parse bundle, exception: " + e);
+        } catch (JsonParseException | IllegalStateException | DataFormatException | EOFException
+                | MalformedJsonException e) {
+            finished = true;
+            throw new IllegalArgumentException("Unable to parse bundle, exception: " + e);
+        } catch (IOException e) {
+            finished = true;
+            throw new UncheckedIOException(e);
+        }
+
+        return ParallelParsing.parseInOrder(entries, entry -> {
+            // parsers are not thread safe, but cheap to create
+            Bundle bundle = decode(new JsonParser4BundleOfBundles(ctx.getCtx(), new LenientErrorHandler()), entry);
+            return bundle == null ? null : BaseMessage.createMessage(bundle);
+        }, (entry, e) -> new BundleOfBundlesResult.EntryFailure(entry.index, entry.fullUrl, e), pool, "bundle entries");
+    }
+
+    private BaseMessage readNext() throws IOException {
+        if (!started) {
+            started = true;
+            if (!moveToEntries()) {
+                finished = true;
+                return null;
+            }
+        }
+        while (reader.hasNext()) {
+            Bundle bundle = decode(parser, readEntry());
+            if (bundle != null) {
+                return BaseMessage.createMessage(bundle);
+            }
+        }
+        reader.endArray();
+        finished = true;
+        return null;
+    }
+
+    // positions the reader inside the outer entry array, skipping the other outer bundle elements before it
+    private boolean moveToEntries() throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("entry".equals(name)) {
+                reader.beginArray();
+                return true;
+            } else if ("resourceType".equals(name)) {
+                String resourceType = reader.nextString();
+                if (!"Bundle".equals(resourceType)) {
+                    throw new DataFormatException("Expected a Bundle of bundles, found resourceType " + resourceType);
+                }
+            } else {
+                reader.skipValue();
+            }
+        }
+        return false;
+    }
+
+    // an outer entry as read from the stream, not decoded yet
+    private static class Entry {
+        final int index;
+        final JsonObject resource;
+        final String fullUrl;
+
+        Entry(int index, JsonObject resource, String fullUrl) {
+            this.index = index;
+            this.resource = resource;
+            this.fullUrl = fullUrl;
+        }
+    }
+
+    private Entry readEntry() throws IOException {
+        JsonObject resource = null;
+        String fullUrl = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("resource".equals(name)) {
+                JsonElement element = jsonParser.parse(reader);
+                resource = element.isJsonObject() ? element.getAsJsonObject() : null;
+            } else if ("fullUrl".equals(name)) {
+                fullUrl = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new Entry(entryIndex++, resource, fullUrl);
+    }
+
+    private Bundle decode(JsonParser4BundleOfBundles parser, Entry entry) {
+        if (entry.resource == null || !isBundle(entry.resource)) {
+            return null;
+        }
+
+        GsonStructure structure = new GsonStructure();
+        structure.setNativeObject(entry.resource);
+        // doParseResource leaves the ids of the inner entries alone, as they are when parsed within the outer bundle
+        Bundle bundle = parser.doParseResource(Bundle.class, structure);
+        // while the outer bundle parse gives each entry resource the id from its fullUrl
+        if (entry.fullUrl != null && !entry.fullUrl.isEmpty()) {
+            String versionId = bundle.getIdElement().getVersionIdPart();
+            bundle.setId(entry.fullUrl);
+            if (versionId != null && !versionId.isEmpty() && !bundle.getIdElement().hasVersionIdPart()) {
+                bundle.setId(bundle.getIdElement().withVersion(versionId));
+            }
+        }
+        return bundle;
+    }
+
+    private boolean isBundle(JsonObject resource) {
+        JsonElement resourceType = resource.get("resourceType");
+        if (resourceType == null || !resourceType.isJsonPrimitive()) {
+            throw new DataFormatException("Missing required element 'resourceType' from JSON resource object, unable to parse");
+        }
+        RuntimeResourceDefinition definition = ctx.getCtx().getResourceDefinition(resourceType.getAsString());
+        return Bundle.class.isAssignableFrom(definition.getImplementingClass());
+    }
+}
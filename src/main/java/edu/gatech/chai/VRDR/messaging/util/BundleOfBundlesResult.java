@@ -0,0 +1,61 @@
+package edu.gatech.chai.VRDR.messaging.util;
+
+import edu.gatech.chai.VRDR.messaging.BaseMessage;
+
+import java.util.Collections;
+import java.util.List;
+
+// the messages read from a bundle of bundles, NDJSON or zip archive in order, and the entries that could not be decoded
+public class BundleOfBundlesResult {
+
+    private final List<BaseMessage> messages;
+    private final List<EntryFailure> failures;
+
+    public BundleOfBundlesResult(List<BaseMessage> messages, List<EntryFailure> failures) {
+        this.messages = Collections.unmodifiableList(messages);
+        this.failures = Collections.unmodifiableList(failures);
+    }
+
+    public List<BaseMessage> getMessages() {
+        return messages;
+    }
+
+    public List<EntryFailure> getFailures() {
+        return failures;
+    }
+
+    public boolean hasFailures() {
+        return !failures.isEmpty();
+    }
+
+    public static class EntryFailure {
+        private final int index;
+        private final String fullUrl;
+        private final RuntimeException exception;
+
+        public EntryFailure(int index, String fullUrl, RuntimeException exception) {
+            this.index = index;
+            this.fullUrl = fullUrl;
+            this.exception = exception;
+        }
+
+        // position of the entry in the outer entry array, counting entries that are not bundles, or the line number of
+        // the line in an NDJSON archive, or the entry number of the entry in a zip archive
+        public int getIndex() {
+            return index;
+        }
+
+        // the name of the entry in a zip archive
+        public String getFullUrl() {
+            return fullUrl;
+        }
+
+        public RuntimeException getException() {
+            return exception;
+        }
+
+        public String getMessage() {
+            return exception.getMessage();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package edu.gatech.chai.VRDR.messaging.util;
+
+import com.google.gson.stream.JsonWriter;
+import edu.gatech.chai.VRDR.context.VRDRFhirContext;
+import edu.gatech.chai.VRDR.messaging.BaseMessage;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Writes messages as a JSON bundle of bundles, the counterpart of {@link BundleOfBundlesReader}. The messages are
+ * entries of a batch-response bundle, like an NCHS bulk response, each written as the plain Bundle
+ * {@link BaseMessage#toJson(VRDRFhirContext, boolean)} gives. Entries are written as they are added, so only the one
+ * being encoded is held in memory, or a window of them when encoding on a pool with {@link #writeAll}.
+ *
+ * <p>A writer is not thread safe and must be closed to finish the bundle, closing it closes the underlying writer.
+ */
+public class BundleOfBundlesWriter implements Closeable {
+
+    private final VRDRFhirContext ctx;
+    private final Writer writer;
+    private final boolean prettyPrint;
+    private boolean started;
+    private boolean closed;
+    private int entryCount;
+
+    public BundleOfBundlesWriter(VRDRFhirContext ctx, Writer writer, boolean prettyPrint) {
+        this.ctx = ctx;
+        this.writer = writer;
+        this.prettyPrint = prettyPrint;
+    }
+
+    public BundleOfBundlesWriter(VRDRFhirContext ctx, OutputStream stream, boolean prettyPrint) {
+        this(ctx, new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8)), prettyPrint);
+    }
+
+    public void write(BaseMessage message) throws IOException {
+        checkOpen();
+        writeEntry(encodeEntry(message));
+    }
+
+    /**
+     * Writes the messages in order, encoding them on the pool, one task per message. The messages must not be modified
+     * until this returns.
+     */
+    public void writeAll(List<? extends BaseMessage> messages, ForkJoinPool pool) throws IOException {
+        checkOpen();
+        ParallelEncoding.encodeInOrder(messages, this::encodeEntry, pool, this::writeEntry);
+    }
+
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            try {
+                if (!started) {
+                    writeHead();
+                }
+                writer.write(prettyPrint ? "\n  ]\n}" : "]}");
+            } finally {
+                writer.close();
+            }
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("The bundle of bundles writer is closed");
+        }
+    }
+
+    private void writeEntry(String entry) throws IOException {
+        if (!started) {
+            writeHead();
+        }
+        if (prettyPrint) {
+            writer.write(entryCount == 0 ? "\n    " : ",\n    ");
+        } else if (entryCount > 0) {
+            writer.write(',');
+        }
+        writer.write(entry);
+        entryCount++;
+    }
+
+    // the outer bundle up to the opening of its entry array, laid out like the HAPI encoder would
+    private void writeHead() throws IOException {
+        started = true;
+        JsonWriter json = newJsonWriter(writer);
+        json.beginObject();
+        json.name("resourceType").value("Bundle");
+        json.name("id").value(UUID.randomUUID().toString());
+        json.name("type").value("batch-response");
+        json.name("entry").beginArray();
+        json.flush();
+    }
+
+    // one entry of the entry array, indented for its place in the bundle, safe to call from several threads
+    private String encodeEntry(BaseMessage message) {
+        String resource = message.toJson(ctx, prettyPrint);
+        StringWriter entry = new StringWriter(resource.length() + 32);
+        try {
+            JsonWriter json = newJsonWriter(prettyPrint ? new IndentingWriter(entry, "    ") : entry);
+            json.beginObject();
+            json.name("resource").jsonValue(prettyPrint ? resource.replace("\n", "\n  ") : resource);
+            json.endObject();
+            json.flush();
+        } catch (IOException e) {
+            // a StringWriter does not throw
+            throw new IllegalStateException(e);
+        }
+        return entry.toString();
+    }
+
+    private JsonWriter newJsonWriter(Writer writer) {
+        JsonWriter json = new JsonWriter(writer);
+        if (prettyPrint) {
+            json.setIndent("  ");
+        }
+        return json;
+    }
+}
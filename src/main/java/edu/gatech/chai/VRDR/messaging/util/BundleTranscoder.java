@@ -0,0 +1,1092 @@
+package edu.gatech.chai.VRDR.messaging.util;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition;
+import ca.uhn.fhir.context.RuntimeChildExtension;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.util.XmlUtil;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
+import edu.gatech.chai.VRDR.context.VRDRFhirContext;
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DecimalType;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.IntegerType;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Converts bundles between JSON and XML without building the FHIR resources in between, writing each element in the
+ * other format as soon as it is read. The FHIR definitions tell which elements repeat, which are primitives and where
+ * a nested resource starts, and a primitive's value and its id and extensions, split between field and _field in
+ * JSON, are joined into one XML element and split again. Apart from properties held back for their order, only one
+ * primitive with its extensions is held at a time, however large the bundle.
+ *
+ * <p>JSON properties may come in any order, while XML elements are in the order of the definitions. The transcode
+ * methods read JSON twice, first to find the objects out of that order, and hold back only the properties that must
+ * wait for a later one, like a fullUrl that follows its resource. The stream methods read once and need that order.
+ *
+ * <p>Some content cannot be converted that way: narrative XHTML, contained resources, comments and elements the
+ * definitions do not know. For those the stream methods throw {@link NotStreamableException}, and the transcode
+ * methods convert the bundle through the object model instead, the way HAPI would. Either way the result is the same
+ * bundle, though streamed output keeps content the lenient parser of the model path would drop.
+ *
+ * <p>An instance can be shared by threads once configured.
+ */
+public class BundleTranscoder {
+
+    private static final String FHIR_NS = "http://hl7.org/fhir";
+    private static final XMLInputFactory XML_INPUT_FACTORY = createXmlInputFactory();
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().serializeNulls().create();
+    private static final Pattern JSON_NUMBER = Pattern.compile("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][+-]?[0-9]+)?");
+    private static final Slot UNKNOWN = new Slot(-1, false, null, null);
+
+    private final VRDRFhirContext ctx;
+    private final Map<BaseRuntimeElementDefinition<?>, Map<String, Slot>> slots = new ConcurrentHashMap<>();
+    private final Slot extensionSlot;
+    private boolean prettyPrint;
+
+    public BundleTranscoder(VRDRFhirContext ctx) {
+        this.ctx = ctx;
+        this.extensionSlot = new Slot(-1, true, Kind.COMPOSITE, ctx.getCtx().getElementDefinition(Extension.class));
+    }
+
+    public void setPrettyPrint(boolean prettyPrint) {
+        this.prettyPrint = prettyPrint;
+    }
+
+    /**
+     * Converts a JSON or XML bundle into the given format, streaming it when it can. Content that is already in that
+     * format is encoded again through the model, like content that cannot be streamed.
+     */
+    public String transcode(String content, EncodingEnum to) {
+        EncodingEnum from = detectEncoding(content);
+        if (from != to) {
+            StringWriter writer = new StringWriter();
+            try {
+                Map<String, int[]> plan = from == EncodingEnum.JSON ? scanOrder(new StringReader(content)) : null;
+                stream(new StringReader(content), from, plan, writer);
+                return writer.toString();
+            } catch (IllegalArgumentException e) {
+                // not streamable, or not well formed, which the model path reports the way it always has
+            } catch (IOException e) {
+                // strings do not throw
+                throw new UncheckedIOException(e);
+            }
+        }
+        Bundle bundle = ctx.getParser(from, false, true).parseResource(Bundle.class, content);
+        return ctx.getParser(to, prettyPrint, true).encodeResourceToString(bundle);
+    }
+
+    /**
+     * Converts a file, gzipped or not, into the given format, replacing the target, which is gzipped when its name ends
+     * in .gz. When the content turns out not to be streamable the source is read again and converted through the model.
+     * The result is written to a temporary file next to the target and moved into place once complete, so a failed
+     * conversion leaves the target as it was. The target must not be the source.
+     */
+    public void transcode(Path source, EncodingEnum to, Path target) throws IOException {
+        if (Files.exists(target) && Files.isSameFile(source, target)) {
+            throw new IllegalArgumentException("Cannot transcode a file into itself: " + target);
+        }
+        EncodingEnum from;
+        try (BufferedReader reader = openReader(source)) {
+            from = detectEncoding(reader);
+        }
+        // named to end like the target, so it is gzipped when the target is
+        Path partial = target.toAbsolutePath().resolveSibling("." + UUID.randomUUID() + "-" + target.getFileName());
+        try {
+            if (from == to || !streamFile(source, from, partial)) {
+                Bundle bundle;
+                try (BufferedReader reader = openReader(source)) {
+                    bundle = ctx.getParser(from, false, true).parseResource(Bundle.class, reader);
+                }
+                try (Writer writer = Gzip.newBufferedWriter(partial)) {
+                    ctx.getParser(to, prettyPrint, true).encodeResourceToWriter(bundle, writer);
+                }
+            }
+            try {
+                Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+    }
+
+    /**
+     * Writes the XML of a JSON bundle while reading it, in a single read, so the properties of each object must be in
+     * the order of the XML elements, as HAPI writes them. Throws {@link NotStreamableException} for content that cannot
+     * be converted that way, and IllegalArgumentException for JSON that is not well formed, leaving what was written so
+     * far incomplete. The writer is flushed but not closed.
+     */
+    public void jsonToXml(Reader json, Writer xml) throws IOException {
+        jsonToXml(json, xml, null);
+    }
+
+    /**
+     * Writes the JSON of an XML bundle while reading it, throwing like {@link #jsonToXml(Reader, Writer)}. The writer
+     * is flushed but not closed.
+     */
+    public void xmlToJson(Reader xml, Writer json) throws IOException {
+        XMLStreamReader reader = null;
+        try {
+            reader = XML_INPUT_FACTORY.createXMLStreamReader(xml);
+            JsonWriter writer = new JsonWriter(json);
+            if (prettyPrint) {
+                writer.setIndent("  ");
+            }
+            if (reader.nextTag() != XMLStreamConstants.START_ELEMENT) {
+                throw new IllegalArgumentException("Unable to parse bundle, no root element");
+            }
+            writeResource(reader, writer);
+            writer.flush();
+        } catch (XMLStreamException e) {
+            throw writeFailure(e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    // nothing left to read from it
+                }
+            }
+        }
+    }
+
+    // false when the content is not streamable, what was written to the target is then incomplete and to be replaced
+    private boolean streamFile(Path source, EncodingEnum from, Path target) throws IOException {
+        try {
+            Map<String, int[]> plan = null;
+            if (from == EncodingEnum.JSON) {
+                try (BufferedReader reader = openReader(source)) {
+                    plan = scanOrder(reader);
+                }
+            }
+            try (BufferedReader reader = openReader(source); Writer writer = Gzip.newBufferedWriter(target)) {
+                stream(reader, from, plan, writer);
+            }
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private void stream(Reader reader, EncodingEnum from, Map<String, int[]> plan, Writer writer) throws IOException {
+        if (from == EncodingEnum.JSON) {
+            jsonToXml(reader, writer, plan);
+        } else {
+            xmlToJson(reader, writer);
+        }
+    }
+
+    // the stream exceptions carry the writer's IOException, anything else is the content
+    private static IOException writeFailure(XMLStreamException e) {
+        if (e.getCause() instanceof IOException) {
+            return (IOException) e.getCause();
+        }
+        throw new IllegalArgumentException("Unable to parse bundle, exception: " + e);
+    }
+
+    // JSON to XML
+
+    /*
+     * JSON may list the properties of an object in any order, but XML elements must be in the order of the definition.
+     * A first read finds the objects whose properties are out of that order, and records them by their path in the
+     * bundle with the definition positions of their properties as they come. Writing then holds back a property only
+     * until the ones that must precede it have been written, so the rest of the bundle still streams.
+     */
+    private Map<String, int[]> scanOrder(Reader reader) throws IOException {
+        try {
+            JsonReader json = new JsonReader(reader);
+            Map<String, int[]> plan = new HashMap<>();
+            scanResource(json, "", plan);
+            if (json.peek() != JsonToken.END_DOCUMENT) {
+                throw new IllegalArgumentException("Unable to parse bundle, content follows the bundle");
+            }
+            return plan;
+        } catch (MalformedJsonException | EOFException | JsonParseException | IllegalStateException
+                | NumberFormatException e) {
+            throw new IllegalArgumentException("Unable to parse bundle, exception: " + e);
+        }
+    }
+
+    private void scanResource(JsonReader json, String path, Map<String, int[]> plan) throws IOException {
+        json.beginObject();
+        scanProperties(json, resourceDefinition(resourceType(json)), true, path, plan);
+        json.endObject();
+    }
+
+    private void scanProperties(JsonReader json, BaseRuntimeElementCompositeDefinition<?> definition, boolean resource,
+            String path, Map<String, int[]> plan) throws IOException {
+        int[] order = new int[8];
+        int count = 0;
+        boolean inOrder = true;
+        String previous = null;
+        while (json.hasNext()) {
+            String name = json.nextName();
+            int index;
+            if (isAttribute(name, definition, resource)) {
+                index = attributeIndex(name);
+                json.skipValue();
+            } else {
+                String elementName = elementName(name);
+                Slot slot = slot(definition, elementName);
+                index = slot.index;
+                if (slot.kind == Kind.PRIMITIVE) {
+                    if (name.startsWith("_")) {
+                        scanPrimitiveContent(json, slot, child(path, name), plan);
+                    } else {
+                        json.skipValue();
+                    }
+                    if (previous != null && (previous.equals("_" + name) || name.equals("_" + previous))) {
+                        // written together with the other half of the primitive
+                        previous = null;
+                        continue;
+                    }
+                } else if (name.startsWith("_")) {
+                    throw new NotStreamableException(name + " is not a primitive in " + definition.getName());
+                } else {
+                    scanElements(json, elementName, slot, path, plan);
+                }
+            }
+            previous = name;
+            if (count > 0 && index <= order[count - 1]) {
+                inOrder = false;
+            }
+            if (count == order.length) {
+                order = Arrays.copyOf(order, count * 2);
+            }
+            order[count++] = index;
+        }
+        if (!inOrder) {
+            int[] sorted = Arrays.copyOf(order, count);
+            Arrays.sort(sorted);
+            for (int i = 1; i < count; i++) {
+                if (sorted[i] == sorted[i - 1]) {
+                    throw new NotStreamableException("An element is split up in " + definition.getName());
+                }
+            }
+            plan.put(path, Arrays.copyOf(order, count));
+        }
+    }
+
+    private void scanElements(JsonReader json, String name, Slot slot, String path, Map<String, int[]> plan)
+            throws IOException {
+        if (slot.repeating) {
+            json.beginArray();
+            for (int i = 0; json.hasNext(); i++) {
+                scanElement(json, slot, item(path, name, i), plan);
+            }
+            json.endArray();
+        } else {
+            scanElement(json, slot, child(path, name), plan);
+        }
+    }
+
+    private void scanElement(JsonReader json, Slot slot, String path, Map<String, int[]> plan) throws IOException {
+        if (slot.kind == Kind.RESOURCE) {
+            scanResource(json, path, plan);
+        } else {
+            json.beginObject();
+            scanProperties(json, (BaseRuntimeElementCompositeDefinition<?>) slot.definition, false, path, plan);
+            json.endObject();
+        }
+    }
+
+    // the extensions of a primitive may be out of order too, anything else wrong with _ is found while writing
+    private void scanPrimitiveContent(JsonReader json, Slot slot, String path, Map<String, int[]> plan)
+            throws IOException {
+        if (slot.repeating && json.peek() == JsonToken.BEGIN_ARRAY) {
+            json.beginArray();
+            for (int i = 0; json.hasNext(); i++) {
+                scanContent(json, child(path, Integer.toString(i)), plan);
+            }
+            json.endArray();
+        } else {
+            scanContent(json, path, plan);
+        }
+    }
+
+    private void scanContent(JsonReader json, String path, Map<String, int[]> plan) throws IOException {
+        if (json.peek() != JsonToken.BEGIN_OBJECT) {
+            json.skipValue();
+            return;
+        }
+        json.beginObject();
+        while (json.hasNext()) {
+            if ("extension".equals(json.nextName()) && json.peek() == JsonToken.BEGIN_ARRAY) {
+                json.beginArray();
+                for (int i = 0; json.hasNext(); i++) {
+                    if (json.peek() == JsonToken.BEGIN_OBJECT) {
+                        scanElement(json, extensionSlot, item(path, "extension", i), plan);
+                    } else {
+                        json.skipValue();
+                    }
+                }
+                json.endArray();
+            } else {
+                json.skipValue();
+            }
+        }
+        json.endObject();
+    }
+
+    private void jsonToXml(Reader json, Writer xml, Map<String, int[]> plan) throws IOException {
+        try {
+            JsonReader reader = new JsonReader(json);
+            XmlOut out = new XmlOut(XmlUtil.createXmlStreamWriter(xml), prettyPrint);
+            writeResource(reader, out, plan != null ? "" : null, plan);
+            if (reader.peek() != JsonToken.END_DOCUMENT) {
+                throw new IllegalArgumentException("Unable to parse bundle, content follows the bundle");
+            }
+            out.writer.flush();
+        } catch (MalformedJsonException | EOFException | JsonParseException | IllegalStateException
+                | NumberFormatException e) {
+            throw new IllegalArgumentException("Unable to parse bundle, exception: " + e);
+        } catch (XMLStreamException e) {
+            throw writeFailure(e);
+        }
+    }
+
+    private void writeResource(JsonReader json, XmlOut xml, String path, Map<String, int[]> plan)
+            throws IOException, XMLStreamException {
+        json.beginObject();
+        String resourceType = resourceType(json);
+        BaseRuntimeElementCompositeDefinition<?> definition = resourceDefinition(resourceType);
+        xml.startElement(resourceType);
+        xml.writer.writeDefaultNamespace(FHIR_NS);
+        writeProperties(json, definition, true, xml, path, plan);
+        json.endObject();
+        xml.endElement();
+    }
+
+    /*
+     * The properties of an object up to its end, the object has been begun and its element started. Without a plan for
+     * the object its properties must come in order, with one a property is written as soon as no property still to
+     * come must precede it, and held until then otherwise.
+     */
+    private void writeProperties(JsonReader json, BaseRuntimeElementCompositeDefinition<?> definition, boolean resource,
+            XmlOut xml, String path, Map<String, int[]> plan) throws IOException, XMLStreamException {
+        int[] order = plan != null ? plan.get(path) : null;
+        int[] lowestAfter = order != null ? lowestAfter(order) : null;
+        TreeMap<Integer, Held> held = new TreeMap<>();
+        int position = 0;
+        int lastIndex = Integer.MIN_VALUE;
+        String name = nextName(json);
+        while (name != null) {
+            boolean attribute = isAttribute(name, definition, resource);
+            String elementName = attribute ? name : elementName(name);
+            Slot slot = attribute ? null : slot(definition, elementName);
+            int index = attribute ? attributeIndex(name) : slot.index;
+            boolean writeNow = true;
+            if (order == null) {
+                if (index <= lastIndex) {
+                    throw new NotStreamableException(name + " is out of order in " + definition.getName());
+                }
+                lastIndex = index;
+            } else {
+                if (position == order.length || order[position] != index) {
+                    throw new NotStreamableException(definition.getName() + " changed since it was first read");
+                }
+                writeNow = lowestAfter[position++] > index;
+                if (writeNow) {
+                    writeHeld(held, index, xml, path, plan);
+                }
+            }
+
+            if (attribute) {
+                // id and an extension's url are attributes in XML, which come before any child element
+                String value = json.nextString();
+                if (writeNow) {
+                    xml.writer.writeAttribute(name, value);
+                } else {
+                    held.put(index, new Held(name, null, new JsonPrimitive(value), null));
+                }
+                name = nextName(json);
+            } else if (slot.kind == Kind.PRIMITIVE) {
+                // the value and its _ properties are next to each other, in either order
+                JsonElement values = null;
+                JsonElement extensions = null;
+                if (name.startsWith("_")) {
+                    extensions = new JsonParser().parse(json);
+                    name = nextName(json);
+                    if (elementName.equals(name)) {
+                        values = new JsonParser().parse(json);
+                        name = nextName(json);
+                    }
+                } else {
+                    values = new JsonParser().parse(json);
+                    name = nextName(json);
+                    if (("_" + elementName).equals(name)) {
+                        extensions = new JsonParser().parse(json);
+                        name = nextName(json);
+                    }
+                }
+                if (writeNow) {
+                    writePrimitive(elementName, slot, values, extensions, xml, path, plan);
+                } else {
+                    held.put(index, new Held(elementName, slot, values, extensions));
+                }
+            } else if (name.startsWith("_")) {
+                throw new NotStreamableException(name + " is not a primitive in " + definition.getName());
+            } else {
+                if (writeNow) {
+                    writeElements(json, elementName, slot, xml, path, plan);
+                } else {
+                    held.put(index, new Held(elementName, slot, new JsonParser().parse(json), null));
+                }
+                name = nextName(json);
+            }
+
+            if (order != null) {
+                writeHeld(held, lowestAfter[position - 1], xml, path, plan);
+            }
+        }
+        writeHeld(held, Integer.MAX_VALUE, xml, path, plan);
+    }
+
+    // the held properties that precede the given definition position, in definition order
+    private void writeHeld(TreeMap<Integer, Held> held, int below, XmlOut xml, String path, Map<String, int[]> plan)
+            throws IOException, XMLStreamException {
+        while (!held.isEmpty() && held.firstKey() < below) {
+            Held property = held.pollFirstEntry().getValue();
+            if (property.slot == null) {
+                xml.writer.writeAttribute(property.name, property.values.getAsString());
+            } else if (property.slot.kind == Kind.PRIMITIVE) {
+                writePrimitive(property.name, property.slot, property.values, property.extensions, xml, path, plan);
+            } else {
+                writeElements(treeReader(property.values), property.name, property.slot, xml, path, plan);
+            }
+        }
+    }
+
+    private void writeElements(JsonReader json, String name, Slot slot, XmlOut xml, String path, Map<String, int[]> plan)
+            throws IOException, XMLStreamException {
+        if (slot.repeating) {
+            json.beginArray();
+            for (int i = 0; json.hasNext(); i++) {
+                writeElement(json, name, slot, xml, item(path, name, i), plan);
+            }
+            json.endArray();
+        } else {
+            writeElement(json, name, slot, xml, child(path, name), plan);
+        }
+    }
+
+    private void writeElement(JsonReader json, String name, Slot slot, XmlOut xml, String path, Map<String, int[]> plan)
+            throws IOException, XMLStreamException {
+        xml.startElement(name);
+        if (slot.kind == Kind.RESOURCE) {
+            writeResource(json, xml, path, plan);
+        } else {
+            json.beginObject();
+            writeProperties(json, (BaseRuntimeElementCompositeDefinition<?>) slot.definition, false, xml, path, plan);
+            json.endObject();
+        }
+        xml.endElement();
+    }
+
+    private void writePrimitive(String name, Slot slot, JsonElement values, JsonElement extensions, XmlOut xml,
+            String path, Map<String, int[]> plan) throws IOException, XMLStreamException {
+        List<JsonElement> valueList = slot.repeating ? items(values) : Collections.singletonList(values);
+        List<JsonElement> extensionList = slot.repeating ? items(extensions) : Collections.singletonList(extensions);
+        for (int i = 0; i < Math.max(valueList.size(), extensionList.size()); i++) {
+            JsonElement value = i < valueList.size() ? valueList.get(i) : null;
+            JsonElement content = i < extensionList.size() ? extensionList.get(i) : null;
+            if (isNull(value) && isNull(content)) {
+                continue;
+            }
+            if (!isNull(value) && !value.isJsonPrimitive()) {
+                throw new NotStreamableException(name + " is not a primitive value");
+            }
+            if (!isNull(content) && !content.isJsonObject()) {
+                throw new NotStreamableException("_" + name + " is not an object");
+            }
+            JsonObject object = isNull(content) ? new JsonObject() : content.getAsJsonObject();
+            for (String key : object.keySet()) {
+                if (!"id".equals(key) && !"extension".equals(key)) {
+                    throw new NotStreamableException("_" + name + " has " + key);
+                }
+            }
+            // never an empty element tag, which HAPI does not write either
+            xml.startElement(name);
+            if (object.has("id")) {
+                xml.writer.writeAttribute("id", object.get("id").getAsString());
+            }
+            if (!isNull(value)) {
+                xml.writer.writeAttribute("value", value.getAsString());
+            }
+            if (object.has("extension")) {
+                String contentPath = slot.repeating ? item(path, "_" + name, i) : child(path, "_" + name);
+                List<JsonElement> extensionItems = items(object.get("extension"));
+                for (int j = 0; j < extensionItems.size(); j++) {
+                    writeElement(treeReader(extensionItems.get(j)), "extension", extensionSlot, xml,
+                            item(contentPath, "extension", j), plan);
+                }
+            }
+            xml.endElement();
+        }
+    }
+
+    private static String resourceType(JsonReader json) throws IOException {
+        if (!json.hasNext() || !"resourceType".equals(json.nextName())) {
+            throw new NotStreamableException("resourceType is not the first property of a resource");
+        }
+        return json.nextString();
+    }
+
+    private static boolean isAttribute(String name, BaseRuntimeElementDefinition<?> definition, boolean resource) {
+        return !resource && ("id".equals(name) || "url".equals(name) && isExtension(definition));
+    }
+
+    // attributes go before the children, whose positions start at zero
+    private static int attributeIndex(String name) {
+        return "id".equals(name) ? -2 : -1;
+    }
+
+    private static String elementName(String name) {
+        return name.startsWith("_") ? name.substring(1) : name;
+    }
+
+    // the lowest position after each one, what must still be written before it
+    private static int[] lowestAfter(int[] order) {
+        int[] lowest = new int[order.length];
+        int low = Integer.MAX_VALUE;
+        for (int i = order.length - 1; i >= 0; i--) {
+            lowest[i] = low;
+            low = Math.min(low, order[i]);
+        }
+        return lowest;
+    }
+
+    // paths are only followed with a plan
+    private static String child(String path, String name) {
+        return path != null ? path + '/' + name : null;
+    }
+
+    private static String item(String path, String name, int index) {
+        return path != null ? path + '/' + name + '/' + index : null;
+    }
+
+    private static JsonReader treeReader(JsonElement tree) {
+        return new JsonReader(new StringReader(GSON.toJson(tree)));
+    }
+
+    private static String nextName(JsonReader json) throws IOException {
+        return json.hasNext() ? json.nextName() : null;
+    }
+
+    private static List<JsonElement> items(JsonElement element) {
+        if (isNull(element)) {
+            return Collections.emptyList();
+        }
+        if (!element.isJsonArray()) {
+            throw new NotStreamableException("A repeating element is not an array");
+        }
+        List<JsonElement> items = new ArrayList<>();
+        for (JsonElement item : (JsonArray) element) {
+            items.add(item);
+        }
+        return items;
+    }
+
+    private static boolean isNull(JsonElement element) {
+        return element == null || element.isJsonNull();
+    }
+
+    // XML to JSON
+
+    // the reader is at the start of the resource element
+    private void writeResource(XMLStreamReader xml, JsonWriter json) throws IOException, XMLStreamException {
+        checkNamespace(xml);
+        if (xml.getAttributeCount() > 0) {
+            throw new NotStreamableException(xml.getLocalName() + " has attributes");
+        }
+        String resourceType = xml.getLocalName();
+        BaseRuntimeElementCompositeDefinition<?> definition = resourceDefinition(resourceType);
+        json.beginObject();
+        json.name("resourceType").value(resourceType);
+        writeChildren(xml, definition, true, json);
+        json.endObject();
+    }
+
+    private void writeComposite(XMLStreamReader xml, BaseRuntimeElementCompositeDefinition<?> definition,
+            JsonWriter json) throws IOException, XMLStreamException {
+        String id = null;
+        String url = null;
+        for (int i = 0; i < xml.getAttributeCount(); i++) {
+            String name = xml.getAttributeLocalName(i);
+            if (hasNamespace(xml.getAttributeNamespace(i))) {
+                throw new NotStreamableException(xml.getLocalName() + " has attribute " + xml.getAttributeName(i));
+            } else if ("id".equals(name)) {
+                id = xml.getAttributeValue(i);
+            } else if ("url".equals(name) && isExtension(definition)) {
+                url = xml.getAttributeValue(i);
+            } else {
+                throw new NotStreamableException(xml.getLocalName() + " has attribute " + name);
+            }
+        }
+        json.beginObject();
+        if (id != null) {
+            json.name("id").value(id);
+        }
+        if (url != null) {
+            json.name("url").value(url);
+        }
+        writeChildren(xml, definition, false, json);
+        json.endObject();
+    }
+
+    // the child elements up to the end of the parent, a run of the same repeating element becomes one array
+    private void writeChildren(XMLStreamReader xml, BaseRuntimeElementCompositeDefinition<?> definition, boolean resource,
+            JsonWriter json) throws IOException, XMLStreamException {
+        boolean extension = isExtension(definition);
+        Set<String> written = new HashSet<>();
+        int lastIndex = -1;
+        int event = nextContent(xml);
+        while (event == XMLStreamConstants.START_ELEMENT) {
+            checkNamespace(xml);
+            String name = xml.getLocalName();
+            if (!resource && ("id".equals(name) || extension && "url".equals(name))) {
+                throw new NotStreamableException(name + " is an element in " + definition.getName());
+            }
+            Slot slot = slot(definition, name);
+            if (slot.index < lastIndex || !written.add(name)) {
+                throw new NotStreamableException(name + " is out of order in " + definition.getName());
+            }
+            lastIndex = slot.index;
+            if (slot.kind == Kind.PRIMITIVE) {
+                List<String> values = new ArrayList<>();
+                List<JsonElement> extensions = new ArrayList<>();
+                do {
+                    readPrimitive(xml, values, extensions);
+                    event = nextContent(xml);
+                } while (slot.repeating && isSibling(xml, event, name));
+                writePrimitive(name, slot, values, extensions, json);
+            } else {
+                json.name(name);
+                if (slot.repeating) {
+                    json.beginArray();
+                }
+                do {
+                    if (slot.kind == Kind.RESOURCE) {
+                        writeWrappedResource(xml, json);
+                    } else {
+                        writeComposite(xml, (BaseRuntimeElementCompositeDefinition<?>) slot.definition, json);
+                    }
+                    event = nextContent(xml);
+                } while (slot.repeating && isSibling(xml, event, name));
+                if (slot.repeating) {
+                    json.endArray();
+                }
+            }
+        }
+    }
+
+    // a resource inside an element named for where it is, like an entry's resource element
+    private void writeWrappedResource(XMLStreamReader xml, JsonWriter json) throws IOException, XMLStreamException {
+        if (xml.getAttributeCount() > 0) {
+            throw new NotStreamableException(xml.getLocalName() + " has attributes");
+        }
+        if (nextContent(xml) != XMLStreamConstants.START_ELEMENT) {
+            throw new NotStreamableException(xml.getLocalName() + " has no resource");
+        }
+        writeResource(xml, json);
+        if (nextContent(xml) != XMLStreamConstants.END_ELEMENT) {
+            throw new NotStreamableException("More than one resource in " + xml.getLocalName());
+        }
+    }
+
+    // the value and the id and extensions, as the _ object they are written as in JSON, of one primitive element
+    private void readPrimitive(XMLStreamReader xml, List<String> values, List<JsonElement> extensions)
+            throws IOException, XMLStreamException {
+        String name = xml.getLocalName();
+        String value = null;
+        String id = null;
+        for (int i = 0; i < xml.getAttributeCount(); i++) {
+            String attribute = xml.getAttributeLocalName(i);
+            if (hasNamespace(xml.getAttributeNamespace(i))) {
+                throw new NotStreamableException(name + " has attribute " + xml.getAttributeName(i));
+            } else if ("value".equals(attribute)) {
+                value = xml.getAttributeValue(i);
+            } else if ("id".equals(attribute)) {
+                id = xml.getAttributeValue(i);
+            } else {
+                throw new NotStreamableException(name + " has attribute " + attribute);
+            }
+        }
+        JsonElement content = null;
+        int event = nextContent(xml);
+        if (id != null || event == XMLStreamConstants.START_ELEMENT) {
+            StringWriter buffer = new StringWriter();
+            JsonWriter contentJson = new JsonWriter(buffer);
+            contentJson.beginObject();
+            if (id != null) {
+                contentJson.name("id").value(id);
+            }
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                contentJson.name("extension").beginArray();
+                while (isSibling(xml, event, "extension")) {
+                    writeComposite(xml, (BaseRuntimeElementCompositeDefinition<?>) extensionSlot.definition, contentJson);
+                    event = nextContent(xml);
+                }
+                contentJson.endArray();
+                if (event != XMLStreamConstants.END_ELEMENT) {
+                    throw new NotStreamableException(name + " has an element other than extension");
+                }
+            }
+            contentJson.endObject();
+            contentJson.flush();
+            content = new JsonParser().parse(buffer.toString());
+        }
+        values.add(value);
+        extensions.add(content);
+    }
+
+    private void writePrimitive(String name, Slot slot, List<String> values, List<JsonElement> extensions,
+            JsonWriter json) throws IOException {
+        boolean hasValues = values.stream().anyMatch(value -> value != null);
+        boolean hasExtensions = extensions.stream().anyMatch(content -> content != null);
+        if (slot.repeating) {
+            if (hasValues) {
+                json.name(name).beginArray();
+                for (String value : values) {
+                    writeValue(name, slot, value, json);
+                }
+                json.endArray();
+            }
+            if (hasExtensions) {
+                json.name("_" + name).beginArray();
+                for (JsonElement content : extensions) {
+                    writeContent(content, json);
+                }
+                json.endArray();
+            }
+        } else {
+            if (hasValues) {
+                json.name(name);
+                writeValue(name, slot, values.get(0), json);
+            }
+            if (hasExtensions) {
+                json.name("_" + name);
+                writeContent(extensions.get(0), json);
+            }
+        }
+    }
+
+    // written as the JSON type of the primitive, as HAPI would
+    private static void writeValue(String name, Slot slot, String value, JsonWriter json) throws IOException {
+        if (value == null) {
+            json.nullValue();
+        } else if (slot.jsonType == JsonType.BOOLEAN) {
+            if (!"true".equals(value) && !"false".equals(value)) {
+                throw new NotStreamableException(name + " is not a boolean: " + value);
+            }
+            json.value(Boolean.parseBoolean(value));
+        } else if (slot.jsonType == JsonType.NUMBER) {
+            if (!JSON_NUMBER.matcher(value).matches()) {
+                throw new NotStreamableException(name + " is not a number: " + value);
+            }
+            json.jsonValue(value);
+        } else {
+            json.value(value);
+        }
+    }
+
+    private static void writeContent(JsonElement content, JsonWriter json) throws IOException {
+        if (content == null) {
+            json.nullValue();
+        } else {
+            GSON.toJson(content, json);
+        }
+    }
+
+    // the next start or end element, skipping whitespace between elements
+    private static int nextContent(XMLStreamReader xml) throws XMLStreamException {
+        while (xml.hasNext()) {
+            int event = xml.next();
+            switch (event) {
+                case XMLStreamConstants.START_ELEMENT:
+                case XMLStreamConstants.END_ELEMENT:
+                    return event;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    if (!xml.isWhiteSpace()) {
+                        throw new NotStreamableException("Text content in an element");
+                    }
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    throw new NotStreamableException("Comments are not streamed");
+                default:
+                    break;
+            }
+        }
+        throw new IllegalArgumentException("Unable to parse bundle, the XML ends inside the bundle");
+    }
+
+    private static boolean isSibling(XMLStreamReader xml, int event, String name) {
+        return event == XMLStreamConstants.START_ELEMENT && name.equals(xml.getLocalName())
+                && FHIR_NS.equals(xml.getNamespaceURI());
+    }
+
+    private static void checkNamespace(XMLStreamReader xml) {
+        if (!FHIR_NS.equals(xml.getNamespaceURI())) {
+            throw new NotStreamableException(xml.getLocalName() + " is not in the FHIR namespace");
+        }
+    }
+
+    private static boolean hasNamespace(String namespace) {
+        return namespace != null && !namespace.isEmpty();
+    }
+
+    // definitions
+
+    private BaseRuntimeElementCompositeDefinition<?> resourceDefinition(String resourceType) {
+        try {
+            return ctx.getCtx().getResourceDefinition(resourceType);
+        } catch (DataFormatException e) {
+            throw new NotStreamableException("Unknown resource type " + resourceType);
+        }
+    }
+
+    private Slot slot(BaseRuntimeElementCompositeDefinition<?> definition, String name) {
+        Slot slot = slots.computeIfAbsent(definition, key -> new ConcurrentHashMap<>())
+                .computeIfAbsent(name, key -> resolveSlot(definition, key));
+        if (slot == UNKNOWN) {
+            throw new NotStreamableException(name + " in " + definition.getName() + " cannot be streamed");
+        }
+        return slot;
+    }
+
+    private Slot resolveSlot(BaseRuntimeElementCompositeDefinition<?> definition, String name) {
+        BaseRuntimeChildDefinition child = definition.getChildByName(name);
+        if (child == null) {
+            return UNKNOWN;
+        }
+        BaseRuntimeElementDefinition<?> element = child.getChildByName(name);
+        if (element == null && child instanceof RuntimeChildExtension) {
+            // modifierExtension is not among the names it answers to
+            element = extensionSlot.definition;
+        }
+        if (element == null) {
+            return UNKNOWN;
+        }
+        Kind kind;
+        switch (element.getChildType()) {
+            case PRIMITIVE_DATATYPE:
+            case ID_DATATYPE:
+                kind = Kind.PRIMITIVE;
+                break;
+            case COMPOSITE_DATATYPE:
+            case RESOURCE_BLOCK:
+                kind = Kind.COMPOSITE;
+                break;
+            case RESOURCE:
+                kind = Kind.RESOURCE;
+                break;
+            default:
+                // narrative XHTML and contained resources
+                return UNKNOWN;
+        }
+        return new Slot(definition.getChildren().indexOf(child), child.getMax() != 1, kind, element);
+    }
+
+    private static boolean isExtension(BaseRuntimeElementDefinition<?> definition) {
+        return Extension.class.isAssignableFrom(definition.getImplementingClass());
+    }
+
+    // content detection
+
+    private static BufferedReader openReader(Path source) throws IOException {
+        return new BufferedReader(new InputStreamReader(Gzip.decompressIfGzipped(Files.newInputStream(source)),
+                StandardCharsets.UTF_8));
+    }
+
+    private static EncodingEnum detectEncoding(String content) {
+        for (int i = 0; i < content.length(); i++) {
+            char c = content.charAt(i);
+            if (!Character.isWhitespace(c) && c != '\uFEFF') {
+                return encodingOf(c);
+            }
+        }
+        return encodingOf(-1);
+    }
+
+    // leaves the reader where it was
+    private static EncodingEnum detectEncoding(BufferedReader reader) throws IOException {
+        reader.mark(Gzip.BUFFER_SIZE);
+        try {
+            for (int c = reader.read(); c >= 0; c = reader.read()) {
+                if (!Character.isWhitespace(c) && c != '\uFEFF') {
+                    return encodingOf(c);
+                }
+            }
+            return encodingOf(-1);
+        } finally {
+            reader.reset();
+        }
+    }
+
+    private static EncodingEnum encodingOf(int first) {
+        if (first == '<') {
+            return EncodingEnum.XML;
+        } else if (first == '{') {
+            return EncodingEnum.JSON;
+        }
+        throw new IllegalArgumentException(first < 0 ? "Unable to parse bundle, content is empty"
+                : "Unable to parse bundle, content is neither JSON nor XML, first character was: '" + (char) first + "'");
+    }
+
+    private static XMLInputFactory createXmlInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    // thrown for content the transcoder cannot convert without the object model
+    public static class NotStreamableException extends IllegalArgumentException {
+        public NotStreamableException(String message) {
+            super(message);
+        }
+    }
+
+    private enum Kind {
+        PRIMITIVE, COMPOSITE, RESOURCE
+    }
+
+    private enum JsonType {
+        STRING, BOOLEAN, NUMBER
+    }
+
+    // how an element name of a definition is written, and its position among the definition's children
+    private static class Slot {
+        private final int index;
+        private final boolean repeating;
+        private final Kind kind;
+        private final BaseRuntimeElementDefinition<?> definition;
+        private final JsonType jsonType;
+
+        Slot(int index, boolean repeating, Kind kind, BaseRuntimeElementDefinition<?> definition) {
+            this.index = index;
+            this.repeating = repeating;
+            this.kind = kind;
+            this.definition = definition;
+            if (definition == null || kind != Kind.PRIMITIVE) {
+                this.jsonType = null;
+            } else if (BooleanType.class.isAssignableFrom(definition.getImplementingClass())) {
+                this.jsonType = JsonType.BOOLEAN;
+            } else if (IntegerType.class.isAssignableFrom(definition.getImplementingClass())
+                    || DecimalType.class.isAssignableFrom(definition.getImplementingClass())) {
+                this.jsonType = JsonType.NUMBER;
+            } else {
+                this.jsonType = JsonType.STRING;
+            }
+        }
+    }
+
+    // a property held back until the properties that precede it in XML are written, without a slot for an attribute
+    private static class Held {
+        private final String name;
+        private final Slot slot;
+        private final JsonElement values;
+        private final JsonElement extensions;
+
+        Held(String name, Slot slot, JsonElement values, JsonElement extensions) {
+            this.name = name;
+            this.slot = slot;
+            this.values = values;
+            this.extensions = extensions;
+        }
+    }
+
+    // writes each element on a line of its own, indented three spaces a level like HAPI, when pretty printing
+    private static class XmlOut {
+        private final XMLStreamWriter writer;
+        private final boolean prettyPrint;
+        private boolean[] hasChildren = new boolean[16];
+        private int depth;
+
+        XmlOut(XMLStreamWriter writer, boolean prettyPrint) {
+            this.writer = writer;
+            this.prettyPrint = prettyPrint;
+        }
+
+        void startElement(String name) throws XMLStreamException {
+            indent();
+            writer.writeStartElement(name);
+            if (++depth == hasChildren.length) {
+                hasChildren = Arrays.copyOf(hasChildren, depth * 2);
+            }
+            hasChildren[depth] = false;
+        }
+
+        void endElement() throws XMLStreamException {
+            if (prettyPrint && hasChildren[depth]) {
+                writer.writeCharacters(newLine(depth - 1));
+            }
+            depth--;
+            writer.writeEndElement();
+        }
+
+        private void indent() throws XMLStreamException {
+            if (depth > 0) {
+                hasChildren[depth] = true;
+                if (prettyPrint) {
+                    writer.writeCharacters(newLine(depth));
+                }
+            }
+        }
+
+        private static String newLine(int level) {
+            char[] spaces = new char[level * 3];
+            Arrays.fill(spaces, ' ');
+            return "\n" + new String(spaces);
+        }
+    }
+}
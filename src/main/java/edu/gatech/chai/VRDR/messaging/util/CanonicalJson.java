@@ -0,0 +1,326 @@
+package edu.gatech.chai.VRDR.messaging.util;
+
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.parser.JsonParser;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonWriter;
+import edu.gatech.chai.VRDR.context.VRDRFhirContext;
+import edu.gatech.chai.VRDR.messaging.BaseMessage;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes records in a canonical JSON form, so the same content always gives the same bytes and the same fingerprint.
+ * The form is the JSON HAPI encodes, with the keys of every object sorted and no whitespace; messages are written as
+ * the plain Bundle of {@link BaseMessage#cloneAsBundle()}. On top of that it can
+ * <ul>
+ * <li>normalize ids, numbering the resources in the order they appear instead of keeping the random ids they are
+ * created with, and changing the full urls and references to them to match,</li>
+ * <li>normalize timestamps, leaving out the Bundle timestamp, the Composition date and meta lastUpdated, which are set
+ * to the time a record or message is created,</li>
+ * <li>rewrite references, writing every full url and reference to a resource in the record as Type/id, whether it was
+ * written as a urn:uuid, a bare id or Type/id.</li>
+ * </ul>
+ * References to resources outside the record are left as they are. A {@link #forDuplicates} instance does all three,
+ * so resubmissions of a record fingerprint the same however many times it was rebuilt.
+ *
+ * <p>The record is encoded into a Gson tree of the whole record, as the keys can only be sorted once all of them are
+ * known, and written out from that tree. What is avoided is the encoded String HAPI would otherwise build and the
+ * parse of it, the tree itself still takes memory in proportion to the record. An instance can be shared by threads
+ * once configured.
+ */
+public class CanonicalJson {
+
+    private final VRDRFhirContext ctx;
+    private boolean normalizeIds;
+    private boolean normalizeTimestamps;
+    private boolean rewriteReferences;
+
+    public CanonicalJson(VRDRFhirContext ctx) {
+        this.ctx = ctx;
+    }
+
+    // normalizes ids and timestamps and rewrites references, for finding resubmissions of the same record
+    public static CanonicalJson forDuplicates(VRDRFhirContext ctx) {
+        CanonicalJson canonicalJson = new CanonicalJson(ctx);
+        canonicalJson.setNormalizeIds(true);
+        canonicalJson.setNormalizeTimestamps(true);
+        canonicalJson.setRewriteReferences(true);
+        return canonicalJson;
+    }
+
+    public void setNormalizeIds(boolean normalizeIds) {
+        this.normalizeIds = normalizeIds;
+    }
+
+    public void setNormalizeTimestamps(boolean normalizeTimestamps) {
+        this.normalizeTimestamps = normalizeTimestamps;
+    }
+
+    public void setRewriteReferences(boolean rewriteReferences) {
+        this.rewriteReferences = rewriteReferences;
+    }
+
+    public String toJson(Resource resource) {
+        StringWriter writer = new StringWriter();
+        try {
+            encodeTo(resource, writer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return writer.toString();
+    }
+
+    // the writer is flushed but not closed
+    public void encodeTo(Resource resource, Writer writer) throws IOException {
+        JsonWriter json = new JsonWriter(writer);
+        json.setLenient(true);
+        write(canonicalTree(resource), json);
+        json.flush();
+    }
+
+    // the SHA-256 of the canonical UTF-8 bytes, in lower case hex
+    public String fingerprint(Resource resource) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to have SHA-256
+            throw new IllegalStateException(e);
+        }
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new DigestSink(digest), StandardCharsets.UTF_8))) {
+            encodeTo(resource, writer);
+        } catch (IOException e) {
+            // a digest does not throw
+            throw new UncheckedIOException(e);
+        }
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private JsonObject canonicalTree(Resource resource) throws IOException {
+        if (resource instanceof BaseMessage) {
+            resource = ((BaseMessage) resource).cloneAsBundle();
+        }
+        IParser parser = ctx.getJsonParser(false);
+        JsonObject root;
+        if (parser instanceof JsonParser) {
+            JsonTreeLikeWriter tree = new JsonTreeLikeWriter();
+            ((JsonParser) parser).encodeResourceToJsonLikeWriter(resource, tree);
+            root = tree.getRoot();
+        } else {
+            root = new com.google.gson.JsonParser().parse(parser.encodeResourceToString(resource)).getAsJsonObject();
+        }
+        if (normalizeTimestamps) {
+            removeTimestamps(root);
+        }
+        if (normalizeIds || rewriteReferences) {
+            Map<String, Target> targets = new HashMap<>();
+            collectTargets(root, targets, new int[1]);
+            rewrite(root, targets);
+        }
+        return root;
+    }
+
+    private static void removeTimestamps(JsonElement element) {
+        if (element.isJsonArray()) {
+            for (JsonElement item : element.getAsJsonArray()) {
+                removeTimestamps(item);
+            }
+        } else if (element.isJsonObject()) {
+            JsonObject object = element.getAsJsonObject();
+            String resourceType = resourceType(object);
+            if ("Bundle".equals(resourceType)) {
+                object.remove("timestamp");
+                object.remove("_timestamp");
+            } else if ("Composition".equals(resourceType)) {
+                object.remove("date");
+                object.remove("_date");
+            }
+            JsonElement meta = object.get("meta");
+            if (resourceType != null && meta != null && meta.isJsonObject()) {
+                meta.getAsJsonObject().remove("lastUpdated");
+                meta.getAsJsonObject().remove("_lastUpdated");
+                if (meta.getAsJsonObject().size() == 0) {
+                    object.remove("meta");
+                }
+            }
+            for (Map.Entry<String, JsonElement> member : object.entrySet()) {
+                removeTimestamps(member.getValue());
+            }
+        }
+    }
+
+    // numbers the resources in the order they appear and records every way they can be referred to, contained
+    // resources are referred to by local references and keep their ids
+    private void collectTargets(JsonElement element, Map<String, Target> targets, int[] count) {
+        if (element.isJsonArray()) {
+            for (JsonElement item : element.getAsJsonArray()) {
+                collectTargets(item, targets, count);
+            }
+        } else if (element.isJsonObject()) {
+            JsonObject object = element.getAsJsonObject();
+            String resourceType = resourceType(object);
+            if (resourceType != null) {
+                Target target = new Target(resourceType, string(object.get("id")), ++count[0], normalizeIds);
+                if (target.id != null) {
+                    targets.putIfAbsent(target.id, target);
+                    targets.putIfAbsent(resourceType + "/" + target.id, target);
+                    targets.putIfAbsent("urn:uuid:" + target.id, target);
+                }
+            }
+            JsonElement resource = object.get("resource");
+            String fullUrl = string(object.get("fullUrl"));
+            for (Map.Entry<String, JsonElement> member : object.entrySet()) {
+                if (!"contained".equals(member.getKey())) {
+                    collectTargets(member.getValue(), targets, count);
+                }
+                if (member.getValue() == resource && fullUrl != null && resource.isJsonObject()) {
+                    // the entry's full url is known once its resource has been numbered
+                    JsonObject entryResource = resource.getAsJsonObject();
+                    Target target = targets.get(resourceType(entryResource) + "/" + string(entryResource.get("id")));
+                    if (target != null) {
+                        targets.putIfAbsent(fullUrl, target);
+                    }
+                }
+            }
+        }
+    }
+
+    private void rewrite(JsonElement element, Map<String, Target> targets) {
+        if (element.isJsonArray()) {
+            for (JsonElement item : element.getAsJsonArray()) {
+                rewrite(item, targets);
+            }
+        } else if (element.isJsonObject()) {
+            JsonObject object = element.getAsJsonObject();
+            List<Map.Entry<String, JsonElement>> members = new ArrayList<>(object.entrySet());
+            for (Map.Entry<String, JsonElement> member : members) {
+                String name = member.getKey();
+                String value = string(member.getValue());
+                if (value != null && ("fullUrl".equals(name) || "reference".equals(name))) {
+                    object.addProperty(name, rewriteReference(value, targets.get(value)));
+                } else if (value != null && normalizeIds && "id".equals(name) && resourceType(object) != null) {
+                    Target target = targets.get(resourceType(object) + "/" + value);
+                    object.addProperty(name, target != null ? target.canonicalId : value);
+                } else if (!"contained".equals(name)) {
+                    rewrite(member.getValue(), targets);
+                }
+            }
+        }
+    }
+
+    private String rewriteReference(String value, Target target) {
+        if (target == null) {
+            return value;
+        }
+        if (rewriteReferences) {
+            return target.resourceType + "/" + target.canonicalId;
+        }
+        // the id is swapped as a whole part of the reference, never as a substring, so "Patient/a" becomes
+        // "Patient/1" and not "P1tient/1"
+        if (value.equals(target.id)) {
+            return target.canonicalId;
+        }
+        if (value.startsWith("urn:uuid:")) {
+            return "urn:uuid:" + target.canonicalId;
+        }
+        if (value.endsWith("/" + target.id)) {
+            // Type/id and full urls keep everything before the id
+            return value.substring(0, value.length() - target.id.length()) + target.canonicalId;
+        }
+        return target.resourceType + "/" + target.canonicalId;
+    }
+
+    private static String resourceType(JsonObject object) {
+        return string(object.get("resourceType"));
+    }
+
+    private static String string(JsonElement element) {
+        return element != null && element.isJsonPrimitive() && element.getAsJsonPrimitive().isString()
+                ? element.getAsString() : null;
+    }
+
+    private static void write(JsonElement element, JsonWriter json) throws IOException {
+        if (element.isJsonObject()) {
+            JsonObject object = element.getAsJsonObject();
+            List<String> names = new ArrayList<>(object.keySet());
+            Collections.sort(names);
+            json.beginObject();
+            for (String name : names) {
+                json.name(name);
+                write(object.get(name), json);
+            }
+            json.endObject();
+        } else if (element.isJsonArray()) {
+            json.beginArray();
+            for (JsonElement item : (JsonArray) element) {
+                write(item, json);
+            }
+            json.endArray();
+        } else if (element.isJsonNull()) {
+            json.nullValue();
+        } else {
+            JsonPrimitive primitive = element.getAsJsonPrimitive();
+            if (primitive.isBoolean()) {
+                json.value(primitive.getAsBoolean());
+            } else if (primitive.isNumber()) {
+                json.value(primitive.getAsNumber());
+            } else {
+                json.value(primitive.getAsString());
+            }
+        }
+    }
+
+    private static class Target {
+        private final String resourceType;
+        private final String id;
+        private final String canonicalId;
+
+        Target(String resourceType, String id, int number, boolean normalizeIds) {
+            this.resourceType = resourceType;
+            this.id = id;
+            this.canonicalId = normalizeIds ? Integer.toString(number) : id;
+        }
+    }
+
+    // feeds what is written to the digest and keeps none of it
+    private static class DigestSink extends OutputStream {
+        private final MessageDigest digest;
+
+        DigestSink(MessageDigest digest) {
+            this.digest = digest;
+        }
+
+        @Override
+        public void write(int b) {
+            digest.update((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            digest.update(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package edu.gatech.chai.VRDR.messaging.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reads and writes gzipped batches as streams, so a compressed file is never decompressed to disk or held in memory
+ * whole. Compressed input is recognized from the gzip header rather than the file name, and output is compressed when
+ * the file name ends in .gz.
+ */
+public final class Gzip {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private Gzip() {
+    }
+
+    // true when the remaining bytes of the buffer start with the gzip header, the buffer position is not changed
+    public static boolean isGzipped(ByteBuffer buffer) {
+        int position = buffer.position();
+        return buffer.limit() - position >= 2 && (buffer.get(position) & 0xFF) == 0x1f
+                && (buffer.get(position + 1) & 0xFF) == 0x8b;
+    }
+
+    /**
+     * Returns a stream of the decompressed content when the stream starts with the gzip header, or of the content as
+     * it is otherwise. The returned stream is buffered and supports mark, closing it closes the given stream.
+     */
+    public static InputStream decompressIfGzipped(InputStream stream) throws IOException {
+        InputStream buffered = stream.markSupported() ? stream : new BufferedInputStream(stream, BUFFER_SIZE);
+        if (startsWithGzipHeader(buffered)) {
+            return new BufferedInputStream(new GZIPInputStream(buffered, BUFFER_SIZE), BUFFER_SIZE);
+        }
+        return buffered;
+    }
+
+    /**
+     * Like {@link #decompressIfGzipped(InputStream)}, but the returned stream throws a
+     * {@link LimitedInputStream.LimitExceededException} once more than the given number of bytes of content are read
+     * from it, so a small gzipped input cannot expand into an unbounded amount of data. Gzipped content that is
+     * gzipped again inside is refused, as a parser that decompressed it once more would read past the limit.
+     */
+    public static InputStream decompressIfGzipped(InputStream stream, long maxContentSize) throws IOException {
+        InputStream buffered = stream.markSupported() ? stream : new BufferedInputStream(stream, BUFFER_SIZE);
+        if (!startsWithGzipHeader(buffered)) {
+            return new LimitedInputStream(buffered, maxContentSize, "Content");
+        }
+        InputStream content = new BufferedInputStream(new LimitedInputStream(new GZIPInputStream(buffered, BUFFER_SIZE),
+                maxContentSize, "Decompressed content"), BUFFER_SIZE);
+        if (startsWithGzipHeader(content)) {
+            content.close();
+            throw new IOException("The decompressed content is gzipped again");
+        }
+        return content;
+    }
+
+    // whether a markable stream starts with the gzip header, leaving it where it was
+    private static boolean startsWithGzipHeader(InputStream stream) throws IOException {
+        stream.mark(2);
+        int first = stream.read();
+        int second = stream.read();
+        stream.reset();
+        return first == 0x1f && second == 0x8b;
+    }
+
+    // the content as UTF-8, for the batch readers whose constructors do not throw IOException
+    static Reader utf8Reader(InputStream stream) {
+        try {
+            return new InputStreamReader(decompressIfGzipped(stream), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // compresses what is written, closing the returned stream finishes the gzip trailer and closes the given stream
+    public static OutputStream compress(OutputStream stream) throws IOException {
+        return new GZIPOutputStream(stream, BUFFER_SIZE);
+    }
+
+    // opens the file for writing, replacing it if it exists, compressed when its name ends in .gz
+    public static OutputStream newOutputStream(Path path) throws IOException {
+        OutputStream stream = Files.newOutputStream(path);
+        if (!isGzipPath(path)) {
+            return stream;
+        }
+        try {
+            return compress(stream);
+        } catch (IOException e) {
+            stream.close();
+            throw e;
+        }
+    }
+
+    // opens the file for writing UTF-8 through a buffer, like newOutputStream
+    public static Writer newBufferedWriter(Path path) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(newOutputStream(path), StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    public static boolean isGzipPath(Path path) {
+        Path fileName = path.getFileName();
+        return fileName != null && fileName.toString().toLowerCase().endsWith(".gz");
+    }
+}
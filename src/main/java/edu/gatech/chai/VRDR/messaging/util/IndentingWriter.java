@@ -0,0 +1,38 @@
+package edu.gatech.chai.VRDR.messaging.util;
+
+import java.io.IOException;
+import java.io.Writer;
+
+// indents every line after the first, used to nest a pretty printed resource inside a batch entry
+class IndentingWriter extends Writer {
+    private final Writer writer;
+    private final String indent;
+
+    IndentingWriter(Writer writer, String indent) {
+        this.writer = writer;
+        this.indent = indent;
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) throws IOException {
+        int start = offset;
+        for (int i = offset; i < offset + length; i++) {
+            if (chars[i] == '\n') {
+                writer.write(chars, start, i + 1 - start);
+                writer.write(indent);
+                start = i + 1;
+            }
+        }
+        writer.write(chars, start, offset + length - start);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,182 @@
+package edu.gatech.chai.VRDR.messaging.util;
+
+import ca.uhn.fhir.parser.json.JsonLikeWriter;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+// builds a Gson tree from what the HAPI JSON encoder writes, so the JSON can be reworked without ever being a String
+class JsonTreeLikeWriter extends JsonLikeWriter {
+
+    private final Deque<JsonElement> open = new ArrayDeque<>();
+    private JsonObject root;
+
+    JsonObject getRoot() {
+        return root;
+    }
+
+    @Override
+    public JsonLikeWriter init() {
+        return this;
+    }
+
+    @Override
+    public JsonLikeWriter flush() {
+        return this;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public JsonLikeWriter beginObject() {
+        JsonObject object = new JsonObject();
+        if (open.isEmpty()) {
+            root = object;
+        } else {
+            open.peek().getAsJsonArray().add(object);
+        }
+        open.push(object);
+        return this;
+    }
+
+    @Override
+    public JsonLikeWriter beginArray() {
+        JsonArray array = new JsonArray();
+        open.peek().getAsJsonArray().add(array);
+        open.push(array);
+        return this;
+    }
+
+    @Override
+    public JsonLikeWriter beginObject(String name) {
+        JsonObject object = new JsonObject();
+        open.peek().getAsJsonObject().add(name, object);
+        open.push(object);
+        return this;
+    }
+
+    @Override
+    public JsonLikeWriter beginArray(String name) {
+        JsonArray array = new JsonArray();
+        open.peek().getAsJsonObject().add(name, array);
+        open.push(array);
+        return this;
+    }
+
+    @Override
+    public JsonLikeWriter write(String value) {
+        return add(value == null ? JsonNull.INSTANCE : new JsonPrimitive(value));
+    }
+
+    @Override
+    public JsonLikeWriter write(BigInteger value) {
+        return add(value == null ? JsonNull.INSTANCE : new JsonPrimitive(value));
+    }
+
+    @Override
+    public JsonLikeWriter write(BigDecimal value) {
+        return add(value == null ? JsonNull.INSTANCE : new JsonPrimitive(value));
+    }
+
+    @Override
+    public JsonLikeWriter write(long value) {
+        return add(new JsonPrimitive(value));
+    }
+
+    @Override
+    public JsonLikeWriter write(double value) {
+        return add(new JsonPrimitive(value));
+    }
+
+    @Override
+    public JsonLikeWriter write(Boolean value) {
+        return add(value == null ? JsonNull.INSTANCE : new JsonPrimitive(value));
+    }
+
+    @Override
+    public JsonLikeWriter write(boolean value) {
+        return add(new JsonPrimitive(value));
+    }
+
+    @Override
+    public JsonLikeWriter writeNull() {
+        return add(JsonNull.INSTANCE);
+    }
+
+    @Override
+    public JsonLikeWriter write(String name, String value) {
+        return add(name, value == null ? JsonNull.INSTANCE : new JsonPrimitive(value));
+    }
+
+    @Override
+    public JsonLikeWriter write(String name, BigInteger value) {
+        return add(name, value == null ? JsonNull.INSTANCE : new JsonPrimitive(value));
+    }
+
+    @Override
+    public JsonLikeWriter write(String name, BigDecimal value) {
+        return add(name, value == null ? JsonNull.INSTANCE : new JsonPrimitive(value));
+    }
+
+    @Override
+    public JsonLikeWriter write(String name, long value) {
+        return add(name, new JsonPrimitive(value));
+    }
+
+    @Override
+    public JsonLikeWriter write(String name, double value) {
+        return add(name, new JsonPrimitive(value));
+    }
+
+    @Override
+    public JsonLikeWriter write(String name, Boolean value) {
+        return add(name, value == null ? JsonNull.INSTANCE : new JsonPrimitive(value));
+    }
+
+    @Override
+    public JsonLikeWriter write(String name, boolean value) {
+        return add(name, new JsonPrimitive(value));
+    }
+
+    @Override
+    public JsonLikeWriter writeNull(String name) {
+        return add(name, JsonNull.INSTANCE);
+    }
+
+    @Override
+    public JsonLikeWriter endObject() {
+        open.pop();
+        return this;
+    }
+
+    @Override
+    public JsonLikeWriter endArray() {
+        open.pop();
+        return this;
+    }
+
+    @Override
+    public JsonLikeWriter endBlock() {
+        open.pop();
+        return this;
+    }
+
+    private JsonLikeWriter add(JsonElement value) {
+        open.peek().getAsJsonArray().add(value);
+        return this;
+    }
+
+    private JsonLikeWriter add(String name, JsonElement value) {
+        open.peek().getAsJsonObject().add(name, value);
+        return this;
+    }
+}
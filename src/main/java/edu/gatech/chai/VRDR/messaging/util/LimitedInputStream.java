@@ -0,0 +1,84 @@
+package edu.gatech.chai.VRDR.messaging.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Passes through at most a given number of bytes of a stream and throws a {@link LimitExceededException} once more
+ * are read, so content of unknown size can be read without letting it take an unbounded amount of memory.
+ */
+public class LimitedInputStream extends FilterInputStream {
+
+    private final long limit;
+    private final String what;
+    private long count;
+    private long mark;
+
+    // what names the content in the exception message, such as "Request body"
+    public LimitedInputStream(InputStream in, long limit, String what) {
+        super(in);
+        if (limit < 0) {
+            throw new IllegalArgumentException("The limit must not be negative");
+        }
+        this.limit = limit;
+        this.what = what;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            count(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = super.read(b, off, len);
+        if (read > 0) {
+            count(read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        count(skipped);
+        return skipped;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        super.mark(readlimit);
+        mark = count;
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        super.reset();
+        count = mark;
+    }
+
+    private void count(long read) throws LimitExceededException {
+        count += read;
+        if (count > limit) {
+            throw new LimitExceededException(what + " is larger than the maximum of " + limit + " bytes");
+        }
+    }
+
+    // thrown by a read that goes over the limit
+    public static class LimitExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public LimitExceededException(String message) {
+            super(message);
+        }
+    }
+}
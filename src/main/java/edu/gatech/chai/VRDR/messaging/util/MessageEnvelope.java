@@ -0,0 +1,498 @@
+package edu.gatech.chai.VRDR.messaging.util;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import edu.gatech.chai.VRDR.messaging.BaseMessage;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+/**
+ * The routing fields of a message, read by streaming the JSON or XML only as far as the MessageHeader and Parameters
+ * entries and the bundle id and skipping everything else, the death record document included, without building any
+ * FHIR resources. An id written after the entries is still found, the entries after the ones needed are then skipped
+ * without being looked into.
+ * The values are the ones the parsed {@link BaseMessage} would report, so the header id is the entry fullUrl when
+ * there is one. Fields that are missing from the message are null.
+ */
+public class MessageEnvelope {
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = createXmlInputFactory();
+
+    private String messageId;
+    private String messageHeaderId;
+    private String messageType;
+    private String responseIdentifier;
+    private String messageSource;
+    private String messageDestination;
+    private Integer certNo;
+    private Integer deathYear;
+    private String jurisdictionId;
+    private String stateAuxiliaryId;
+
+    private boolean foundHeader;
+    private boolean foundParameters;
+
+    private MessageEnvelope() {
+    }
+
+    public static MessageEnvelope peekJson(String json) {
+        return peekJson(new StringReader(json));
+    }
+
+    public static MessageEnvelope peekJson(Reader reader) {
+        MessageEnvelope envelope = new MessageEnvelope();
+        try {
+            envelope.readJsonBundle(new JsonReader(reader));
+        } catch (IOException | JsonParseException | IllegalStateException | NumberFormatException e) {
+            throw new IllegalArgumentException("Unable to parse bundle, exception: " + e);
+        }
+        return envelope;
+    }
+
+    public static MessageEnvelope peekXml(String xml) {
+        return peekXml(new StringReader(xml));
+    }
+
+    public static MessageEnvelope peekXml(Reader reader) {
+        MessageEnvelope envelope = new MessageEnvelope();
+        XMLStreamReader xml = null;
+        try {
+            xml = XML_INPUT_FACTORY.createXMLStreamReader(reader);
+            envelope.readXmlBundle(xml);
+        } catch (XMLStreamException | NumberFormatException e) {
+            throw new IllegalArgumentException("Unable to parse bundle, exception: " + e);
+        } finally {
+            if (xml != null) {
+                try {
+                    xml.close();
+                } catch (XMLStreamException e) {
+                    // nothing left to read from it
+                }
+            }
+        }
+        return envelope;
+    }
+
+    // the bundle id of the message
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public String getMessageHeaderId() {
+        return messageHeaderId;
+    }
+
+    // the header event uri, as BaseMessage.getMessageType
+    public String getMessageType() {
+        return messageType;
+    }
+
+    // the id of the message an acknowledgement, error or coding response refers to
+    public String getResponseIdentifier() {
+        return responseIdentifier;
+    }
+
+    public String getMessageSource() {
+        return messageSource;
+    }
+
+    // the first destination endpoint
+    public String getMessageDestination() {
+        return messageDestination;
+    }
+
+    public Integer getCertNo() {
+        return certNo;
+    }
+
+    public Integer getDeathYear() {
+        return deathYear;
+    }
+
+    public String getJurisdictionId() {
+        return jurisdictionId;
+    }
+
+    public String getStateAuxiliaryId() {
+        return stateAuxiliaryId;
+    }
+
+    public String getNCHSIdentifier() {
+        if (deathYear == null || jurisdictionId == null || certNo == null) {
+            return null;
+        }
+        return String.format("%04d", deathYear) + jurisdictionId + String.format("%06d", certNo);
+    }
+
+    // the parser takes the header id from the entry fullUrl, and the message then strips any urn:uuid: prefix
+    private static String headerId(String fullUrl, String resourceId) {
+        return BaseMessage.ensureBareId(fullUrl != null && !fullUrl.isEmpty() ? fullUrl : resourceId);
+    }
+
+    private boolean isComplete() {
+        return foundHeader && foundParameters;
+    }
+
+    // the bundle id may follow the entries, only once it is known too can the rest of the bundle be left unread
+    private boolean isDone() {
+        return isComplete() && messageId != null;
+    }
+
+    private void setParameter(String name, String value) {
+        if (name == null || value == null) {
+            return;
+        }
+        switch (name) {
+            case "cert_no":
+                certNo = Integer.valueOf(value);
+                break;
+            case "death_year":
+                deathYear = Integer.valueOf(value);
+                break;
+            case "jurisdiction_id":
+                jurisdictionId = value;
+                break;
+            case "state_auxiliary_id":
+                stateAuxiliaryId = value;
+                break;
+            default:
+                break;
+        }
+    }
+
+    // the parameter value types BaseMessage reads the identifiers from
+    private static boolean isIdentifierValue(String elementName) {
+        return "valueString".equals(elementName) || "valueUnsignedInt".equals(elementName)
+                || "valueInteger".equals(elementName) || "valuePositiveInt".equals(elementName);
+    }
+
+    private void readJsonBundle(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext() && !isDone()) {
+            String name = reader.nextName();
+            if ("id".equals(name)) {
+                messageId = reader.nextString();
+            } else if ("entry".equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext() && !isDone()) {
+                    if (isComplete()) {
+                        // only the bundle id is missing, skip the remaining entries without looking into them
+                        reader.skipValue();
+                    } else {
+                        readJsonEntry(reader);
+                    }
+                }
+                if (!isDone()) {
+                    reader.endArray();
+                }
+            } else {
+                reader.skipValue();
+            }
+        }
+    }
+
+    private void readJsonEntry(JsonReader reader) throws IOException {
+        String fullUrl = null;
+        String resourceId = null;
+        boolean header = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("fullUrl".equals(name)) {
+                fullUrl = reader.nextString();
+            } else if ("resource".equals(name)) {
+                reader.beginObject();
+                String firstMember = reader.hasNext() ? reader.nextName() : null;
+                if ("resourceType".equals(firstMember)) {
+                    String resourceType = reader.nextString();
+                    if ("MessageHeader".equals(resourceType) && !foundHeader) {
+                        header = true;
+                        resourceId = readJsonHeader(reader);
+                    } else if ("Parameters".equals(resourceType) && !foundParameters) {
+                        readJsonParameters(reader);
+                    }
+                    while (reader.hasNext()) {
+                        reader.nextName();
+                        reader.skipValue();
+                    }
+                } else if (firstMember != null) {
+                    // resourceType is not the first member, fall back to reading the resource as a tree
+                    JsonParser jsonParser = new JsonParser();
+                    JsonObject resource = new JsonObject();
+                    resource.add(firstMember, jsonParser.parse(reader));
+                    while (reader.hasNext()) {
+                        resource.add(reader.nextName(), jsonParser.parse(reader));
+                    }
+                    String resourceType = stringMember(resource, "resourceType");
+                    if ("MessageHeader".equals(resourceType) && !foundHeader) {
+                        header = true;
+                        resourceId = readJsonHeader(resource);
+                    } else if ("Parameters".equals(resourceType) && !foundParameters) {
+                        readJsonParameters(resource);
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (header) {
+            messageHeaderId = headerId(fullUrl, resourceId);
+        }
+    }
+
+    // reads the rest of a MessageHeader resource and returns its id
+    private String readJsonHeader(JsonReader reader) throws IOException {
+        foundHeader = true;
+        String id = null;
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("id".equals(name)) {
+                id = reader.nextString();
+            } else if ("eventUri".equals(name)) {
+                messageType = reader.nextString();
+            } else if ("source".equals(name)) {
+                messageSource = readJsonStringMember(reader, "endpoint");
+            } else if ("response".equals(name)) {
+                responseIdentifier = readJsonStringMember(reader, "identifier");
+            } else if ("destination".equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    String endpoint = readJsonStringMember(reader, "endpoint");
+                    if (messageDestination == null) {
+                        messageDestination = endpoint;
+                    }
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        return id;
+    }
+
+    private static String readJsonStringMember(JsonReader reader, String member) throws IOException {
+        String value = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (member.equals(reader.nextName())) {
+                value = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return value;
+    }
+
+    private void readJsonParameters(JsonReader reader) throws IOException {
+        foundParameters = true;
+        while (reader.hasNext()) {
+            if ("parameter".equals(reader.nextName())) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    String name = null;
+                    String value = null;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String member = reader.nextName();
+                        if ("name".equals(member)) {
+                            name = reader.nextString();
+                        } else if (isIdentifierValue(member)) {
+                            value = reader.nextString();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                    setParameter(name, value);
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+    }
+
+    private String readJsonHeader(JsonObject resource) {
+        foundHeader = true;
+        messageType = stringMember(resource, "eventUri");
+        if (resource.has("source") && resource.get("source").isJsonObject()) {
+            messageSource = stringMember(resource.getAsJsonObject("source"), "endpoint");
+        }
+        if (resource.has("response") && resource.get("response").isJsonObject()) {
+            responseIdentifier = stringMember(resource.getAsJsonObject("response"), "identifier");
+        }
+        if (resource.has("destination") && resource.get("destination").isJsonArray()) {
+            JsonArray destinations = resource.getAsJsonArray("destination");
+            if (destinations.size() > 0 && destinations.get(0).isJsonObject()) {
+                messageDestination = stringMember(destinations.get(0).getAsJsonObject(), "endpoint");
+            }
+        }
+        return stringMember(resource, "id");
+    }
+
+    private void readJsonParameters(JsonObject resource) {
+        foundParameters = true;
+        if (resource.has("parameter") && resource.get("parameter").isJsonArray()) {
+            for (JsonElement element : resource.getAsJsonArray("parameter")) {
+                if (element.isJsonObject()) {
+                    JsonObject parameter = element.getAsJsonObject();
+                    String value = null;
+                    for (String member : parameter.keySet()) {
+                        if (isIdentifierValue(member)) {
+                            value = stringMember(parameter, member);
+                        }
+                    }
+                    setParameter(stringMember(parameter, "name"), value);
+                }
+            }
+        }
+    }
+
+    private static String stringMember(JsonObject object, String member) {
+        JsonElement element = object.get(member);
+        return element != null && element.isJsonPrimitive() ? element.getAsString() : null;
+    }
+
+    private void readXmlBundle(XMLStreamReader xml) throws XMLStreamException {
+        xml.nextTag();
+        if (!"Bundle".equals(xml.getLocalName())) {
+            throw new IllegalArgumentException("Unable to parse bundle, found root element " + xml.getLocalName());
+        }
+        while (!isDone() && xml.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = xml.getLocalName();
+            if ("id".equals(name)) {
+                messageId = xml.getAttributeValue(null, "value");
+                skipXmlElement(xml);
+            } else if ("entry".equals(name) && !isComplete()) {
+                readXmlEntry(xml);
+            } else {
+                skipXmlElement(xml);
+            }
+        }
+    }
+
+    private void readXmlEntry(XMLStreamReader xml) throws XMLStreamException {
+        String fullUrl = null;
+        String resourceId = null;
+        boolean header = false;
+        while (xml.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = xml.getLocalName();
+            if ("fullUrl".equals(name)) {
+                fullUrl = xml.getAttributeValue(null, "value");
+                skipXmlElement(xml);
+            } else if ("resource".equals(name)) {
+                if (xml.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                    String resourceType = xml.getLocalName();
+                    if ("MessageHeader".equals(resourceType) && !foundHeader) {
+                        header = true;
+                        resourceId = readXmlHeader(xml);
+                    } else if ("Parameters".equals(resourceType) && !foundParameters) {
+                        readXmlParameters(xml);
+                    } else {
+                        skipXmlElement(xml);
+                    }
+                    xml.nextTag();
+                }
+            } else {
+                skipXmlElement(xml);
+            }
+        }
+        if (header) {
+            messageHeaderId = headerId(fullUrl, resourceId);
+        }
+    }
+
+    private String readXmlHeader(XMLStreamReader xml) throws XMLStreamException {
+        foundHeader = true;
+        String id = null;
+        while (xml.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = xml.getLocalName();
+            if ("id".equals(name)) {
+                id = xml.getAttributeValue(null, "value");
+                skipXmlElement(xml);
+            } else if ("eventUri".equals(name)) {
+                messageType = xml.getAttributeValue(null, "value");
+                skipXmlElement(xml);
+            } else if ("source".equals(name)) {
+                messageSource = readXmlChildValue(xml, "endpoint");
+            } else if ("response".equals(name)) {
+                responseIdentifier = readXmlChildValue(xml, "identifier");
+            } else if ("destination".equals(name)) {
+                String endpoint = readXmlChildValue(xml, "endpoint");
+                if (messageDestination == null) {
+                    messageDestination = endpoint;
+                }
+            } else {
+                skipXmlElement(xml);
+            }
+        }
+        return id;
+    }
+
+    private void readXmlParameters(XMLStreamReader xml) throws XMLStreamException {
+        foundParameters = true;
+        while (xml.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if ("parameter".equals(xml.getLocalName())) {
+                String name = null;
+                String value = null;
+                while (xml.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                    String member = xml.getLocalName();
+                    if ("name".equals(member)) {
+                        name = xml.getAttributeValue(null, "value");
+                    } else if (isIdentifierValue(member)) {
+                        value = xml.getAttributeValue(null, "value");
+                    }
+                    skipXmlElement(xml);
+                }
+                setParameter(name, value);
+            } else {
+                skipXmlElement(xml);
+            }
+        }
+    }
+
+    // reads the value attribute of a direct child of the current element and moves past the current element
+    private static String readXmlChildValue(XMLStreamReader xml, String child) throws XMLStreamException {
+        String value = null;
+        while (xml.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (child.equals(xml.getLocalName())) {
+                value = xml.getAttributeValue(null, "value");
+            }
+            skipXmlElement(xml);
+        }
+        return value;
+    }
+
+    // moves from the start of the current element to its end
+    private static void skipXmlElement(XMLStreamReader xml) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = xml.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private static XMLInputFactory createXmlInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+}
@@ -0,0 +1,88 @@
+package edu.gatech.chai.VRDR.messaging.util;
+
+import edu.gatech.chai.VRDR.messaging.AcknowledgementMessage;
+import edu.gatech.chai.VRDR.messaging.BaseMessage;
+import edu.gatech.chai.VRDR.messaging.CauseOfDeathCodingMessage;
+import edu.gatech.chai.VRDR.messaging.CauseOfDeathCodingUpdateMessage;
+import edu.gatech.chai.VRDR.messaging.DeathRecordAliasMessage;
+import edu.gatech.chai.VRDR.messaging.DeathRecordSubmissionMessage;
+import edu.gatech.chai.VRDR.messaging.DeathRecordUpdateMessage;
+import edu.gatech.chai.VRDR.messaging.DeathRecordVoidMessage;
+import edu.gatech.chai.VRDR.messaging.DemographicsCodingMessage;
+import edu.gatech.chai.VRDR.messaging.DemographicsCodingUpdateMessage;
+import edu.gatech.chai.VRDR.messaging.ExtractionErrorMessage;
+import edu.gatech.chai.VRDR.messaging.StatusMessage;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import org.hl7.fhir.r4.model.Bundle;
+
+/**
+ * Maps message event URIs, and message classes, to the constructor that wraps a parsed bundle, so parsing a message
+ * builds it once without reflection. All the VRDR message types are registered up front, applications can
+ * {@link #register(String, Class, Function)} their own or replace the factory of an existing event, and
+ * {@link #unregister(Class)} them again.
+ */
+public final class MessageTypeRegistry {
+
+    private static final Map<String, Function<Bundle, ? extends BaseMessage>> FACTORIES_BY_EVENT = new ConcurrentHashMap<>();
+    private static final Map<Class<?>, Function<Bundle, ? extends BaseMessage>> FACTORIES_BY_CLASS = new ConcurrentHashMap<>();
+    private static final Map<Class<?>, String> EVENTS_BY_CLASS = new ConcurrentHashMap<>();
+
+    static {
+        register(DeathRecordSubmissionMessage.MESSAGE_TYPE, DeathRecordSubmissionMessage.class, DeathRecordSubmissionMessage::new);
+        register(DeathRecordUpdateMessage.MESSAGE_TYPE, DeathRecordUpdateMessage.class, DeathRecordUpdateMessage::new);
+        register(DeathRecordVoidMessage.MESSAGE_TYPE, DeathRecordVoidMessage.class, DeathRecordVoidMessage::new);
+        register(DeathRecordAliasMessage.MESSAGE_TYPE, DeathRecordAliasMessage.class, DeathRecordAliasMessage::new);
+        register(AcknowledgementMessage.MESSAGE_TYPE, AcknowledgementMessage.class, AcknowledgementMessage::new);
+        register(StatusMessage.MESSAGE_TYPE, StatusMessage.class, StatusMessage::new);
+        register(CauseOfDeathCodingMessage.MESSAGE_TYPE, CauseOfDeathCodingMessage.class, CauseOfDeathCodingMessage::new);
+        register(DemographicsCodingMessage.MESSAGE_TYPE, DemographicsCodingMessage.class, DemographicsCodingMessage::new);
+        register(CauseOfDeathCodingUpdateMessage.MESSAGE_TYPE, CauseOfDeathCodingUpdateMessage.class, CauseOfDeathCodingUpdateMessage::new);
+        register(DemographicsCodingUpdateMessage.MESSAGE_TYPE, DemographicsCodingUpdateMessage.class, DemographicsCodingUpdateMessage::new);
+        register(ExtractionErrorMessage.MESSAGE_TYPE, ExtractionErrorMessage.class, ExtractionErrorMessage::new);
+    }
+
+    private MessageTypeRegistry() {
+    }
+
+    public static <T extends BaseMessage> void register(String eventUri, Class<T> messageClass, Function<Bundle, T> factory) {
+        if (eventUri == null || messageClass == null || factory == null) {
+            throw new IllegalArgumentException("The event URI, message class and factory are all required");
+        }
+        FACTORIES_BY_EVENT.put(eventUri, factory);
+        FACTORIES_BY_CLASS.put(messageClass, factory);
+        EVENTS_BY_CLASS.put(messageClass, eventUri);
+    }
+
+    // removes a class registered with register, and its event unless another class was registered for it since,
+    // a built in type whose event the class had replaced is not restored
+    public static void unregister(Class<? extends BaseMessage> messageClass) {
+        if (messageClass == null) {
+            return;
+        }
+        Function<Bundle, ? extends BaseMessage> factory = FACTORIES_BY_CLASS.remove(messageClass);
+        String eventUri = EVENTS_BY_CLASS.remove(messageClass);
+        if (eventUri != null && factory != null) {
+            FACTORIES_BY_EVENT.remove(eventUri, factory);
+        }
+    }
+
+    // null when no message type is registered for the event
+    public static Function<Bundle, ? extends BaseMessage> getFactory(String eventUri) {
+        return eventUri == null ? null : FACTORIES_BY_EVENT.get(eventUri);
+    }
+
+    // null when the class was not registered, parse then falls back to its bundle constructor
+    @SuppressWarnings("unchecked")
+    public static <T extends BaseMessage> Function<Bundle, T> getFactory(Class<T> messageClass) {
+        return (Function<Bundle, T>) FACTORIES_BY_CLASS.get(messageClass);
+    }
+
+    // the event URI a registered class was registered for, null when the class was not registered
+    public static String getEventUri(Class<? extends BaseMessage> messageClass) {
+        return messageClass == null ? null : EVENTS_BY_CLASS.get(messageClass);
+    }
+}
@@ -0,0 +1,167 @@
+package edu.gatech.chai.VRDR.messaging.util;
+
+import edu.gatech.chai.VRDR.context.VRDRFhirContext;
+import edu.gatech.chai.VRDR.messaging.BaseMessage;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Reads newline delimited JSON archives of messages, as {@link NdjsonWriter} writes them, one line at a time. Lines are
+ * only split off as they are read, and a line is not parsed until its message is asked for, so replaying an archive
+ * holds no more than the lines being handled, and lines can be filtered or forwarded as they are without parsing them.
+ * Blank lines are skipped, and lines may end with \r\n.
+ *
+ * <p>{@link #readBatch(ForkJoinPool, int)} parses the next lines on a pool instead, keeping their order. A reader is
+ * not thread safe and must be closed, or used through {@link #stream()} in a try-with-resources.
+ */
+public class NdjsonReader implements Iterator<NdjsonReader.Line>, Closeable {
+
+    private final VRDRFhirContext ctx;
+    private final BufferedReader reader;
+    private boolean finished;
+    private int lineNumber;
+    private Line next;
+
+    public NdjsonReader(VRDRFhirContext ctx, Reader reader) {
+        this.ctx = ctx;
+        this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+    }
+
+    // the stream may be gzipped, it is decompressed as it is read
+    public NdjsonReader(VRDRFhirContext ctx, InputStream stream) {
+        this(ctx, new BufferedReader(Gzip.utf8Reader(stream)));
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !finished) {
+            try {
+                next = readLine();
+            } catch (IOException e) {
+                finished = true;
+                throw new UncheckedIOException(e);
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public Line next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Line line = next;
+        next = null;
+        return line;
+    }
+
+    /**
+     * Returns the remaining lines as a sequential stream, closing the stream closes this reader.
+     */
+    public Stream<Line> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL),
+                false).onClose(() -> {
+                    try {
+                        close();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+
+    // the remaining lines parsed as messages in order, for a short archive, a long one is better read in batches
+    public Stream<BaseMessage> messages() {
+        return stream().map(Line::getMessage);
+    }
+
+    /**
+     * Reads up to the given number of lines and parses them on the pool, one task per line, returning an empty result
+     * once the archive is read. The messages keep the order of the lines, and a line that cannot be parsed is reported
+     * as a failure with its line number instead of failing the batch.
+     */
+    public BundleOfBundlesResult readBatch(ForkJoinPool pool, int maxLines) {
+        List<Line> lines = new ArrayList<>();
+        while (lines.size() < maxLines && hasNext()) {
+            lines.add(next());
+        }
+
+        return ParallelParsing.parseInOrder(lines, Line::getMessage,
+                (line, e) -> new BundleOfBundlesResult.EntryFailure(line.getLineNumber(), null, e), pool, "archive lines");
+    }
+
+    public BundleOfBundlesResult readAll(ForkJoinPool pool) {
+        return readBatch(pool, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        finished = true;
+        next = null;
+        reader.close();
+    }
+
+    private Line readLine() throws IOException {
+        for (String text = reader.readLine(); text != null; text = reader.readLine()) {
+            lineNumber++;
+            if (!text.trim().isEmpty()) {
+                return new Line(ctx, lineNumber, text);
+            }
+        }
+        finished = true;
+        return null;
+    }
+
+    // one line of an archive, parsed the first time its message is asked for
+    public static class Line {
+        private final VRDRFhirContext ctx;
+        private final int lineNumber;
+        private final String json;
+        private BaseMessage message;
+
+        Line(VRDRFhirContext ctx, int lineNumber, String json) {
+            this.ctx = ctx;
+            this.lineNumber = lineNumber;
+            this.json = json;
+        }
+
+        // counting from one, blank lines included
+        public int getLineNumber() {
+            return lineNumber;
+        }
+
+        public String getJson() {
+            return json;
+        }
+
+        // the message in the class registered for its header event, throwing like BaseMessage.parseJson for bad lines
+        public synchronized BaseMessage getMessage() {
+            if (message == null) {
+                message = BaseMessage.parseJson(BaseMessage.class, ctx, json);
+            }
+            return message;
+        }
+
+        public <T extends BaseMessage> T getMessage(Class<T> messageClass) {
+            BaseMessage parsed = getMessage();
+            if (!messageClass.isInstance(parsed)) {
+                throw new IllegalArgumentException("Line " + lineNumber + " is a " + parsed.getClass().getSimpleName()
+                        + ", not a " + messageClass.getSimpleName());
+            }
+            return messageClass.cast(parsed);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package edu.gatech.chai.VRDR.messaging.util;
+
+import edu.gatech.chai.VRDR.context.VRDRFhirContext;
+import edu.gatech.chai.VRDR.messaging.BaseMessage;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Writes messages as newline delimited JSON, one compact message per line as {@link BaseMessage#toJson(VRDRFhirContext)}
+ * gives it, the counterpart of {@link NdjsonReader}. Compact JSON escapes the line breaks in strings, so a line is
+ * always one whole message, and an archive can be appended to, split or concatenated with plain line tools.
+ *
+ * <p>A writer is not thread safe and must be closed, closing it closes the underlying writer.
+ */
+public class NdjsonWriter implements Closeable {
+
+    private final VRDRFhirContext ctx;
+    private final Writer writer;
+    private boolean closed;
+    private int messageCount;
+
+    public NdjsonWriter(VRDRFhirContext ctx, Writer writer) {
+        this.ctx = ctx;
+        this.writer = writer;
+    }
+
+    public NdjsonWriter(VRDRFhirContext ctx, OutputStream stream) {
+        this(ctx, new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8)));
+    }
+
+    public void write(BaseMessage message) throws IOException {
+        checkOpen();
+        writeLine(encodeLine(message));
+    }
+
+    /**
+     * Writes the messages in order, encoding them on the pool, one task per message. The messages must not be modified
+     * until this returns.
+     */
+    public void writeAll(List<? extends BaseMessage> messages, ForkJoinPool pool) throws IOException {
+        checkOpen();
+        ParallelEncoding.encodeInOrder(messages, this::encodeLine, pool, this::writeLine);
+    }
+
+    public int getMessageCount() {
+        return messageCount;
+    }
+
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            writer.close();
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("The NDJSON writer is closed");
+        }
+    }
+
+    // safe to call from several threads
+    private String encodeLine(BaseMessage message) {
+        return message.toJson(ctx, false);
+    }
+
+    private void writeLine(String line) throws IOException {
+        writer.write(line);
+        writer.write('\n');
+        messageCount++;
+    }
+}
@@ -0,0 +1,58 @@
+package edu.gatech.chai.VRDR.messaging.util;
+
+import edu.gatech.chai.VRDR.messaging.BaseMessage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+
+// encodes messages on a worker pool and hands the encoded chunks back in list order, shared by the batch writers
+final class ParallelEncoding {
+
+    // messages encoded per worker thread before their chunks are written, bounds the chunks held at once
+    private static final int CHUNKS_PER_THREAD = 16;
+
+    interface ChunkConsumer<T> {
+        void accept(T chunk) throws IOException;
+    }
+
+    private ParallelEncoding() {
+    }
+
+    /**
+     * Encodes the messages on the pool, one task per message, and passes the chunks to the consumer on the calling
+     * thread in the order of the list. The messages are taken a window at a time, so only a window of chunks is held
+     * in memory however long the list. The encoder must be thread safe, and the messages must not be modified until
+     * this returns.
+     */
+    static <T> void encodeInOrder(List<? extends BaseMessage> messages, Function<BaseMessage, T> encoder,
+            ForkJoinPool pool, ChunkConsumer<T> consumer) throws IOException {
+        int window = Math.max(1, pool.getParallelism() * CHUNKS_PER_THREAD);
+        for (int start = 0; start < messages.size(); start += window) {
+            List<? extends BaseMessage> slice = messages.subList(start, Math.min(messages.size(), start + window));
+            Object[] chunks;
+            try {
+                chunks = pool.submit(() -> slice.parallelStream().map(encoder).toArray()).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while encoding messages", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) e.getCause()).getCause();
+                }
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IllegalStateException("Unable to encode messages", e.getCause());
+            }
+            for (Object chunk : chunks) {
+                @SuppressWarnings("unchecked")
+                T typed = (T) chunk;
+                consumer.accept(typed);
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package edu.gatech.chai.VRDR.messaging.util;
+
+import edu.gatech.chai.VRDR.messaging.BaseMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+// parses the items of a batch on a worker pool and keeps their order, shared by the batch readers
+final class ParallelParsing {
+
+    private ParallelParsing() {
+    }
+
+    /**
+     * Parses the items on the pool, one task per item, into a result that keeps the order of the list. An item the
+     * parser throws for is reported as the failure made for it instead of failing the batch, and one it returns null
+     * for is left out. The parser must be thread safe. The description, such as "zip entries", names the items in the
+     * exception thrown when the batch itself fails.
+     */
+    static <T> BundleOfBundlesResult parseInOrder(List<T> items, Function<T, BaseMessage> parser,
+            BiFunction<T, RuntimeException, BundleOfBundlesResult.EntryFailure> failure, ForkJoinPool pool,
+            String description) {
+        Object[] parsed;
+        try {
+            parsed = pool.submit(() -> items.parallelStream()
+                    .map(item -> {
+                        try {
+                            return (Object) parser.apply(item);
+                        } catch (RuntimeException e) {
+                            return failure.apply(item, e);
+                        }
+                    })
+                    .toArray()).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while parsing " + description, e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to parse " + description, e.getCause());
+        }
+
+        List<BaseMessage> messages = new ArrayList<>();
+        List<BundleOfBundlesResult.EntryFailure> failures = new ArrayList<>();
+        for (Object result : parsed) {
+            if (result instanceof BaseMessage) {
+                messages.add((BaseMessage) result);
+            } else if (result != null) {
+                failures.add((BundleOfBundlesResult.EntryFailure) result);
+            }
+        }
+        return new BundleOfBundlesResult(messages, failures);
+    }
+}
@@ -0,0 +1,77 @@
+package edu.gatech.chai.VRDR.messaging.util;
+
+import edu.gatech.chai.VRDR.messaging.BaseMessage;
+import edu.gatech.chai.VRDR.messaging.ExtractionErrorMessage;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.OperationOutcome;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of one of the {@code BaseMessage.tryParse} methods, either the parsed message or the reasons it could not
+ * be parsed. A failure keeps the bundle when the content itself could be read, so the header of a message of the wrong
+ * or an unsupported type can still be inspected through {@link #getUnknownMessage()} and answered with
+ * {@link #createExtractionErrorMessage()}, like a {@link MessageParseException} would allow.
+ */
+public class ParseResult<T extends Bundle> {
+
+    private final T message;
+    private final Bundle bundle;
+    private final List<ExtractionErrorMessage.Issue> diagnostics;
+    private BaseMessage unknownMessage;
+
+    private ParseResult(T message, Bundle bundle, List<ExtractionErrorMessage.Issue> diagnostics) {
+        this.message = message;
+        this.bundle = bundle;
+        this.diagnostics = diagnostics;
+    }
+
+    public static <T extends Bundle> ParseResult<T> success(T message) {
+        return new ParseResult<>(message, message, Collections.emptyList());
+    }
+
+    // bundle is null when the content could not be read as a FHIR bundle at all
+    public static <T extends Bundle> ParseResult<T> failure(Bundle bundle, OperationOutcome.IssueType issueType,
+            String errorMessage) {
+        return new ParseResult<>(null, bundle, Collections.singletonList(
+                new ExtractionErrorMessage.Issue(OperationOutcome.IssueSeverity.ERROR, issueType, errorMessage)));
+    }
+
+    public boolean isSuccess() {
+        return message != null;
+    }
+
+    // null for a failure
+    public T getMessage() {
+        return message;
+    }
+
+    public List<ExtractionErrorMessage.Issue> getDiagnostics() {
+        return diagnostics;
+    }
+
+    // the description of the first diagnostic, null for a success
+    public String getErrorMessage() {
+        return diagnostics.isEmpty() ? null : diagnostics.get(0).getDescription();
+    }
+
+    /**
+     * Returns the bundle of a failure wrapped without any checks, null for a success or when the content could not be
+     * read. It is only built when asked for, so failures that are just counted or logged stay cheap.
+     */
+    public BaseMessage getUnknownMessage() {
+        if (unknownMessage == null && message == null && bundle != null) {
+            unknownMessage = new UnknownMessage(bundle);
+        }
+        return unknownMessage;
+    }
+
+    public ExtractionErrorMessage createExtractionErrorMessage() {
+        ExtractionErrorMessage errorMessage = new ExtractionErrorMessage(getUnknownMessage());
+        for (ExtractionErrorMessage.Issue issue : diagnostics) {
+            errorMessage.addIssue(issue.getIssueSeverity(), issue.getIssueType(), issue.getDescription());
+        }
+        return errorMessage;
+    }
+}
@@ -0,0 +1,244 @@
+package edu.gatech.chai.VRDR.messaging.util;
+
+import ca.uhn.fhir.parser.json.JsonLikeWriter;
+import com.google.gson.stream.JsonWriter;
+import edu.gatech.chai.VRDR.model.DeathCertificateDocument;
+import org.hl7.fhir.r4.model.Bundle;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Writes what the HAPI JSON encoder writes for a message straight to a Writer, the way HAPI's own Gson writer does,
+ * and puts the received JSON of relayed documents into their entries as it goes. The message is encoded with each
+ * relayed entry holding only its full url; when such an entry of the root entry array ends, the received JSON of the
+ * next relayed document is written as its resource.
+ */
+public class RelayJsonLikeWriter extends JsonLikeWriter {
+
+    private final Iterator<Bundle.BundleEntryComponent> relayed;
+    private Bundle.BundleEntryComponent next;
+    private JsonWriter jsonWriter;
+    // true for each open object, false for each open array
+    private final Deque<Boolean> open = new ArrayDeque<>();
+    private boolean inEntryArray;
+    private String entryFullUrl;
+    private int entryMembers;
+
+    // the relayed entries, in the order of the entry array, each with a full url and a DeathCertificateDocument
+    public RelayJsonLikeWriter(Writer writer, List<Bundle.BundleEntryComponent> relayed) {
+        setWriter(writer);
+        this.relayed = relayed.iterator();
+        this.next = this.relayed.hasNext() ? this.relayed.next() : null;
+    }
+
+    @Override
+    public JsonLikeWriter init() {
+        jsonWriter = new JsonWriter(getWriter());
+        jsonWriter.setSerializeNulls(true);
+        if (isPrettyPrint()) {
+            jsonWriter.setIndent("  ");
+        }
+        open.clear();
+        return this;
+    }
+
+    @Override
+    public JsonLikeWriter flush() throws IOException {
+        jsonWriter.flush();
+        return this;
+    }
+
+    @Override
+    public void close() throws IOException {
+        jsonWriter.close();
+    }
+
+    @Override
+    public JsonLikeWriter beginObject() throws IOException {
+        if (inEntryArray && open.size() == 2) {
+            entryFullUrl = null;
+            entryMembers = 0;
+        }
+        open.push(true);
+        jsonWriter.beginObject();
+        return this;
+    }
+
+    @Override
+    public JsonLikeWriter beginArray() throws IOException {
+        open.push(false);
+        jsonWriter.beginArray();
+        return this;
+    }
+
+    @Override
+    public JsonLikeWriter beginObject(String name) throws IOException {
+        member(name);
+        open.push(true);
+        jsonWriter.name(name).beginObject();
+        return this;
+    }
+
+    @Override
+    public JsonLikeWriter beginArray(String name) throws IOException {
+        member(name);
+        if (open.size() == 1) {
+            inEntryArray = "entry".equals(name);
+        }
+        open.push(false);
+        jsonWriter.name(name).beginArray();
+        return this;
+    }
+
+    @Override
+    public JsonLikeWriter write(String value) throws IOException {
+        jsonWriter.value(value);
+        return this;
+    }
+
+    @Override
+    public JsonLikeWriter write(BigInteger value) throws IOException {
+        jsonWriter.value(value);
+        return this;
+    }
+
+    @Override
+    public JsonLikeWriter write(BigDecimal value) throws IOException {
+        jsonWriter.value(value);
+        return this;
+    }
+
+    @Override
+    public JsonLikeWriter write(long value) throws IOException {
+        jsonWriter.value(value);
+        return this;
+    }
+
+    @Override
+    public JsonLikeWriter write(double value) throws IOException {
+        jsonWriter.value(value);
+        return this;
+    }
+
+    @Override
+    public JsonLikeWriter write(Boolean value) throws IOException {
+        jsonWriter.value(value);
+        return this;
+    }
+
+    @Override
+    public JsonLikeWriter write(boolean value) throws IOException {
+        jsonWriter.value(value);
+        return this;
+    }
+
+    @Override
+    public JsonLikeWriter writeNull() throws IOException {
+        jsonWriter.nullValue();
+        return this;
+    }
+
+    @Override
+    public JsonLikeWriter write(String name, String value) throws IOException {
+        member(name);
+        if (isEntryLevel() && "fullUrl".equals(name)) {
+            entryFullUrl = value;
+        }
+        jsonWriter.name(name).value(value);
+        return this;
+    }
+
+    @Override
+    public JsonLikeWriter write(String name, BigInteger value) throws IOException {
+        member(name);
+        jsonWriter.name(name).value(value);
+        return this;
+    }
+
+    @Override
+    public JsonLikeWriter write(String name, BigDecimal value) throws IOException {
+        member(name);
+        jsonWriter.name(name).value(value);
+        return this;
+    }
+
+    @Override
+    public JsonLikeWriter write(String name, long value) throws IOException {
+        member(name);
+        jsonWriter.name(name).value(value);
+        return this;
+    }
+
+    @Override
+    public JsonLikeWriter write(String name, double value) throws IOException {
+        member(name);
+        jsonWriter.name(name).value(value);
+        return this;
+    }
+
+    @Override
+    public JsonLikeWriter write(String name, Boolean value) throws IOException {
+        member(name);
+        jsonWriter.name(name).value(value);
+        return this;
+    }
+
+    @Override
+    public JsonLikeWriter write(String name, boolean value) throws IOException {
+        member(name);
+        jsonWriter.name(name).value(value);
+        return this;
+    }
+
+    @Override
+    public JsonLikeWriter writeNull(String name) throws IOException {
+        member(name);
+        jsonWriter.name(name).nullValue();
+        return this;
+    }
+
+    @Override
+    public JsonLikeWriter endObject() throws IOException {
+        if (isEntryLevel() && next != null && entryMembers == 1 && next.getFullUrl().equals(entryFullUrl)) {
+            jsonWriter.name("resource");
+            ((DeathCertificateDocument) next.getResource()).writeReceivedJson(jsonWriter);
+            next = relayed.hasNext() ? relayed.next() : null;
+        }
+        open.pop();
+        jsonWriter.endObject();
+        return this;
+    }
+
+    @Override
+    public JsonLikeWriter endArray() throws IOException {
+        open.pop();
+        if (open.size() == 1) {
+            inEntryArray = false;
+        }
+        jsonWriter.endArray();
+        return this;
+    }
+
+    @Override
+    public JsonLikeWriter endBlock() throws IOException {
+        return open.peek() ? endObject() : endArray();
+    }
+
+    // directly inside an object of the root entry array
+    private boolean isEntryLevel() {
+        return inEntryArray && open.size() == 3;
+    }
+
+    private void member(String name) {
+        if (isEntryLevel()) {
+            entryMembers++;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package edu.gatech.chai.VRDR.messaging.util;
+
+import edu.gatech.chai.VRDR.context.VRDRFhirContext;
+import edu.gatech.chai.VRDR.messaging.BaseMessage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Reads a zip archive of messages, one message per entry in JSON or XML, each entry on its own possibly gzipped too.
+ * The archive is read as a stream, so it can come straight from a download or a file without being unpacked to disk,
+ * and only the entries being handled are held in memory. An entry is not parsed until its message is asked for.
+ * Directory entries are skipped. An entry larger than {@link #setMaxEntrySize(int) max entry size} is not read, it
+ * ends the archive with an {@link UncheckedIOException}. The same size limits the content of a gzipped entry as it is
+ * decompressed, and parsing one that expands past it fails like any other bad entry.
+ *
+ * <p>{@link #readBatch(ForkJoinPool, int)} parses the next entries on a pool instead, each as an independent message,
+ * keeping the order of the archive. A reader is not thread safe and must be closed.
+ */
+public class ZipBatchReader implements Iterator<ZipBatchReader.Entry>, Closeable {
+
+    // the bytes an entry may take as stored in the archive, and once decompressed when the file in it is gzipped
+    public static final int DEFAULT_MAX_ENTRY_SIZE = 64 * 1024 * 1024;
+
+    // the most an entry's buffer starts with, so a size recorded in the archive cannot reserve more up front
+    private static final int MAX_INITIAL_CAPACITY = 1024 * 1024;
+
+    private final VRDRFhirContext ctx;
+    private final ZipInputStream zip;
+    private final byte[] copyBuffer = new byte[8192];
+    private int maxEntrySize = DEFAULT_MAX_ENTRY_SIZE;
+    private boolean finished;
+    private int entryNumber;
+    private Entry next;
+
+    public ZipBatchReader(VRDRFhirContext ctx, InputStream stream) {
+        this.ctx = ctx;
+        this.zip = new ZipInputStream(stream);
+    }
+
+    public void setMaxEntrySize(int maxEntrySize) {
+        if (maxEntrySize < 1) {
+            throw new IllegalArgumentException("An entry must be allowed at least one byte");
+        }
+        this.maxEntrySize = maxEntrySize;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !finished) {
+            try {
+                next = readEntry();
+            } catch (IOException e) {
+                finished = true;
+                throw new UncheckedIOException(e);
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public Entry next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Entry entry = next;
+        next = null;
+        return entry;
+    }
+
+    /**
+     * Reads up to the given number of entries and parses them on the pool, one task per entry, returning an empty
+     * result once the archive is read. The messages keep the order of the entries, and an entry that cannot be parsed
+     * is reported as a failure with its entry number and name instead of failing the batch.
+     */
+    public BundleOfBundlesResult readBatch(ForkJoinPool pool, int maxEntries) {
+        List<Entry> entries = new ArrayList<>();
+        while (entries.size() < maxEntries && hasNext()) {
+            entries.add(next());
+        }
+
+        return ParallelParsing.parseInOrder(entries, Entry::getMessage,
+                (entry, e) -> new BundleOfBundlesResult.EntryFailure(entry.getEntryNumber(), entry.getName(), e), pool, "zip entries");
+    }
+
+    public BundleOfBundlesResult readAll(ForkJoinPool pool) {
+        return readBatch(pool, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        finished = true;
+        next = null;
+        zip.close();
+    }
+
+    private Entry readEntry() throws IOException {
+        for (ZipEntry zipEntry = zip.getNextEntry(); zipEntry != null; zipEntry = zip.getNextEntry()) {
+            if (!zipEntry.isDirectory()) {
+                long size = zipEntry.getSize();
+                // the size is only known up front when the archive recorded it ahead of the entry, and is not trusted
+                // beyond telling an entry that is too large before reading it
+                if (size > maxEntrySize) {
+                    throw entryTooLarge(zipEntry);
+                }
+                ByteArrayOutputStream content = new ByteArrayOutputStream(
+                        size > 0 ? (int) Math.min(size, MAX_INITIAL_CAPACITY) : copyBuffer.length);
+                for (int read = zip.read(copyBuffer); read > 0; read = zip.read(copyBuffer)) {
+                    if (content.size() > maxEntrySize - read) {
+                        throw entryTooLarge(zipEntry);
+                    }
+                    content.write(copyBuffer, 0, read);
+                }
+                return new Entry(ctx, ++entryNumber, zipEntry.getName(), content.toByteArray(), maxEntrySize);
+            }
+        }
+        finished = true;
+        return null;
+    }
+
+    private IOException entryTooLarge(ZipEntry zipEntry) {
+        return new IOException("Zip entry " + zipEntry.getName() + " is larger than the maximum of " + maxEntrySize + " bytes");
+    }
+
+    // one file entry of an archive, parsed the first time its message is asked for
+    public static class Entry {
+        private final VRDRFhirContext ctx;
+        private final int entryNumber;
+        private final String name;
+        private final byte[] content;
+        private final int maxContentSize;
+        private BaseMessage message;
+
+        Entry(VRDRFhirContext ctx, int entryNumber, String name, byte[] content, int maxContentSize) {
+            this.ctx = ctx;
+            this.entryNumber = entryNumber;
+            this.name = name;
+            this.content = content;
+            this.maxContentSize = maxContentSize;
+        }
+
+        // counting from one, directories not included
+        public int getEntryNumber() {
+            return entryNumber;
+        }
+
+        // the path of the entry within the archive
+        public String getName() {
+            return name;
+        }
+
+        // the bytes of the file in the entry, still gzipped when the file was
+        public byte[] getContent() {
+            return content.clone();
+        }
+
+        // the message in the class registered for its header event, throwing like BaseMessage.parse for bad entries,
+        // a gzipped entry included that decompresses to more than the max entry size
+        public synchronized BaseMessage getMessage() {
+            if (message == null) {
+                if (!Gzip.isGzipped(ByteBuffer.wrap(content))) {
+                    message = BaseMessage.parse(BaseMessage.class, ctx, content);
+                } else {
+                    InputStream decompressed;
+                    try {
+                        decompressed = Gzip.decompressIfGzipped(new ByteArrayInputStream(content), maxContentSize);
+                    } catch (IOException e) {
+                        throw new IllegalArgumentException("Unable to parse bundle, exception: " + e);
+                    }
+                    message = BaseMessage.parse(BaseMessage.class, ctx, decompressed);
+                }
+            }
+            return message;
+        }
+
+        public <T extends BaseMessage> T getMessage(Class<T> messageClass) {
+            BaseMessage parsed = getMessage();
+            if (!messageClass.isInstance(parsed)) {
+                throw new IllegalArgumentException("Entry " + name + " is a " + parsed.getClass().getSimpleName()
+                        + ", not a " + messageClass.getSimpleName());
+            }
+            return messageClass.cast(parsed);
+        }
+    }
+}
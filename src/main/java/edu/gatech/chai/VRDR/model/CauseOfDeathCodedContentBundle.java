@@ -4,17 +4,21 @@ import edu.gatech.chai.VRDR.model.util.CauseOfDeathConditionUtil;
 import org.hl7.fhir.r4.model.*;
 
 import ca.uhn.fhir.model.api.annotation.ResourceDef;
+import edu.gatech.chai.VRDR.model.util.BundleEntryIndex;
 import edu.gatech.chai.VRDR.model.util.CommonUtil;
+import edu.gatech.chai.VRDR.model.util.IndexedBundle;
 
 import java.util.List;
 
 @ResourceDef(name = "Bundle", profile = "http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-cause-of-death-coded-bundle")
-public class CauseOfDeathCodedContentBundle extends Bundle {
+public class CauseOfDeathCodedContentBundle extends Bundle implements IndexedBundle {
 
 	/**
 	 * 
 	 */
 	private static final long serialVersionUID = 1775205638319513588L;
+	// the entries by profile for the getters below
+	private transient volatile BundleEntryIndex entryIndex;
 
 	public CauseOfDeathCodedContentBundle() {
 		super();
@@ -22,6 +26,13 @@ public class CauseOfDeathCodedContentBundle extends Bundle {
 		this.setType(BundleType.COLLECTION);
 	}
 
+	@Override
+	public BundleEntryIndex getEntryIndex() {
+		BundleEntryIndex index = BundleEntryIndex.current(entryIndex, this);
+		entryIndex = index;
+		return index;
+	}
+
 	public CauseOfDeathCodedContentBundle addCertificateNumber(String value) {
 		return addExtension("http://hl7.org/fhir/us/vrdr/StructureDefinition/CertificateNumber", value, 6);
 	}
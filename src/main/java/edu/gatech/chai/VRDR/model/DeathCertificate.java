@@ -1,8 +1,12 @@
 package edu.gatech.chai.VRDR.model;
 
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.Composition;
 import org.hl7.fhir.r4.model.Organization;
 import org.hl7.fhir.r4.model.Patient;
@@ -20,6 +24,10 @@ public class DeathCertificate extends Composition {
 	 * 
 	 */
 	private static final long serialVersionUID = -2537704080131333367L;
+	// the sections by the system and code of their codings, rebuilt when sections were added or replaced elsewhere
+	private transient Map<String, SectionComponent> sectionsByCode;
+	private transient List<SectionComponent> indexedSections;
+	private transient int indexedSectionCount;
 
 	public DeathCertificate() {
 		super();
@@ -108,15 +116,41 @@ public class DeathCertificate extends Composition {
 		section.addEntry(new Reference(resource.getId()));
 	}
 	
+	// finds the section by its codings, so sections of a parsed certificate are found as well as ones added here
 	public SectionComponent findOrCreateSection(CodeableConcept sectionCode) {
-		for(SectionComponent section: this.getSection()) {
-			if(section.getCode().equals(sectionCode)) {
-				return section;
-			}
+		List<SectionComponent> sections = this.getSection();
+		if (sectionsByCode == null || indexedSections != sections || indexedSectionCount != sections.size()) {
+			indexSections(sections);
+		}
+		String key = sectionKey(sectionCode);
+		SectionComponent section = sectionsByCode.get(key);
+		if (section != null) {
+			return section;
 		}
 		SectionComponent newSection = new SectionComponent();
 		newSection.setCode(sectionCode);
 		this.addSection(newSection);
+		sectionsByCode.put(key, newSection);
+		indexedSectionCount = sections.size();
 		return newSection;
 	}
-}
\ No newline at end of file
+
+	private void indexSections(List<SectionComponent> sections) {
+		sectionsByCode = new HashMap<>();
+		for (SectionComponent section : sections) {
+			sectionsByCode.putIfAbsent(sectionKey(section.getCode()), section);
+		}
+		indexedSections = sections;
+		indexedSectionCount = sections.size();
+	}
+
+	private static String sectionKey(CodeableConcept code) {
+		StringBuilder key = new StringBuilder();
+		if (code != null) {
+			for (Coding coding : code.getCoding()) {
+				key.append(coding.getSystem()).append('|').append(coding.getCode()).append(' ');
+			}
+		}
+		return key.toString();
+	}
+}
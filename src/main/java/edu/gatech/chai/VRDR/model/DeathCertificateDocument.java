@@ -1,36 +1,68 @@
 package edu.gatech.chai.VRDR.model;
 
-import java.util.ArrayList;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.List;
-import java.util.stream.Collectors;
 
 import edu.gatech.chai.VRDR.context.VRDRFhirContext;
 import org.hl7.fhir.r4.model.*;
 import org.hl7.fhir.r4.model.Composition.CompositionStatus;
 
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+
 import ca.uhn.fhir.model.api.annotation.ResourceDef;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import edu.gatech.chai.VRDR.messaging.util.BinaryCodec;
+import edu.gatech.chai.VRDR.messaging.util.CanonicalJson;
+import edu.gatech.chai.VRDR.messaging.util.Gzip;
+import edu.gatech.chai.VRDR.model.util.BundleEntryIndex;
+import edu.gatech.chai.VRDR.model.util.BundleReferenceIndex;
 import edu.gatech.chai.VRDR.model.util.CommonUtil;
 import edu.gatech.chai.VRDR.model.util.DeathCertificateDocumentUtil;
+import edu.gatech.chai.VRDR.model.util.IndexedBundle;
 
 @ResourceDef(name = "Bundle", profile = "http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-death-certificate-document")
-public class DeathCertificateDocument extends Bundle {
+public class DeathCertificateDocument extends Bundle implements IndexedBundle {
 
 	public static final String LOINC_CODE_DATE_PRONOUNCED_DEAD = "80616-6";
 
 	private static final long serialVersionUID = -429197004514766374L;
+	private static final Gson RECEIVED_JSON_GSON = new GsonBuilder().disableHtmlEscaping().create();
+	// set through the setters, otherwise the getters derive them from the death date and injury incident
 	public ExtraDateTimeType extraDateTimeType4Death;
 	public ExtraDateTimeType extraDateTimeType4Injury;
-
+	// the JSON this document was parsed from and a copy of the document then, only kept when parsed for relaying
+	private transient volatile ReceivedJson receivedJson;
+	// the entry resources by class and profile for the getters below, dropped when entries are added
+	private transient volatile BundleEntryIndex entryIndex;
+	// the entry resources by fullUrl and id for resolving references, dropped along with the one above
+	private transient volatile BundleReferenceIndex referenceIndex;
+	// the missing or unknown death and injury times, derived once for the entries in an entry index
+	private transient volatile DerivedTimes derivedTimes;
+
+	// "null" when the death date has no time, "unknown" when it has no date, null when it is complete or missing;
+	// a derived one is a new instance on every call, so changing it does not change what later calls return
 	public ExtraDateTimeType getExtraDateTimeType4Death() {
-		return this.extraDateTimeType4Death;
+		return this.extraDateTimeType4Death != null ? this.extraDateTimeType4Death : getDerivedTimes().death();
 	}
 
 	public void setExtraDateTimeType4Death(ExtraDateTimeType extraDateTimeType4Death) {
 		this.extraDateTimeType4Death = extraDateTimeType4Death;
 	}
 
+	// like the death time, for the injury incident date
 	public ExtraDateTimeType getExtraDateTimeType4Injury() {
-		return this.extraDateTimeType4Injury;
+		return this.extraDateTimeType4Injury != null ? this.extraDateTimeType4Injury : getDerivedTimes().injury();
 	}
 
 	public void setExtraDateTimeType4Injury(ExtraDateTimeType extraDateTimeType4Injury) {
@@ -59,6 +91,27 @@ public class DeathCertificateDocument extends Bundle {
 		this.getIdentifier().addExtension(extension);
 	}
 
+	@Override
+	public BundleEntryComponent addEntry() {
+		entryIndex = null;
+		referenceIndex = null;
+		return super.addEntry();
+	}
+
+	@Override
+	public Bundle addEntry(BundleEntryComponent entry) {
+		entryIndex = null;
+		referenceIndex = null;
+		return super.addEntry(entry);
+	}
+
+	@Override
+	public Bundle setEntry(List<BundleEntryComponent> entries) {
+		entryIndex = null;
+		referenceIndex = null;
+		return super.setEntry(entries);
+	}
+
 	public void addResource(Resource resource) {
 		DeathCertificate deathCertificate = getDeathCertificate().get(0);
 		deathCertificate.addResource(resource);
@@ -66,181 +119,145 @@ public class DeathCertificateDocument extends Bundle {
 	}
 
 	//Helper Accessor methods
+	// the typed getters such as getDecedent() return shared unmodifiable lists, they used to return a new modifiable
+	// copy on every call; copy one before changing it, and add resources through addEntry or addResource
 
-	private List<Resource> getRecords(Class<? extends Resource> type){
-		List<Resource> returnList = new ArrayList<Resource>();
-		for(BundleEntryComponent bec:this.getEntry()) {
-			Resource resource = bec.getResource();
-			if(type.isInstance(resource)) {
-				returnList.add(resource);
-			}
-		}
-		return returnList;
+	// built on first use and again once the entries change
+	@Override
+	public BundleEntryIndex getEntryIndex() {
+		BundleEntryIndex index = BundleEntryIndex.current(entryIndex, this);
+		entryIndex = index;
+		return index;
 	}
-	private <T extends Resource> List<T> castListOfRecords(List<Resource> inputList){
-		List<T> outputList = inputList
-				.stream()
-				.map(e -> (T) e)
-				.collect(Collectors.toList());
-		return outputList;
+
+	// built on first use and again once the entries change, like the entry index
+	public BundleReferenceIndex getReferenceIndex() {
+		BundleReferenceIndex index = BundleReferenceIndex.current(referenceIndex, this);
+		referenceIndex = index;
+		return index;
+	}
+
+	// the entry resource a section entry, subject, performer, attester or other reference names, null if there is none
+	public Resource resolveReference(Reference reference) {
+		return getReferenceIndex().resolve(reference);
+	}
+
+	// resolves every reference in the entries at once, reporting the ones that name no entry
+	public BundleReferenceIndex.Resolution resolveAllReferences() {
+		return getReferenceIndex().resolveAll();
+	}
+
+	// the lists the index returns are shared and unmodifiable
+	private <T extends Resource> List<T> getRecords(Class<T> type){
+		return getEntryIndex().getResources(type);
 	}
 
 	public List<AutopsyPerformedIndicator> getAutopsyPerformedIndicator(){
-		List<Resource> resources = getRecords(AutopsyPerformedIndicator.class);
-		return castListOfRecords(resources);
+		return getRecords(AutopsyPerformedIndicator.class);
 	}
 
 	public List<BirthRecordIdentifier> getBirthRecordIdentifier(){
-		List<Resource> resources = getRecords(BirthRecordIdentifier.class);
-		return castListOfRecords(resources);
+		return getRecords(BirthRecordIdentifier.class);
 	}
 
 	public List<CauseOfDeathPart1> getCauseOfDeathCondition(){
-		List<Resource> resources = getRecords(CauseOfDeathPart1.class);
-		return castListOfRecords(resources);
+		return getRecords(CauseOfDeathPart1.class);
 	}
 
 	public List<CauseOfDeathPart2> getConditionContributingToDeath(){
-		List<Resource> resources = getRecords(CauseOfDeathPart2.class);
-		return castListOfRecords(resources);
+		return getRecords(CauseOfDeathPart2.class);
 	}
 
 	public List<Certifier> getCertifier(){
-		List<Resource> resources = getRecords(Certifier.class);
-		return castListOfRecords(resources);
+		return getRecords(Certifier.class);
 	}
 
 	public List<DeathCertificate> getDeathCertificate(){
-		List<Resource> resources = getRecords(DeathCertificate.class);
-		return castListOfRecords(resources);
+		return getRecords(DeathCertificate.class);
 	}
 
 
 	public List<DeathCertificationProcedure> getDeathCertificationProcedure(){
-		List<Resource> resources = getRecords(DeathCertificationProcedure.class);
-		return castListOfRecords(resources);
+		return getRecords(DeathCertificationProcedure.class);
 	}
 
 	public List<DeathDate> getDeathDate(){
-		List<Resource> resources = getRecords(DeathDate.class);
-		if(resources.size()>0) {
-			DeathDate deathDate = (DeathDate)resources.get(0);
-			if(deathDate == null || deathDate.getValue() == null || deathDate.dateTimeValue() == null || !deathDate.dateTimeValue().hasTime()) {
-				extraDateTimeType4Death = new ExtraDateTimeType();
-				extraDateTimeType4Death.setMissingOrUnknownDeathTime("null");
-			}
-			if(deathDate.getEffectiveDateTimeType().toString().equals("DateTimeType[null]")) {
-				extraDateTimeType4Death.setMissingOrUnknownDeathTime("unknown");
-			}
-		}
-		return castListOfRecords(resources);
+		return getRecords(DeathDate.class);
 	}
 
-
 	public List<DeathLocation> getDeathLocation(){
-		List<Resource> resources = getRecords(DeathLocation.class);
-		return castListOfRecords(resources);
+		return getRecords(DeathLocation.class);
 	}
 
 	public List<Decedent> getDecedent(){
-		List<Resource> resources = getRecords(Decedent.class);
-		return castListOfRecords(resources);
+		return getRecords(Decedent.class);
 	}
 
 	public List<DecedentAge> getDecedentAge(){
-		List<Resource> resources = getRecords(DecedentAge.class);
-		return castListOfRecords(resources);
+		return getRecords(DecedentAge.class);
 	}
 
 	public List<DecedentDispositionMethod> getDecedentDispositionMethod(){
-		List<Resource> resources = getRecords(DecedentDispositionMethod.class);
-		return castListOfRecords(resources);
+		return getRecords(DecedentDispositionMethod.class);
 	}
 
 	public List<DecedentEducationLevel> getDecedentEducationLevel(){
-		List<Resource> resources = getRecords(DecedentEducationLevel.class);
-		return castListOfRecords(resources);
+		return getRecords(DecedentEducationLevel.class);
 	}
 
 	public List<DecedentFather> getDecedentFather(){
-		List<Resource> resources = getRecords(DecedentFather.class);
-		return castListOfRecords(resources);
+		return getRecords(DecedentFather.class);
 	}
 
 	public List<DecedentMilitaryService> getDecedentMilitaryService(){
-		List<Resource> resources = getRecords(DecedentMilitaryService.class);
-		return castListOfRecords(resources);
+		return getRecords(DecedentMilitaryService.class);
 	}
 
 	public List<DecedentMother> getDecedentMother(){
-		List<Resource> resources = getRecords(DecedentMother.class);
-		return castListOfRecords(resources);
+		return getRecords(DecedentMother.class);
 	}
 
 	public List<DecedentPregnancyStatus> getDecedentPregnancy(){
-		List<Resource> resources = getRecords(DecedentPregnancyStatus.class);
-		return castListOfRecords(resources);
+		return getRecords(DecedentPregnancyStatus.class);
 	}
 
 	public List<DecedentSpouse> getDecedentSpouse(){
-		List<Resource> resources = getRecords(DecedentSpouse.class);
-		return castListOfRecords(resources);
+		return getRecords(DecedentSpouse.class);
 	}
 
 	public List<DecedentUsualWork> getDecedentUsualWork(){
-		List<Resource> resources = getRecords(DecedentUsualWork.class);
-		return castListOfRecords(resources);
+		return getRecords(DecedentUsualWork.class);
 	}
 
 	public List<DispositionLocation> getDispositionLocation(){
-		List<Resource> resources = getRecords(DispositionLocation.class);
-		return castListOfRecords(resources);
+		return getRecords(DispositionLocation.class);
 	}
 
 	public List<ExaminerContacted> getExaminerContacted(){
-		List<Resource> resources = getRecords(ExaminerContacted.class);
-		return castListOfRecords(resources);
+		return getRecords(ExaminerContacted.class);
 	}
 
 	public List<FuneralHome> getFuneralHome(){
-		List<Resource> resources = getRecords(FuneralHome.class);
-		return castListOfRecords(resources);
+		return getRecords(FuneralHome.class);
 	}
 
 	public List<InjuryIncident> getInjuryIncident(){
-		List<Resource> resources = getRecords(InjuryIncident.class);
-		if(resources.size()>0) {
-			InjuryIncident injuryIncident = (InjuryIncident)resources.get(0);
-			if(injuryIncident == null || injuryIncident.getEffectiveDateTimeType() == null || injuryIncident.dateTimeValue() == null || !injuryIncident.dateTimeValue().hasTime()) {
-				extraDateTimeType4Injury = new ExtraDateTimeType();
-				extraDateTimeType4Injury.setMissingOrUnknownDeathTime("null");
-			}
-			if(injuryIncident.getEffectiveDateTimeType().toString().equals("DateTimeType[null]")) {
-				extraDateTimeType4Injury.setMissingOrUnknownDeathTime("unknown");
-			}
-		}
-		return castListOfRecords(resources);
+		return getRecords(InjuryIncident.class);
 	}
 
 	public List<InjuryLocation> getInjuryLocation(){
-		List<Resource> resources = getRecords(InjuryLocation.class);
-		return castListOfRecords(resources);
+		return getRecords(InjuryLocation.class);
 	}
 
 	public List<MannerOfDeath> getMannerOfDeath(){
-		List<Resource> resources = getRecords(MannerOfDeath.class);
-		return castListOfRecords(resources);
+		return getRecords(MannerOfDeath.class);
 	}
 
 	public List<TobaccoUseContributedToDeath> getTobaccoUseContributedToDeath(){
-		List<Resource> resources = getRecords(TobaccoUseContributedToDeath.class);
-		return castListOfRecords(resources);
+		return getRecords(TobaccoUseContributedToDeath.class);
 	}
 
 	public String getDateOfDeathPronouncement() {
-		if (this == null || getDeathDate() == null || getDeathDate().size() == 0) {
-			return null;
-		}
 		for (DeathDate date : getDeathDate()) {
 			for (Observation.ObservationComponentComponent component : date.getComponent()) {
 				for (Coding coding : component.getCode().getCoding()) {
@@ -259,9 +276,69 @@ public class DeathCertificateDocument extends Bundle {
 		return null;
 	}
 
+	private DerivedTimes getDerivedTimes() {
+		BundleEntryIndex index = getEntryIndex();
+		DerivedTimes times = derivedTimes;
+		if (times == null || times.index != index) {
+			times = new DerivedTimes(index);
+			derivedTimes = times;
+		}
+		return times;
+	}
+
+	// reads the dates without touching the resources, so concurrent readers of a parsed document do not race
+	private static final class DerivedTimes {
+		private final BundleEntryIndex index;
+		private final String deathTime;
+		private final String injuryTime;
+
+		private DerivedTimes(BundleEntryIndex index) {
+			this.index = index;
+			List<DeathDate> deathDates = index.getResources(DeathDate.class);
+			if (deathDates.isEmpty()) {
+				deathTime = null;
+			} else {
+				// parsed documents carry the date of death as the value, the constructor sets it as the effective
+				DeathDate deathDate = deathDates.get(0);
+				deathTime = missingOrUnknownTime(deathDate.hasValue() ? deathDate.getValue() : deathDate.getEffective());
+			}
+			List<InjuryIncident> injuryIncidents = index.getResources(InjuryIncident.class);
+			injuryTime = injuryIncidents.isEmpty() ? null : missingOrUnknownTime(injuryIncidents.get(0).getEffective());
+		}
+
+		private ExtraDateTimeType death() {
+			if (deathTime == null) {
+				return null;
+			}
+			ExtraDateTimeType death = new ExtraDateTimeType();
+			death.setMissingOrUnknownDeathTime(deathTime);
+			return death;
+		}
+
+		private ExtraDateTimeType injury() {
+			if (injuryTime == null) {
+				return null;
+			}
+			ExtraDateTimeType injury = new ExtraDateTimeType();
+			// the death time is set too, as it is what callers have been reading for injuries
+			injury.setMissingOrUnknownInjuryTime(injuryTime);
+			injury.setMissingOrUnknownDeathTime(injuryTime);
+			return injury;
+		}
+
+		private static String missingOrUnknownTime(Type value) {
+			if (value == null || (value instanceof BaseDateTimeType && ((BaseDateTimeType) value).getValue() == null)) {
+				return "unknown";
+			}
+			if (value instanceof BaseDateTimeType && !((BaseDateTimeType) value).hasTime()) {
+				return "null";
+			}
+			return null;
+		}
+	}
+
 	public List<InputRaceAndEthnicity> getInputRaceAndEthnicity() {
-		List<Resource> resources = getRecords(InputRaceAndEthnicity.class);
-		return castListOfRecords(resources);
+		return getRecords(InputRaceAndEthnicity.class);
 	}
 
 	public String toJson(VRDRFhirContext ctx) {
@@ -269,8 +346,104 @@ public class DeathCertificateDocument extends Bundle {
 	}
 
 	public String toJson(VRDRFhirContext ctx, boolean prettyPrint) {
-		return ctx.getCtx().newJsonParser().setPrettyPrint(prettyPrint).encodeResourceToString(this);
+		if (hasReceivedJson()) {
+			StringWriter writer = new StringWriter();
+			try {
+				encodeTo(ctx, EncodingEnum.JSON, prettyPrint, writer);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return writer.toString();
+		}
+		return ctx.getJsonParser(prettyPrint).encodeResourceToString(this);
+	}
+
+	// writes the document without building the encoded String first, the writer is flushed but not closed
+	public void encodeTo(VRDRFhirContext ctx, EncodingEnum encoding, boolean prettyPrint, Writer writer) throws IOException {
+		if (encoding != EncodingEnum.JSON || !writeReceivedJson(writer, prettyPrint)) {
+			ctx.getParser(encoding, prettyPrint, true).encodeResourceToWriter(this, writer);
+		}
+		writer.flush();
+	}
+
+	// writes UTF-8 through a buffer, the stream is flushed but not closed
+	public void encodeTo(VRDRFhirContext ctx, EncodingEnum encoding, boolean prettyPrint, OutputStream stream) throws IOException {
+		encodeTo(ctx, encoding, prettyPrint, new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8)));
+	}
+
+	// writes UTF-8, replacing the file if it exists, gzipped when the file name ends in .gz
+	public void encodeTo(VRDRFhirContext ctx, EncodingEnum encoding, boolean prettyPrint, Path path) throws IOException {
+		try (Writer writer = Gzip.newBufferedWriter(path)) {
+			encodeTo(ctx, encoding, prettyPrint, writer);
+		}
+	}
+
+	// the compact form of BinaryCodec, decoded with BaseMessage.parseBinary by stages using the same version of this library
+	public byte[] toBinary(VRDRFhirContext ctx) {
+		return new BinaryCodec(ctx).encode(this);
+	}
+
+	// the SHA-256 of the canonical JSON with ids and timestamps normalized, equal for resubmissions of the same record
+	public String getFingerprint(VRDRFhirContext ctx) {
+		return CanonicalJson.forDuplicates(ctx).fingerprint(this);
+	}
+
+
+
+	/**
+	 * Keeps the JSON this document was parsed from, so that as long as the document is not changed it is written out
+	 * again as received instead of being encoded. A copy of the document is kept along with it, and the document is
+	 * only taken to be unchanged while it is equalsDeep to that copy, which costs about as much memory again as the
+	 * document. Called by {@code BaseMessage.parseJsonForRelay}.
+	 */
+	public void retainReceivedJson(JsonObject json) {
+		this.receivedJson = json == null ? null : new ReceivedJson(json, copy());
+	}
+
+	// whether JSON was kept, the document may have changed since
+	public boolean hasReceivedJson() {
+		return receivedJson != null;
+	}
+
+	// whether JSON was kept and the document is still the same as when it was parsed
+	public boolean isReceivedJsonCurrent() {
+		ReceivedJson received = receivedJson;
+		return received != null && equalsDeep(received.snapshot);
 	}
 
+	// writes the JSON the document was parsed from, returning false without writing when none was kept or the
+	// document has changed since, the members keep their received order and values and only whitespace is redone
+	public boolean writeReceivedJson(Writer writer, boolean prettyPrint) throws IOException {
+		if (!isReceivedJsonCurrent()) {
+			return false;
+		}
+		JsonWriter jsonWriter = new JsonWriter(writer);
+		if (prettyPrint) {
+			jsonWriter.setIndent("  ");
+		}
+		writeReceivedJson(jsonWriter);
+		jsonWriter.flush();
+		return true;
+	}
 
+	// writes the JSON the document was parsed from as the next value of the writer, returning false when none was
+	// kept, it is not checked whether the document has changed since, that is up to the caller
+	public boolean writeReceivedJson(JsonWriter jsonWriter) {
+		ReceivedJson received = receivedJson;
+		if (received == null) {
+			return false;
+		}
+		RECEIVED_JSON_GSON.toJson(received.json, jsonWriter);
+		return true;
+	}
+
+	private static final class ReceivedJson {
+		private final JsonObject json;
+		private final Bundle snapshot;
+
+		private ReceivedJson(JsonObject json, Bundle snapshot) {
+			this.json = json;
+			this.snapshot = snapshot;
+		}
+	}
 }
\ No newline at end of file
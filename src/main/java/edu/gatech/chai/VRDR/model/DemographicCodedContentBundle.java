@@ -1,17 +1,21 @@
 package edu.gatech.chai.VRDR.model;
 
 import ca.uhn.fhir.model.api.annotation.ResourceDef;
+import edu.gatech.chai.VRDR.model.util.BundleEntryIndex;
 import edu.gatech.chai.VRDR.model.util.CommonUtil;
+import edu.gatech.chai.VRDR.model.util.IndexedBundle;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Identifier;
 
 @ResourceDef(name = "Bundle", profile = "http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-demographic-coded-bundle")
-public class DemographicCodedContentBundle extends Bundle {
+public class DemographicCodedContentBundle extends Bundle implements IndexedBundle {
 
 	/**
 	 *
 	 */
 	private static final long serialVersionUID = 1775205638319513588L;
+	// the entries by profile for the getters below
+	private transient volatile BundleEntryIndex entryIndex;
 
 	public DemographicCodedContentBundle() {
 		super();
@@ -19,6 +23,13 @@ public class DemographicCodedContentBundle extends Bundle {
 		this.setType(BundleType.COLLECTION);
 	}
 
+	@Override
+	public BundleEntryIndex getEntryIndex() {
+		BundleEntryIndex index = BundleEntryIndex.current(entryIndex, this);
+		entryIndex = index;
+		return index;
+	}
+
 	public DemographicCodedContentBundle addCertificateNumber(String value) {
 		return addExtension("http://hl7.org/fhir/us/vrdr/StructureDefinition/CertificateNumber", value, 6);
 	}
@@ -0,0 +1,93 @@
+package edu.gatech.chai.VRDR.model.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * The resources of a bundle's entries indexed by class and by their first meta profile, built in one pass so typed
+ * lookups do not scan the entries again. A resource is listed under its own class and each superclass up to Resource,
+ * in entry order, and the lists handed out are unmodifiable and shared by every lookup.
+ *
+ * <p>An index is a snapshot of the entries. {@link #isCurrent(Bundle)} tells whether the bundle still has the same
+ * entry list, of the same size and with the same first and last entries, so adding, removing or replacing entries at
+ * either end is noticed, also when the size stays the same. Replacing an entry in the middle of the list by another,
+ * or the resource of an existing entry, is not; give the bundle a new entry list through {@code setEntry} after such a
+ * change. A built index is not modified, so it can be read by several threads.
+ */
+public final class BundleEntryIndex {
+
+	private final List<Bundle.BundleEntryComponent> entries;
+	private final int size;
+	private final Bundle.BundleEntryComponent first;
+	private final Bundle.BundleEntryComponent last;
+	private final Map<Class<?>, List<Resource>> byClass;
+	private final Map<String, List<Resource>> byProfile;
+
+	private BundleEntryIndex(List<Bundle.BundleEntryComponent> entries, Map<Class<?>, List<Resource>> byClass,
+			Map<String, List<Resource>> byProfile) {
+		this.entries = entries;
+		this.size = entries.size();
+		this.first = size > 0 ? entries.get(0) : null;
+		this.last = size > 0 ? entries.get(size - 1) : null;
+		this.byClass = byClass;
+		this.byProfile = byProfile;
+	}
+
+	public static BundleEntryIndex of(Bundle bundle) {
+		List<Bundle.BundleEntryComponent> entries = bundle.getEntry();
+		Map<Class<?>, List<Resource>> byClass = new HashMap<>();
+		Map<String, List<Resource>> byProfile = new HashMap<>();
+		for (Bundle.BundleEntryComponent entry : entries) {
+			Resource resource = entry.getResource();
+			if (resource == null) {
+				continue;
+			}
+			for (Class<?> type = resource.getClass(); Resource.class.isAssignableFrom(type); type = type.getSuperclass()) {
+				byClass.computeIfAbsent(type, key -> new ArrayList<>()).add(resource);
+			}
+			String profile = CommonUtil.getResourceMetaProfile(resource);
+			if (profile != null) {
+				byProfile.computeIfAbsent(profile, key -> new ArrayList<>()).add(resource);
+			}
+		}
+		return new BundleEntryIndex(entries, unmodifiableValues(byClass), unmodifiableValues(byProfile));
+	}
+
+	// the index if it is still current for the bundle, a new one otherwise
+	public static BundleEntryIndex current(BundleEntryIndex index, Bundle bundle) {
+		return index != null && index.isCurrent(bundle) ? index : of(bundle);
+	}
+
+	// false once entries were added or removed, or the entry list was replaced, as far as the list, its size and its
+	// first and last entries tell
+	public boolean isCurrent(Bundle bundle) {
+		return bundle.getEntry() == entries && entries.size() == size
+				&& (size == 0 || entries.get(0) == first && entries.get(size - 1) == last);
+	}
+
+	// the resources that are instances of the type, in entry order, without allocating
+	@SuppressWarnings("unchecked")
+	public <T extends Resource> List<T> getResources(Class<T> type) {
+		List<Resource> resources = byClass.get(type);
+		return resources == null ? Collections.emptyList() : (List<T>) (List<?>) resources;
+	}
+
+	// the resources whose first meta profile is the given one, in entry order, without allocating
+	public List<Resource> getResourcesByProfile(String profile) {
+		List<Resource> resources = byProfile.get(profile);
+		return resources == null ? Collections.emptyList() : resources;
+	}
+
+	private static <K> Map<K, List<Resource>> unmodifiableValues(Map<K, List<Resource>> map) {
+		for (Map.Entry<K, List<Resource>> resources : map.entrySet()) {
+			resources.setValue(Collections.unmodifiableList(resources.getValue()));
+		}
+		return map;
+	}
+}
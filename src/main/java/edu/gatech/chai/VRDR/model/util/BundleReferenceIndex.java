@@ -0,0 +1,213 @@
+package edu.gatech.chai.VRDR.model.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Property;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * The resources of a bundle's entries keyed by every way a reference can name them, built in one pass so a reference
+ * is resolved with a lookup instead of a scan of the entries. A resource is found by its entry's fullUrl, by its id
+ * with and without the urn:uuid: prefix, and by type/id. Absolute and versioned references that do not match a fullUrl
+ * fall back to their type/id. When two entries share a key the first one is kept.
+ *
+ * <p>Like {@link BundleEntryIndex} an index is a snapshot of the entries, {@link #isCurrent(Bundle)} tells whether it
+ * still is one, and a built index can be read by several threads.
+ */
+public final class BundleReferenceIndex {
+
+	private static final String URN_UUID = "urn:uuid:";
+
+	private final List<Bundle.BundleEntryComponent> entries;
+	private final int size;
+	private final Bundle.BundleEntryComponent first;
+	private final Bundle.BundleEntryComponent last;
+	private final Map<String, Resource> byKey;
+
+	private BundleReferenceIndex(List<Bundle.BundleEntryComponent> entries, Map<String, Resource> byKey) {
+		this.entries = entries;
+		this.size = entries.size();
+		this.first = size > 0 ? entries.get(0) : null;
+		this.last = size > 0 ? entries.get(size - 1) : null;
+		this.byKey = byKey;
+	}
+
+	public static BundleReferenceIndex of(Bundle bundle) {
+		List<Bundle.BundleEntryComponent> entries = bundle.getEntry();
+		Map<String, Resource> byKey = new HashMap<>();
+		for (Bundle.BundleEntryComponent entry : entries) {
+			Resource resource = entry.getResource();
+			if (resource == null) {
+				continue;
+			}
+			if (entry.hasFullUrl()) {
+				byKey.putIfAbsent(entry.getFullUrl(), resource);
+			}
+			String id = resource.getIdElement().getIdPart();
+			if (id == null || id.isEmpty()) {
+				continue;
+			}
+			String bareId = id.startsWith(URN_UUID) ? id.substring(URN_UUID.length()) : id;
+			byKey.putIfAbsent(bareId, resource);
+			byKey.putIfAbsent(URN_UUID + bareId, resource);
+			byKey.putIfAbsent(resource.fhirType() + "/" + bareId, resource);
+		}
+		return new BundleReferenceIndex(entries, byKey);
+	}
+
+	// the index if it is still current for the bundle, a new one otherwise
+	public static BundleReferenceIndex current(BundleReferenceIndex index, Bundle bundle) {
+		return index != null && index.isCurrent(bundle) ? index : of(bundle);
+	}
+
+	// false once entries were added or removed, or the entry list was replaced, as far as the list, its size and its
+	// first and last entries tell
+	public boolean isCurrent(Bundle bundle) {
+		return bundle.getEntry() == entries && entries.size() == size
+				&& (size == 0 || entries.get(0) == first && entries.get(size - 1) == last);
+	}
+
+	// the entry resource the reference names, or the resource the reference holds when it has no reference string,
+	// null when there is neither or it names no entry
+	public Resource resolve(Reference reference) {
+		if (reference == null) {
+			return null;
+		}
+		if (!reference.hasReference()) {
+			return reference.getResource() instanceof Resource ? (Resource) reference.getResource() : null;
+		}
+		return resolve(reference.getReference());
+	}
+
+	public Resource resolve(String reference) {
+		if (reference == null || reference.isEmpty()) {
+			return null;
+		}
+		Resource resource = byKey.get(reference);
+		if (resource == null && reference.indexOf('/') >= 0 && !reference.startsWith(URN_UUID)) {
+			// http://server/fhir/Observation/1/_history/2 and the like
+			IdType id = new IdType(reference);
+			if (id.hasResourceType() && id.hasIdPart()) {
+				resource = byKey.get(id.getResourceType() + "/" + id.getIdPart());
+			}
+		}
+		return resource;
+	}
+
+	/**
+	 * Resolves every reference in the entry resources, their contained resources included, in one pass. References
+	 * starting with # are resolved against the contained resources of the entry they are in, and references with
+	 * neither a reference string nor a resource, such as identifier only references, are skipped.
+	 */
+	public Resolution resolveAll() {
+		Resolution resolution = new Resolution();
+		for (Bundle.BundleEntryComponent entry : entries) {
+			Resource resource = entry.getResource();
+			if (resource != null) {
+				collectReferences(resource, resource, resource.fhirType(), resolution);
+			}
+		}
+		return resolution;
+	}
+
+	private void collectReferences(Resource source, Base element, String path, Resolution resolution) {
+		for (Property property : element.children()) {
+			List<Base> values = property.getValues();
+			for (int i = 0; i < values.size(); i++) {
+				Base value = values.get(i);
+				if (value == null || value.isPrimitive()) {
+					continue;
+				}
+				String valuePath = path + "." + property.getName() + (property.getMaxCardinality() > 1 ? "[" + i + "]" : "");
+				if (value instanceof Reference) {
+					Reference reference = (Reference) value;
+					if (!reference.hasReference() && reference.getResource() == null) {
+						continue;
+					}
+					Resource target = reference.hasReference() && reference.getReference().startsWith("#")
+						? resolveContained(source, reference.getReference().substring(1))
+						: resolve(reference);
+					if (target != null) {
+						resolution.resolved.put(reference, target);
+					} else {
+						resolution.dangling.add(new DanglingReference(source, valuePath, reference));
+					}
+				} else {
+					collectReferences(source, value, valuePath, resolution);
+				}
+			}
+		}
+	}
+
+	private static Resource resolveContained(Resource source, String id) {
+		if (source instanceof DomainResource) {
+			for (Resource contained : ((DomainResource) source).getContained()) {
+				String containedId = contained.getIdElement().getIdPart();
+				if (id.equals(containedId) || ("#" + id).equals(containedId)) {
+					return contained;
+				}
+			}
+		}
+		return null;
+	}
+
+	// the outcome of resolveAll, the resolved references keyed by identity
+	public static class Resolution {
+		private final Map<Reference, Resource> resolved = new IdentityHashMap<>();
+		private final List<DanglingReference> dangling = new ArrayList<>();
+
+		public Map<Reference, Resource> getResolved() {
+			return Collections.unmodifiableMap(resolved);
+		}
+
+		// in entry order
+		public List<DanglingReference> getDangling() {
+			return Collections.unmodifiableList(dangling);
+		}
+
+		public boolean hasDangling() {
+			return !dangling.isEmpty();
+		}
+	}
+
+	// a reference that names nothing in the bundle, with the entry resource it is in and its path there
+	public static class DanglingReference {
+		private final Resource source;
+		private final String path;
+		private final Reference reference;
+
+		DanglingReference(Resource source, String path, Reference reference) {
+			this.source = source;
+			this.path = path;
+			this.reference = reference;
+		}
+
+		public Resource getSource() {
+			return source;
+		}
+
+		// such as Composition.section[0].entry[2]
+		public String getPath() {
+			return path;
+		}
+
+		public Reference getReference() {
+			return reference;
+		}
+
+		@Override
+		public String toString() {
+			return path + " -> " + reference.getReference();
+		}
+	}
+}
@@ -5,7 +5,9 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import ca.uhn.fhir.model.api.annotation.ResourceDef;
 import edu.gatech.chai.VRDR.messaging.util.MessageParseException;
@@ -22,6 +24,8 @@ import edu.gatech.chai.VRDR.model.valueset.YesNoUnknownNotApplicableVS;
 import edu.gatech.chai.VRDR.model.valueset.YesNoUnknownVS;
 
 public class CommonUtil {
+	private static final Map<Class<? extends Resource>, String> RESOURCE_PROFILES = new ConcurrentHashMap<>();
+
 	public static final String identifierTypeHL7System = "http://terminology.hl7.org/CodeSystem/v2-0203";
 	public static final String basicBooleanHL7System = "http://terminology.hl7.org/CodeSystem/v2-0136";
 	public static final String yesNoNASystemOID = "urn:oid:2.16.840.1.113883.12.136";
@@ -266,21 +270,40 @@ public class CommonUtil {
 		return false;
 	}
 
+	// the profile of a resource class, read from its ResourceDef annotation once per class
+	public static String getProfile(Class<? extends Resource> resourceClass) {
+		return RESOURCE_PROFILES.computeIfAbsent(resourceClass, key -> key.getAnnotation(ResourceDef.class).profile());
+	}
+
 	public static <T extends Resource> T getSingleResource(Class<T> resourceClass, Bundle bundle) {
-		String profile = resourceClass.getAnnotation(ResourceDef.class).profile();
+		String profile = getProfile(resourceClass);
+		if (bundle instanceof IndexedBundle) {
+			List<Resource> resources = ((IndexedBundle) bundle).getEntryIndex().getResourcesByProfile(profile);
+			return resources.isEmpty() ? null : resourceClass.cast(resources.get(0));
+		}
 		for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
-			if (getResourceMetaProfile(entry.getResource()).equals(profile)) {
+			if (profile.equals(getResourceMetaProfile(entry.getResource()))) {
 				return resourceClass.cast(entry.getResource());
 			}
 		}
 		return null;
 	}
 
+	// for an indexed bundle the list is the index's own, unmodifiable, otherwise a new list
+	@SuppressWarnings("unchecked")
 	public static <T extends Resource> List<T> getResources(Class<T> resourceClass, Bundle bundle) {
+		String profile = getProfile(resourceClass);
+		if (bundle instanceof IndexedBundle) {
+			List<Resource> resources = ((IndexedBundle) bundle).getEntryIndex().getResourcesByProfile(profile);
+			for (Resource resource : resources) {
+				// a resource with the profile parsed into another class fails here as it would when copied
+				resourceClass.cast(resource);
+			}
+			return (List<T>) (List<?>) resources;
+		}
 		List<T> resources = new ArrayList<>();
-		String profile = resourceClass.getAnnotation(ResourceDef.class).profile();
 		for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
-			if (getResourceMetaProfile(entry.getResource()).equals(profile)) {
+			if (profile.equals(getResourceMetaProfile(entry.getResource()))) {
 				resources.add(resourceClass.cast(entry.getResource()));
 			}
 		}
@@ -0,0 +1,11 @@
+package edu.gatech.chai.VRDR.model.util;
+
+/**
+ * A bundle that keeps a {@link BundleEntryIndex} of its entries, which the lookups in {@link CommonUtil} use instead of
+ * scanning the entries.
+ */
+public interface IndexedBundle {
+
+	// the index of the current entries, rebuilt when they have changed since it was built
+	BundleEntryIndex getEntryIndex();
+}
@@ -1,14 +1,20 @@
 package edu.gatech.chai.VRDR.model.util;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.Date;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
 
 import org.hl7.fhir.r4.model.Bundle;
 
 import edu.gatech.chai.VRDR.context.VRDRFhirContext;
 import edu.gatech.chai.VRDR.messaging.BaseMessage;
+import edu.gatech.chai.VRDR.messaging.util.BulkUploadWriter;
 
 public class UploadUtil {
 
@@ -32,4 +38,24 @@ public class UploadUtil {
         }
         return ctx.getCtx().newJsonParser().setPrettyPrint(prettyPrint).encodeResourceToString(payload);
     }
+
+    /// <summary>Create the same payload, encoding the messages on a pool with the
+    /// given parallelism and joining them in order</summary>
+    public static String CreateBulkUploadPayload(VRDRFhirContext ctx, List<BaseMessage> messages, String url,
+            boolean prettyPrint, int parallelism) {
+        if (messages.isEmpty()) {
+            return CreateBulkUploadPayload(ctx, messages, url, prettyPrint);
+        }
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try (BulkUploadWriter writer = new BulkUploadWriter(ctx, url, payloadNumber -> payload)) {
+            writer.setPrettyPrint(prettyPrint);
+            writer.appendAll(messages, pool);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            pool.shutdown();
+        }
+        return new String(payload.toByteArray(), StandardCharsets.UTF_8);
+    }
 }
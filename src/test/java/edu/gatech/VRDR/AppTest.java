@@ -4,16 +4,28 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Composition;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
 
 import ca.uhn.fhir.context.ConfigurationException;
 import ca.uhn.fhir.parser.DataFormatException;
+import edu.gatech.chai.VRDR.context.VRDRFhirContext;
 import edu.gatech.chai.VRDR.context.VRDRFhirContextDataStructuresOnly;
+import edu.gatech.chai.VRDR.context.VRDRProfileRegistry;
+import edu.gatech.chai.VRDR.model.Certifier;
+import edu.gatech.chai.VRDR.model.DeathCertificate;
 import edu.gatech.chai.VRDR.model.DeathCertificateDocument;
 import edu.gatech.chai.VRDR.model.DeathDate;
 import edu.gatech.chai.VRDR.model.Decedent;
 import edu.gatech.chai.VRDR.model.InjuryIncident;
 import edu.gatech.chai.VRDR.model.MannerOfDeath;
 import edu.gatech.chai.VRDR.model.util.BuildDCD;
+import edu.gatech.chai.VRDR.model.util.BundleEntryIndex;
+import edu.gatech.chai.VRDR.model.util.BundleReferenceIndex;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
@@ -78,6 +90,102 @@ public class AppTest
 		}
 	}
 
+	public void testDocumentTypeIndex() {
+		DeathCertificateDocument deathCertificateDocument = BuildDCD.buildExampleDeathCertificateDocument();
+		List<Decedent> decedents = deathCertificateDocument.getDecedent();
+		assertEquals(1, decedents.size());
+		// the same unmodifiable list until the entries change
+		assertSame(decedents, deathCertificateDocument.getDecedent());
+		try {
+			decedents.add(new Decedent());
+			fail("Expected the list to be unmodifiable");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+		int certifiers = 0;
+		for (Bundle.BundleEntryComponent entry : deathCertificateDocument.getEntry()) {
+			if (entry.getResource() instanceof Certifier) {
+				assertSame(entry.getResource(), deathCertificateDocument.getCertifier().get(certifiers++));
+			}
+		}
+		assertEquals(certifiers, deathCertificateDocument.getCertifier().size());
+
+		// added entries are seen, through the document or straight through its entry list
+		Decedent second = new Decedent();
+		deathCertificateDocument.addEntry(new Bundle.BundleEntryComponent().setResource(second));
+		assertEquals(2, deathCertificateDocument.getDecedent().size());
+		assertSame(second, deathCertificateDocument.getDecedent().get(1));
+		Certifier added = new Certifier();
+		deathCertificateDocument.getEntry().add(new Bundle.BundleEntryComponent().setResource(added));
+		assertSame(added, deathCertificateDocument.getCertifier().get(deathCertificateDocument.getCertifier().size() - 1));
+		int manners = deathCertificateDocument.getMannerOfDeath().size();
+		deathCertificateDocument.addResource(new MannerOfDeath());
+		assertEquals(manners + 1, deathCertificateDocument.getMannerOfDeath().size());
+
+		// removing one entry and adding another straight through the entry list keeps the size, but not the index
+		List<Bundle.BundleEntryComponent> entries = deathCertificateDocument.getEntry();
+		assertFalse(deathCertificateDocument.getDecedent().isEmpty());
+		int certifierCount = deathCertificateDocument.getCertifier().size();
+		for (int i = 0; i < entries.size(); i++) {
+			if (entries.get(i).getResource() == second) {
+				entries.remove(i);
+				break;
+			}
+		}
+		Certifier replacement = new Certifier();
+		entries.add(new Bundle.BundleEntryComponent().setResource(replacement));
+		assertEquals(1, deathCertificateDocument.getDecedent().size());
+		assertEquals(certifierCount + 1, deathCertificateDocument.getCertifier().size());
+		assertSame(replacement, deathCertificateDocument.getCertifier().get(certifierCount));
+		BundleEntryIndex index = deathCertificateDocument.getEntryIndex();
+		entries.set(entries.size() - 1, new Bundle.BundleEntryComponent().setResource(new Certifier()));
+		assertFalse(index.isCurrent(deathCertificateDocument));
+	}
+
+	public void testReferenceResolution() throws FileNotFoundException {
+		DeathCertificateDocument deathCertificateDocument = BuildDCD.buildExampleDeathCertificateDocument();
+		DeathCertificate deathCertificate = deathCertificateDocument.getDeathCertificate().get(0);
+		Decedent decedent = deathCertificateDocument.getDecedent().get(0);
+		for (Composition.SectionComponent section : deathCertificate.getSection()) {
+			for (Reference entry : section.getEntry()) {
+				assertNotNull(entry.getReference(), deathCertificateDocument.resolveReference(entry));
+			}
+		}
+		// by bare id, urn:uuid and type/id alike
+		String id = decedent.getIdElement().getIdPart();
+		assertSame(decedent, deathCertificateDocument.resolveReference(new Reference(id)));
+		assertSame(decedent, deathCertificateDocument.resolveReference(new Reference("urn:uuid:" + id)));
+		assertSame(decedent, deathCertificateDocument.resolveReference(new Reference("Patient/" + id)));
+		assertNull(deathCertificateDocument.resolveReference(new Reference("Patient/missing")));
+		assertFalse(deathCertificateDocument.resolveAllReferences().hasDangling());
+
+		// a reference to an entry that is not there yet, seen once it is added
+		MannerOfDeath manner = new MannerOfDeath();
+		deathCertificate.addResource(manner);
+		BundleReferenceIndex.Resolution resolution = deathCertificateDocument.resolveAllReferences();
+		assertEquals(1, resolution.getDangling().size());
+		assertEquals(manner.getId(), resolution.getDangling().get(0).getReference().getReference());
+		assertTrue(resolution.getDangling().get(0).getPath().startsWith("Composition.section["));
+		deathCertificateDocument.addEntry(new Bundle.BundleEntryComponent().setResource(manner));
+		assertFalse(deathCertificateDocument.resolveAllReferences().hasDangling());
+
+		// the example record has an observation whose subject is not in the bundle
+		ClassLoader classLoader = getClass().getClassLoader();
+		File file = new File(classLoader.getResource("json/DeathRecord1.json").getFile());
+		DeathCertificateDocument parsed = (DeathCertificateDocument) context.getCtx().newJsonParser().parseResource(new FileInputStream(file));
+		resolution = parsed.resolveAllReferences();
+		assertEquals(1, resolution.getDangling().size());
+		assertEquals("Observation.subject", resolution.getDangling().get(0).getPath());
+		assertSame(parsed.getDecedent().get(0), parsed.resolveReference(parsed.getDeathCertificate().get(0).getSubject()));
+
+		// sections of a parsed certificate are found by their codes
+		DeathCertificate parsedCertificate = parsed.getDeathCertificate().get(0);
+		int sections = parsedCertificate.getSection().size();
+		Composition.SectionComponent section = parsedCertificate.getSection().get(0);
+		assertSame(section, parsedCertificate.findOrCreateSection(section.getCode().copy()));
+		assertEquals(sections, parsedCertificate.getSection().size());
+	}
+
 	public void testPartialDecedentBirthDateRecord() {
 		Decedent decedent = BuildDCD.buildDecedentWithBirthDateAbsentReason();
 		String jsonForm = context.getCtx().newJsonParser().encodeResourceToString(decedent);
@@ -130,4 +238,40 @@ public class AppTest
 		String jsonForm = context.getCtx().newJsonParser().setPrettyPrint(true).encodeResourceToString(decedent);
 		assertTrue(jsonForm != null && jsonForm.length() > 0);
 	}
-}
\ No newline at end of file
+
+	public void testProfileRegistry() {
+		for (Map.Entry<String, Class<? extends Resource>> profile : VRDRProfileRegistry.DATA_STRUCTURE_PROFILES.entrySet()) {
+			assertEquals(profile.getValue(), context.getCtx().getDefaultTypeForProfile(profile.getKey()));
+		}
+		VRDRFhirContext messagingContext = new VRDRFhirContext();
+		assertEquals(11, VRDRProfileRegistry.MESSAGE_PROFILES.size());
+		for (String profile : VRDRProfileRegistry.MESSAGE_PROFILES.keySet()) {
+			assertEquals(Bundle.class, messagingContext.getCtx().getDefaultTypeForProfile(profile));
+		}
+		messagingContext.prescanDefinitionsAsync().join();
+		DeathCertificateDocument deathCertificateDocument = BuildDCD.buildExampleDeathCertificateDocument();
+		assertTrue(deathCertificateDocument.toJson(messagingContext).length() > 0);
+	}
+
+	// the registry is generated by tools/generate_profile_registry.py, this catches a class added or renamed since
+	public void testProfileRegistryMatchesAnnotations() throws Exception {
+		List<String> unregistered = unregisteredProfileClasses("model", VRDRProfileRegistry.DATA_STRUCTURE_PROFILES.values());
+		unregistered.addAll(unregisteredProfileClasses("messaging", VRDRProfileRegistry.MESSAGE_PROFILES.values()));
+		assertTrue("regenerate the registry for " + unregistered, unregistered.isEmpty());
+	}
+
+	private List<String> unregisteredProfileClasses(String packageName, java.util.Collection<? extends Class<?>> registered) throws ClassNotFoundException {
+		List<String> unregistered = new java.util.ArrayList<>();
+		File[] sources = new File("src/main/java/edu/gatech/chai/VRDR/" + packageName).listFiles((dir, name) -> name.endsWith(".java"));
+		for (File source : sources) {
+			String className = "edu.gatech.chai.VRDR." + packageName + "." + source.getName().replace(".java", "");
+			Class<?> profileClass = Class.forName(className);
+			// EmergingIssues is parsed as its base resource, like the generator skips it
+			if (profileClass.isAnnotationPresent(ca.uhn.fhir.model.api.annotation.ResourceDef.class)
+					&& !profileClass.getSimpleName().equals("EmergingIssues") && !registered.contains(profileClass)) {
+				unregistered.add(className);
+			}
+		}
+		return unregistered;
+	}
+}
@@ -1,8 +1,23 @@
 package edu.gatech.VRDR;
 
+import edu.gatech.chai.VRDR.cli.MessageService;
 import edu.gatech.chai.VRDR.context.VRDRFhirContext;
 import edu.gatech.chai.VRDR.messaging.*;
+import edu.gatech.chai.VRDR.messaging.util.BinaryCodec;
+import edu.gatech.chai.VRDR.messaging.util.BulkUploadWriter;
+import edu.gatech.chai.VRDR.messaging.util.BundleOfBundlesWriter;
+import edu.gatech.chai.VRDR.messaging.util.BundleTranscoder;
+import edu.gatech.chai.VRDR.messaging.util.CanonicalJson;
+import edu.gatech.chai.VRDR.messaging.util.Gzip;
+import edu.gatech.chai.VRDR.messaging.util.BundleOfBundlesReader;
+import edu.gatech.chai.VRDR.messaging.util.BundleOfBundlesResult;
+import edu.gatech.chai.VRDR.messaging.util.MessageEnvelope;
 import edu.gatech.chai.VRDR.messaging.util.MessageParseException;
+import edu.gatech.chai.VRDR.messaging.util.MessageTypeRegistry;
+import edu.gatech.chai.VRDR.messaging.util.NdjsonReader;
+import edu.gatech.chai.VRDR.messaging.util.NdjsonWriter;
+import edu.gatech.chai.VRDR.messaging.util.ParseResult;
+import edu.gatech.chai.VRDR.messaging.util.ZipBatchReader;
 import edu.gatech.chai.VRDR.model.*;
 import edu.gatech.chai.VRDR.model.util.CodedRaceAndEthnicityUtil;
 import edu.gatech.chai.VRDR.model.util.CommonUtil;
@@ -11,10 +26,21 @@ import edu.gatech.chai.VRDR.model.util.DeathDateUtil;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
+import ca.uhn.fhir.parser.IParser;
 import org.hl7.fhir.r4.model.*;
 
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import org.apache.commons.lang3.StringUtils;
 import edu.gatech.chai.VRDR.model.util.UploadUtil;
@@ -173,6 +199,51 @@ public class MessagingTest extends TestCase {
         }
     }
 
+    public void testDerivedTimesAreComputedOnce() {
+        // a complete death and injury date time has nothing missing
+        DeathCertificateDocument deathCertificateDocument = BaseMessage.parseJsonFile(DeathCertificateDocument.class, ctx, "src/test/resources/json/DeathRecord1.json");
+        assertNull(deathCertificateDocument.getExtraDateTimeType4Death());
+        assertNull(deathCertificateDocument.getExtraDateTimeType4Injury());
+
+        // derived without calling the resource getters first, and the same value until the entries change
+        deathCertificateDocument = BaseMessage.parseJsonFile(DeathCertificateDocument.class, ctx, "src/test/resources/json/UnknownDateOfDeath.json");
+        ExtraDateTimeType death = deathCertificateDocument.getExtraDateTimeType4Death();
+        assertEquals("unknown", death.getMissingOrUnknownDeathTime());
+        DeathDate deathDate = deathCertificateDocument.getDeathDate().get(0);
+        assertFalse(deathDate.hasEffective());
+        assertEquals("unknown", deathCertificateDocument.getExtraDateTimeType4Death().getMissingOrUnknownDeathTime());
+        // every call hands out its own instance, so changing one leaves the document as it was
+        assertNotSame(death, deathCertificateDocument.getExtraDateTimeType4Death());
+        death.setMissingOrUnknownDeathTime("null");
+        assertEquals("unknown", deathCertificateDocument.getExtraDateTimeType4Death().getMissingOrUnknownDeathTime());
+        // the injury incident of this record has an unknown date too
+        assertEquals("unknown", deathCertificateDocument.getExtraDateTimeType4Injury().getMissingOrUnknownInjuryTime());
+
+        // a death date added to a document without one is seen
+        DeathCertificateDocument built = new DeathCertificateDocument();
+        assertNull(built.getExtraDateTimeType4Death());
+        DeathDate partial = new DeathDate();
+        partial.setValue(new DateTimeType("2019-02-19"));
+        built.addEntry(new Bundle.BundleEntryComponent().setResource(partial));
+        assertEquals("null", built.getExtraDateTimeType4Death().getMissingOrUnknownDeathTime());
+
+        // the constructor sets the date of death as the effective, which is read when there is no value
+        java.util.Date now = new java.util.Date();
+        DeathCertificateDocument constructed = new DeathCertificateDocument();
+        constructed.addEntry(new Bundle.BundleEntryComponent().setResource(new DeathDate(now, now, "Death in hospital")));
+        assertNull(constructed.getExtraDateTimeType4Death());
+        DeathDate dateOnly = new DeathDate(now, now, "Death in hospital");
+        dateOnly.setEffective(new DateTimeType("2019-02-19"));
+        constructed = new DeathCertificateDocument();
+        constructed.addEntry(new Bundle.BundleEntryComponent().setResource(dateOnly));
+        assertEquals("null", constructed.getExtraDateTimeType4Death().getMissingOrUnknownDeathTime());
+
+        // a value set explicitly is kept
+        ExtraDateTimeType explicit = new ExtraDateTimeType();
+        built.setExtraDateTimeType4Death(explicit);
+        assertSame(explicit, built.getExtraDateTimeType4Death());
+    }
+
     public void testMissingOrUnknownTimeOfInjury() {
         try {
             // test full injury date and injury time as baseline
@@ -422,6 +493,35 @@ public class MessagingTest extends TestCase {
         assertEquals("42", ack.getStateAuxiliaryId());
     }
 
+    public void testCodedContentProfileIndex() {
+        CauseOfDeathCodingMessage message = BaseMessage.parseJsonFile(CauseOfDeathCodingMessage.class, ctx,
+                "src/test/resources/json/CauseOfDeathCodingMessage.json");
+        CauseOfDeathCodedContentBundle bundle = message.getCauseOfDeathCodedContentBundle();
+
+        // the indexed lookups find what a scan of the same entries finds, and hand out the same list every time
+        Bundle plain = new Bundle();
+        plain.setEntry(new ArrayList<>(bundle.getEntry()));
+        assertEquals(CommonUtil.getResources(RecordAxisCauseOfDeath.class, plain), bundle.getRecordAxisCauseOfDeath());
+        assertEquals(CommonUtil.getResources(EntityAxisCauseOfDeath.class, plain), bundle.getEntityAxisCauseOfDeath());
+        assertSame(CommonUtil.getSingleResource(MannerOfDeath.class, plain), bundle.getMannerOfDeath());
+        assertSame(CommonUtil.getSingleResource(AutomatedUnderlyingCauseOfDeath.class, plain), bundle.getAutomatedUnderlyingCauseOfDeath());
+        assertSame(bundle.getRecordAxisCauseOfDeath(), bundle.getRecordAxisCauseOfDeath());
+        assertNull(CommonUtil.getSingleResource(CodedRaceAndEthnicity.class, bundle));
+
+        // entries added later are seen, the lookups go by meta profile, which constructed resources do not set
+        String profile = CommonUtil.getProfile(RecordAxisCauseOfDeath.class);
+        assertEquals("http://hl7.org/fhir/us/vrdr/StructureDefinition/vrdr-record-axis-cause-of-death", profile);
+        RecordAxisCauseOfDeath added = new RecordAxisCauseOfDeath();
+        added.getMeta().addProfile(profile);
+        bundle.addEntry().setResource(added);
+        assertEquals(4, bundle.getRecordAxisCauseOfDeath().size());
+        assertSame(added, bundle.getRecordAxisCauseOfDeath().get(3));
+        RecordAxisCauseOfDeath appended = new RecordAxisCauseOfDeath();
+        appended.getMeta().addProfile(profile);
+        bundle.getEntry().add(new Bundle.BundleEntryComponent().setResource(appended));
+        assertEquals(5, bundle.getRecordAxisCauseOfDeath().size());
+    }
+
     public void testCreateCauseOfDeathCodingResponseFromJSON() {
         CauseOfDeathCodingMessage message = BaseMessage.parseJsonFile(CauseOfDeathCodingMessage.class, ctx,
                 "src/test/resources/json/CauseOfDeathCodingMessage.json");
@@ -1038,6 +1138,682 @@ public class MessagingTest extends TestCase {
         assertEquals(StringUtils.countMatches(strBundleInJson, "http://nchs.cdc.gov/vrdr_submission"), 3 * msgCounter);
     }
 
+    public void testBulkUploadWriter() throws Exception {
+        String url = "http://nchs.cdc.gov/vrdr_submission";
+        DeathRecordSubmissionMessage submission = BaseMessage.parseJsonFile(DeathRecordSubmissionMessage.class, ctx, "src/test/resources/json/DeathRecordSubmissionMessage.json");
+        List<BaseMessage> messages = new ArrayList<>();
+        for (int i = 1; i <= 10; i++) {
+            DeathRecordSubmissionMessage message = BaseMessage.parseJson(DeathRecordSubmissionMessage.class, ctx, submission.toJson(ctx));
+            message.setStateAuxiliaryId("aux-" + i);
+            messages.add(message);
+        }
+
+        // a batch that fits in one payload is written the way CreateBulkUploadPayload writes it
+        for (boolean prettyPrint : new boolean[] { false, true }) {
+            List<java.io.ByteArrayOutputStream> payloads = writeBulkUpload(messages.subList(0, 3), prettyPrint, Integer.MAX_VALUE, Long.MAX_VALUE);
+            assertEquals(1, payloads.size());
+            String expected = UploadUtil.CreateBulkUploadPayload(ctx, messages.subList(0, 3), url, prettyPrint);
+            assertEquals(withoutPayloadIdAndTimestamp(expected), withoutPayloadIdAndTimestamp(payloads.get(0).toString("UTF-8")));
+        }
+
+        List<java.io.ByteArrayOutputStream> payloads = writeBulkUpload(messages, false, 4, Long.MAX_VALUE);
+        assertEquals(3, payloads.size());
+        assertEquals(auxiliaryIds(messages), readBulkUpload(payloads, 4, 4, 2));
+
+        // room for two and a half entries, so two per payload
+        int entrySize = UploadUtil.CreateBulkUploadPayload(ctx, messages.subList(0, 2), url, true).length()
+                - UploadUtil.CreateBulkUploadPayload(ctx, messages.subList(0, 1), url, true).length();
+        long maxBytes = UploadUtil.CreateBulkUploadPayload(ctx, messages.subList(0, 2), url, true).length() + entrySize / 2;
+        payloads = writeBulkUpload(messages, true, Integer.MAX_VALUE, maxBytes);
+        assertEquals(5, payloads.size());
+        for (java.io.ByteArrayOutputStream payload : payloads) {
+            assertTrue(payload.size() <= maxBytes);
+        }
+        assertEquals(auxiliaryIds(messages), readBulkUpload(payloads, 2, 2, 2, 2, 2));
+
+        // a message larger than the budget goes in a payload of its own
+        assertEquals(auxiliaryIds(messages.subList(0, 2)), readBulkUpload(writeBulkUpload(messages.subList(0, 2), false, Integer.MAX_VALUE, 1), 1, 1));
+
+        java.nio.file.Path directory = java.nio.file.Files.createTempDirectory("vrdr-bulk");
+        try {
+            try (BulkUploadWriter writer = new BulkUploadWriter(ctx, url, directory)) {
+                writer.setMaxEntries(6);
+                for (BaseMessage message : messages) {
+                    writer.append(message);
+                }
+                assertEquals(2, writer.getPayloadCount());
+                assertEquals(10, writer.getEntryCount());
+            }
+            java.nio.file.Path second = directory.resolve("bulk-upload-2.json");
+            assertEquals(4, BaseMessage.streamBundleOfBundles(ctx, java.nio.file.Files.newInputStream(second)).count());
+        } finally {
+            for (String name : new String[] { "bulk-upload-1.json", "bulk-upload-2.json" }) {
+                java.nio.file.Files.deleteIfExists(directory.resolve(name));
+            }
+            java.nio.file.Files.delete(directory);
+        }
+    }
+
+    private List<java.io.ByteArrayOutputStream> writeBulkUpload(List<BaseMessage> messages, boolean prettyPrint,
+            int maxEntries, long maxBytes) throws IOException {
+        List<java.io.ByteArrayOutputStream> payloads = new ArrayList<>();
+        try (BulkUploadWriter writer = new BulkUploadWriter(ctx, "http://nchs.cdc.gov/vrdr_submission", payloadNumber -> {
+            assertEquals(payloads.size() + 1, payloadNumber);
+            java.io.ByteArrayOutputStream payload = new java.io.ByteArrayOutputStream();
+            payloads.add(payload);
+            return payload;
+        })) {
+            writer.setPrettyPrint(prettyPrint);
+            writer.setMaxEntries(maxEntries);
+            writer.setMaxBytes(maxBytes);
+            for (BaseMessage message : messages) {
+                writer.append(message);
+            }
+        }
+        return payloads;
+    }
+
+    // the state auxiliary ids of the messages in the payloads, checking how many each one held
+    private List<String> readBulkUpload(List<java.io.ByteArrayOutputStream> payloads, int... entries) throws IOException {
+        assertEquals(entries.length, payloads.size());
+        List<String> auxiliaryIds = new ArrayList<>();
+        for (int i = 0; i < payloads.size(); i++) {
+            List<BaseMessage> read = BaseMessage.streamBundleOfBundles(ctx, new java.io.ByteArrayInputStream(payloads.get(i).toByteArray()))
+                    .collect(java.util.stream.Collectors.toList());
+            assertEquals(entries[i], read.size());
+            for (BaseMessage message : read) {
+                auxiliaryIds.add(message.getStateAuxiliaryId());
+            }
+        }
+        return auxiliaryIds;
+    }
+
+    private List<String> auxiliaryIds(List<BaseMessage> messages) {
+        List<String> auxiliaryIds = new ArrayList<>();
+        for (BaseMessage message : messages) {
+            auxiliaryIds.add(message.getStateAuxiliaryId());
+        }
+        return auxiliaryIds;
+    }
+
+    private String withoutPayloadIdAndTimestamp(String payload) {
+        String field = "\"(id|timestamp)\"(: ?)\"[^\"]*\"";
+        return payload.replaceFirst(field, "").replaceFirst(field, "");
+    }
+
+    public void testParallelBatchEncoding() throws Exception {
+        String url = "http://nchs.cdc.gov/vrdr_submission";
+        DeathRecordSubmissionMessage submission = BaseMessage.parseJsonFile(DeathRecordSubmissionMessage.class, ctx, "src/test/resources/json/DeathRecordSubmissionMessage.json");
+        List<BaseMessage> messages = new ArrayList<>();
+        for (int i = 1; i <= 40; i++) {
+            DeathRecordSubmissionMessage message = BaseMessage.parseJson(DeathRecordSubmissionMessage.class, ctx, submission.toJson(ctx));
+            message.setStateAuxiliaryId("aux-" + i);
+            messages.add(i % 3 == 0 ? new AcknowledgementMessage(message) : message);
+        }
+
+        // the chunks encoded on the pool are joined in the order of the list
+        for (boolean prettyPrint : new boolean[] { false, true }) {
+            String expected = UploadUtil.CreateBulkUploadPayload(ctx, messages, url, prettyPrint);
+            assertEquals(withoutPayloadIdAndTimestamp(expected),
+                    withoutPayloadIdAndTimestamp(UploadUtil.CreateBulkUploadPayload(ctx, messages, url, prettyPrint, 3)));
+
+            String encoded = BaseMessage.encodeBundleOfBundles(ctx, messages, prettyPrint, 3);
+            java.util.regex.Matcher id = java.util.regex.Pattern.compile("\"id\": ?\"([^\"]*)\"").matcher(encoded);
+            assertTrue(id.find());
+            Bundle nchsResponse = new Bundle();
+            nchsResponse.setId(id.group(1));
+            nchsResponse.setType(Bundle.BundleType.BATCHRESPONSE);
+            for (BaseMessage message : messages) {
+                nchsResponse.addEntry().setResource(message.cloneAsBundle());
+            }
+            assertEquals(ctx.getJsonParser(prettyPrint).encodeResourceToString(nchsResponse), encoded);
+        }
+        assertEquals(withoutPayloadIdAndTimestamp(UploadUtil.CreateBulkUploadPayload(ctx, new ArrayList<>(), url, false)),
+                withoutPayloadIdAndTimestamp(UploadUtil.CreateBulkUploadPayload(ctx, new ArrayList<>(), url, false, 2)));
+
+        // rotation is the same as appending one at a time
+        java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(2);
+        List<java.io.ByteArrayOutputStream> payloads = new ArrayList<>();
+        try (BulkUploadWriter writer = new BulkUploadWriter(ctx, url, payloadNumber -> {
+            payloads.add(new java.io.ByteArrayOutputStream());
+            return payloads.get(payloadNumber - 1);
+        })) {
+            writer.setMaxEntries(16);
+            writer.appendAll(messages, pool);
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(3, payloads.size());
+        List<BaseMessage> read = new ArrayList<>();
+        for (java.io.ByteArrayOutputStream payload : payloads) {
+            read.addAll(BaseMessage.streamBundleOfBundles(ctx, new java.io.ByteArrayInputStream(payload.toByteArray()))
+                    .collect(java.util.stream.Collectors.toList()));
+        }
+        assertEquals(messages.size(), read.size());
+        assertEquals("aux-40", read.get(39).getStateAuxiliaryId());
+        for (int i = 0; i < messages.size(); i++) {
+            assertEquals(messages.get(i).getClass(), read.get(i).getClass());
+            assertEquals(messages.get(i).getStateAuxiliaryId(), read.get(i).getStateAuxiliaryId());
+        }
+
+        // the bundle of bundles reads back in order
+        String bundleOfBundles = BaseMessage.encodeBundleOfBundles(ctx, messages, false, 4);
+        read = BaseMessage.parseBundleOfBundlesParallel(ctx, bundleOfBundles, 2).getMessages();
+        assertEquals(messages.size(), read.size());
+        for (int i = 0; i < messages.size(); i++) {
+            assertEquals(messages.get(i).getStateAuxiliaryId(), read.get(i).getStateAuxiliaryId());
+        }
+    }
+
+    public void testParseJsonForRelay() throws Exception {
+        String json = new String(java.nio.file.Files.readAllBytes(java.nio.file.Paths.get("src/test/resources/json/DeathRecordSubmissionMessage.json")), "UTF-8");
+        DeathRecordSubmissionMessage relay = BaseMessage.parseJsonForRelay(DeathRecordSubmissionMessage.class, ctx, json);
+        DeathRecordSubmissionMessage parsed = BaseMessage.parseJson(DeathRecordSubmissionMessage.class, ctx, json);
+        assertTrue(relay.getDeathRecord().hasReceivedJson());
+        assertFalse(parsed.getDeathRecord().hasReceivedJson());
+        assertTrue(relay.getDeathRecord().equalsDeep(parsed.getDeathRecord()));
+        assertEquals(parsed.getCertNo(), relay.getCertNo());
+
+        // the document is written as received, and reads back the same as when encoded
+        String received = null;
+        for (com.google.gson.JsonElement entry : new com.google.gson.JsonParser().parse(json).getAsJsonObject().getAsJsonArray("entry")) {
+            com.google.gson.JsonObject resource = entry.getAsJsonObject().getAsJsonObject("resource");
+            if (resource.has("type") && "document".equals(resource.get("type").getAsString())) {
+                received = resource.toString();
+            }
+        }
+        assertNotNull(received);
+        for (boolean prettyPrint : new boolean[] { false, true }) {
+            String relayed = relay.toJson(ctx, prettyPrint);
+            assertEquals(!prettyPrint, relayed.contains(received));
+            DeathRecordSubmissionMessage reparsed = BaseMessage.parseJson(DeathRecordSubmissionMessage.class, ctx, relayed);
+            assertTrue(reparsed.getDeathRecord().equalsDeep(parsed.getDeathRecord()));
+            assertEquals(parsed.getMessageHeaderId(), reparsed.getMessageHeaderId());
+        }
+        assertEquals(relay.toJson(ctx, true), new String(encodeToBytes(relay, true), "UTF-8"));
+
+        // wrapping the received document in another message writes it as received too
+        DeathRecordUpdateMessage update = new DeathRecordUpdateMessage();
+        update.setDeathRecord(relay.getDeathRecord());
+        assertTrue(update.toJson(ctx).contains(received));
+
+        // a document parsed on its own
+        DeathCertificateDocument document = BaseMessage.parseJsonForRelay(DeathCertificateDocument.class, ctx, received);
+        assertEquals(received, document.toJson(ctx));
+
+        // once changed, the document is encoded again
+        Certifier certifier = (Certifier) CommonUtil.findEntry(relay.getDeathRecord(), Certifier.class);
+        String family = certifier.getNameFirstRep().getFamily();
+        certifier.getNameFirstRep().setFamily("Changed");
+        String changed = relay.toJson(ctx);
+        assertFalse(changed.contains(received));
+        assertTrue(relay.getDeathRecord().hasReceivedJson());
+        assertFalse(relay.getDeathRecord().isReceivedJsonCurrent());
+        assertEquals(ctx.getJsonParser(false).encodeResourceToString(relay.cloneAsBundle()), changed);
+        // and written as received again once it is the same as when parsed
+        certifier.getNameFirstRep().setFamily(family);
+        assertTrue(relay.getDeathRecord().isReceivedJsonCurrent());
+        assertTrue(relay.toJson(ctx).contains(received));
+
+        try {
+            BaseMessage.parseJsonForRelay(DeathRecordSubmissionMessage.class, ctx, "");
+            fail("expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().startsWith("Unable to parse bundle, exception: "));
+        }
+    }
+
+    private byte[] encodeToBytes(BaseMessage message, boolean prettyPrint) throws IOException {
+        java.io.ByteArrayOutputStream stream = new java.io.ByteArrayOutputStream();
+        message.encodeTo(ctx, ca.uhn.fhir.rest.api.EncodingEnum.JSON, prettyPrint, stream);
+        return stream.toByteArray();
+    }
+
+    public void testCanonicalFingerprint() throws Exception {
+        String json = new String(java.nio.file.Files.readAllBytes(java.nio.file.Paths.get("src/test/resources/json/DeathRecordSubmissionMessage.json")), "UTF-8");
+        // the same record as it would be resubmitted, every resource with a new random id and a new timestamp
+        String resubmitted = json;
+        java.util.regex.Matcher ids = java.util.regex.Pattern.compile("\"id\": ?\"([^\"]+)\"").matcher(json);
+        while (ids.find()) {
+            resubmitted = resubmitted.replace(ids.group(1), java.util.UUID.randomUUID().toString());
+        }
+        resubmitted = resubmitted.replaceAll("\"timestamp\": ?\"[^\"]+\"", "\"timestamp\": \"2030-01-01T00:00:00Z\"");
+        DeathRecordSubmissionMessage original = BaseMessage.parseJson(DeathRecordSubmissionMessage.class, ctx, json);
+        DeathRecordSubmissionMessage resubmission = BaseMessage.parseJson(DeathRecordSubmissionMessage.class, ctx, resubmitted);
+
+        assertEquals(original.getFingerprint(ctx), resubmission.getFingerprint(ctx));
+        assertEquals(original.getDeathRecord().getFingerprint(ctx), resubmission.getDeathRecord().getFingerprint(ctx));
+        assertEquals(64, original.getFingerprint(ctx).length());
+        assertFalse(original.getFingerprint(ctx).equals(original.getDeathRecord().getFingerprint(ctx)));
+        CanonicalJson plain = new CanonicalJson(ctx);
+        assertFalse(plain.fingerprint(original).equals(plain.fingerprint(resubmission)));
+        assertEquals(plain.fingerprint(original), plain.fingerprint(BaseMessage.parseJson(DeathRecordSubmissionMessage.class, ctx, json)));
+
+        // the fingerprint is the SHA-256 of the canonical JSON, which has sorted keys and numbered, rewritten ids
+        CanonicalJson duplicates = CanonicalJson.forDuplicates(ctx);
+        String canonical = duplicates.toJson(original);
+        assertEquals(canonical, duplicates.toJson(resubmission));
+        assertTrue(canonical.startsWith("{\"entry\":[{\"fullUrl\":\"MessageHeader/2\",\"resource\":{"));
+        assertTrue(canonical.endsWith(",\"id\":\"1\",\"resourceType\":\"Bundle\",\"type\":\"message\"}"));
+        assertFalse(canonical.contains("timestamp"));
+        byte[] sha = java.security.MessageDigest.getInstance("SHA-256").digest(canonical.getBytes(StandardCharsets.UTF_8));
+        assertEquals(String.format("%064x", new java.math.BigInteger(1, sha)), original.getFingerprint(ctx));
+
+        // only the chosen normalizations are made
+        CanonicalJson numbering = new CanonicalJson(ctx);
+        numbering.setNormalizeIds(true);
+        String numbered = numbering.toJson(original);
+        assertTrue(numbered.contains("\"timestamp\""));
+        assertTrue(numbered.contains("\"focus\":[{\"reference\":\"urn:uuid:4\"}]"));
+
+        // numbering alone swaps whole ids, even ones that also occur inside the resource type
+        Bundle shortIds = new Bundle();
+        shortIds.setId("b");
+        shortIds.setType(Bundle.BundleType.COLLECTION);
+        Patient patient = new Patient();
+        patient.setId("a");
+        shortIds.addEntry().setFullUrl("http://www.example.org/fhir/Patient/a").setResource(patient);
+        Observation observation = new Observation();
+        observation.setId("t");
+        observation.setSubject(new Reference("Patient/a"));
+        observation.addPerformer(new Reference("a"));
+        observation.addBasedOn(new Reference("urn:uuid:a"));
+        shortIds.addEntry().setFullUrl("Observation/t").setResource(observation);
+        String shortNumbered = numbering.toJson(shortIds);
+        assertTrue(shortNumbered, shortNumbered.contains("\"fullUrl\":\"http://www.example.org/fhir/Patient/2\""));
+        assertTrue(shortNumbered, shortNumbered.contains("\"fullUrl\":\"Observation/3\""));
+        assertTrue(shortNumbered, shortNumbered.contains("\"subject\":{\"reference\":\"Patient/2\"}"));
+        assertTrue(shortNumbered, shortNumbered.contains("\"performer\":[{\"reference\":\"2\"}]"));
+        assertTrue(shortNumbered, shortNumbered.contains("\"basedOn\":[{\"reference\":\"urn:uuid:2\"}]"));
+        assertFalse(shortNumbered, shortNumbered.contains("P2tient"));
+
+        // a change to the record changes the fingerprint
+        resubmission.getDeathRecord().getDecedent().get(0).getNameFirstRep().setFamily("Changed");
+        assertFalse(original.getFingerprint(ctx).equals(resubmission.getFingerprint(ctx)));
+        assertFalse(original.getDeathRecord().getFingerprint(ctx).equals(resubmission.getDeathRecord().getFingerprint(ctx)));
+    }
+
+    public void testBinaryCodec() throws Exception {
+        String json = new String(java.nio.file.Files.readAllBytes(java.nio.file.Paths.get("src/test/resources/json/DeathRecordSubmissionMessage.json")), "UTF-8");
+        DeathRecordSubmissionMessage submission = BaseMessage.parseJson(DeathRecordSubmissionMessage.class, ctx, json);
+        byte[] binary = submission.toBinary(ctx);
+        assertTrue(binary.length * 2 < submission.toJson(ctx).getBytes(StandardCharsets.UTF_8).length);
+        DeathRecordSubmissionMessage decoded = BaseMessage.parseBinary(DeathRecordSubmissionMessage.class, ctx, binary);
+        assertEquals(submission.toJson(ctx), decoded.toJson(ctx));
+        assertEquals(submission.toXML(ctx), decoded.toXML(ctx));
+        assertEquals(submission.getCertNo(), decoded.getCertNo());
+        assertEquals(submission.getMessageHeaderId(), decoded.getMessageHeaderId());
+        assertTrue(decoded.getDeathRecord().equalsDeep(submission.getDeathRecord()));
+        assertEquals(submission.getDeathRecord().getDecedent().get(0).getClass(), decoded.getDeathRecord().getDecedent().get(0).getClass());
+        assertTrue(BaseMessage.parseBinary(BaseMessage.class, ctx, binary) instanceof DeathRecordSubmissionMessage);
+
+        // every message fixture, and documents built in code with the values their constructors fill in
+        for (String name : new String[] { "AcknowledgementMessage", "CauseOfDeathCodingMessage", "CauseOfDeathCodingUpdateMessage",
+                "DeathRecordAliasMessage", "DeathRecordUpdateMessage", "DeathRecordVoidMessage", "DemographicsCodingMessage",
+                "DemographicsCodingUpdateMessage", "ExtractionErrorMessage", "StatusMessage" }) {
+            BaseMessage message = BaseMessage.parseJsonFile(BaseMessage.class, ctx, "src/test/resources/json/" + name + ".json");
+            byte[] encoded = message.toBinary(ctx);
+            // the message constructors add to the bundle they wrap, so the plain bundle is what must match
+            assertEquals(name, message.toJson(ctx), ctx.getJsonParser(false).encodeResourceToString(new BinaryCodec(ctx).decode(encoded)));
+            assertEquals(name, message.getClass(), BaseMessage.parseBinary(BaseMessage.class, ctx, encoded).getClass());
+        }
+        DeathCertificateDocument document = edu.gatech.chai.VRDR.model.util.BuildDCD.buildExampleDeathCertificateDocument();
+        DeathCertificateDocument decodedDocument = BaseMessage.parseBinary(DeathCertificateDocument.class, ctx, document.toBinary(ctx));
+        // like the FHIR encodings, times keep the precision they are written with, not the milliseconds of new Date()
+        assertEquals(document.toJson(ctx), decodedDocument.toJson(ctx));
+        assertEquals(ctx.getXmlParser(false).encodeResourceToString(document), ctx.getXmlParser(false).encodeResourceToString(decodedDocument));
+
+        try {
+            BaseMessage.parseBinary(DeathRecordSubmissionMessage.class, ctx, java.util.Arrays.copyOf(binary, binary.length / 2));
+            fail("expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().startsWith("Unable to parse bundle, exception: "));
+        }
+        try {
+            BaseMessage.parseBinary(DeathRecordSubmissionMessage.class, ctx, json.getBytes(StandardCharsets.UTF_8));
+            fail("expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("Not a binary encoded record"));
+        }
+        // the checksum after the magic and the format version covers the layouts as well as the up front strings
+        byte[] otherLayouts = binary.clone();
+        otherLayouts[5] ^= 1;
+        try {
+            BaseMessage.parseBinary(DeathRecordSubmissionMessage.class, ctx, otherLayouts);
+            fail("expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("incompatible version"));
+        }
+    }
+
+    public void testNdjsonArchive() throws Exception {
+        DeathRecordSubmissionMessage submission = BaseMessage.parseJsonFile(DeathRecordSubmissionMessage.class, ctx, "src/test/resources/json/DeathRecordSubmissionMessage.json");
+        List<BaseMessage> messages = new ArrayList<>();
+        for (int i = 1; i <= 12; i++) {
+            DeathRecordSubmissionMessage message = BaseMessage.parseJson(DeathRecordSubmissionMessage.class, ctx, submission.toJson(ctx));
+            message.setStateAuxiliaryId("aux-" + i);
+            messages.add(i % 4 == 0 ? new AcknowledgementMessage(message) : message);
+        }
+
+        java.io.StringWriter archive = new java.io.StringWriter();
+        try (NdjsonWriter writer = new NdjsonWriter(ctx, archive)) {
+            writer.write(messages.get(0));
+            writer.writeAll(messages.subList(1, messages.size()), java.util.concurrent.ForkJoinPool.commonPool());
+            assertEquals(messages.size(), writer.getMessageCount());
+        }
+        String[] lines = archive.toString().split("\n");
+        assertEquals(messages.size(), lines.length);
+        for (int i = 0; i < lines.length; i++) {
+            assertEquals(messages.get(i).toJson(ctx), lines[i]);
+        }
+
+        // lines are split off as read and parsed when asked for, blank lines and \r\n endings are allowed
+        String replayed = archive.toString().replace("\n", "\r\n") + "\r\n";
+        try (NdjsonReader reader = new NdjsonReader(ctx, new java.io.StringReader(replayed))) {
+            int count = 0;
+            while (reader.hasNext()) {
+                NdjsonReader.Line line = reader.next();
+                BaseMessage expected = messages.get(count++);
+                assertEquals(count, line.getLineNumber());
+                assertEquals(expected.toJson(ctx), line.getJson());
+                assertEquals(expected.getClass(), line.getMessage().getClass());
+                assertSame(line.getMessage(), line.getMessage());
+                if (expected instanceof DeathRecordSubmissionMessage) {
+                    assertEquals(((DeathRecordSubmissionMessage) expected).getStateAuxiliaryId(),
+                            line.getMessage(DeathRecordSubmissionMessage.class).getStateAuxiliaryId());
+                } else {
+                    try {
+                        line.getMessage(DeathRecordSubmissionMessage.class);
+                        fail("expected an IllegalArgumentException");
+                    } catch (IllegalArgumentException e) {
+                        assertEquals("Line " + count + " is a AcknowledgementMessage, not a DeathRecordSubmissionMessage", e.getMessage());
+                    }
+                }
+            }
+            assertEquals(messages.size(), count);
+        }
+
+        // batches are parsed on the pool in line order, a bad line is a failure of its own
+        String damaged = lines[0] + "\n\n{\"resourceType\": \"Bundle\"\n" + String.join("\n", Arrays.asList(lines).subList(1, lines.length)) + "\n";
+        java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(3);
+        try (NdjsonReader reader = new NdjsonReader(ctx, new java.io.ByteArrayInputStream(damaged.getBytes(StandardCharsets.UTF_8)))) {
+            List<BaseMessage> read = new ArrayList<>();
+            List<BundleOfBundlesResult.EntryFailure> failures = new ArrayList<>();
+            for (BundleOfBundlesResult batch = reader.readBatch(pool, 5); !batch.getMessages().isEmpty() || batch.hasFailures();
+                    batch = reader.readBatch(pool, 5)) {
+                assertTrue(batch.getMessages().size() + batch.getFailures().size() <= 5);
+                read.addAll(batch.getMessages());
+                failures.addAll(batch.getFailures());
+            }
+            assertEquals(messages.size(), read.size());
+            for (int i = 0; i < read.size(); i++) {
+                assertEquals(messages.get(i).getClass(), read.get(i).getClass());
+                assertEquals(BaseMessage.parseJson(BaseMessage.class, ctx, lines[i]).toJson(ctx), read.get(i).toJson(ctx));
+            }
+            assertEquals(1, failures.size());
+            assertEquals(3, failures.get(0).getIndex());
+            assertTrue(failures.get(0).getMessage().startsWith("Unable to parse bundle, exception: "));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public void testCompressedBatches() throws Exception {
+        DeathRecordSubmissionMessage submission = BaseMessage.parseJsonFile(DeathRecordSubmissionMessage.class, ctx, "src/test/resources/json/DeathRecordSubmissionMessage.json");
+        List<BaseMessage> messages = new ArrayList<>();
+        for (int i = 1; i <= 7; i++) {
+            DeathRecordSubmissionMessage message = BaseMessage.parseJson(DeathRecordSubmissionMessage.class, ctx, submission.toJson(ctx));
+            message.setStateAuxiliaryId("aux-" + i);
+            messages.add(i % 3 == 0 ? new AcknowledgementMessage(message) : message);
+        }
+
+        // gzipped files are recognized from their header, whatever their name, and parsed without unpacking them
+        java.nio.file.Path directory = java.nio.file.Files.createTempDirectory("vrdr-gzip");
+        try {
+            java.nio.file.Path gzipped = directory.resolve("submission.json.gz");
+            submission.encodeTo(ctx, ca.uhn.fhir.rest.api.EncodingEnum.XML, true, gzipped);
+            byte[] compressed = java.nio.file.Files.readAllBytes(gzipped);
+            assertEquals(0x1f, compressed[0] & 0xFF);
+            assertEquals(0x8b, compressed[1] & 0xFF);
+            String expectedJson = BaseMessage.parseXML(DeathRecordSubmissionMessage.class, ctx, submission.toXML(ctx)).toJson(ctx);
+            assertEquals(expectedJson, BaseMessage.parse(DeathRecordSubmissionMessage.class, ctx, gzipped).toJson(ctx));
+            assertEquals(expectedJson, BaseMessage.parse(DeathRecordSubmissionMessage.class, ctx, compressed).toJson(ctx));
+            assertEquals(expectedJson, BaseMessage.parseXMLFile(DeathRecordSubmissionMessage.class, ctx, gzipped.toString()).toJson(ctx));
+
+            java.nio.file.Path document = directory.resolve("record.json.gz");
+            submission.getDeathRecord().encodeTo(ctx, ca.uhn.fhir.rest.api.EncodingEnum.JSON, false, document);
+            assertEquals(BaseMessage.parseJson(DeathCertificateDocument.class, ctx, submission.getDeathRecord().toJson(ctx)).toJson(ctx),
+                    BaseMessage.parseJsonFile(DeathCertificateDocument.class, ctx, document.toString()).toJson(ctx));
+
+            // the bulk upload writer can compress its payloads as it writes them
+            try (BulkUploadWriter writer = new BulkUploadWriter(ctx, "http://example.com", directory, true)) {
+                writer.setMaxEntries(4);
+                writer.appendAll(messages, java.util.concurrent.ForkJoinPool.commonPool());
+            }
+            java.nio.file.Path second = directory.resolve("bulk-upload-2.json.gz");
+            try (BundleOfBundlesReader reader = new BundleOfBundlesReader(ctx, java.nio.file.Files.newInputStream(second))) {
+                assertEquals(3, reader.stream().count());
+            }
+        } finally {
+            for (String name : directory.toFile().list()) {
+                java.nio.file.Files.deleteIfExists(directory.resolve(name));
+            }
+            java.nio.file.Files.delete(directory);
+        }
+
+        // the batch readers decompress gzipped streams as they read them
+        java.io.ByteArrayOutputStream ndjson = new java.io.ByteArrayOutputStream();
+        try (NdjsonWriter writer = new NdjsonWriter(ctx, Gzip.compress(ndjson))) {
+            writer.writeAll(messages, java.util.concurrent.ForkJoinPool.commonPool());
+        }
+        try (NdjsonReader reader = new NdjsonReader(ctx, new java.io.ByteArrayInputStream(ndjson.toByteArray()))) {
+            BundleOfBundlesResult all = reader.readAll(java.util.concurrent.ForkJoinPool.commonPool());
+            assertEquals(messages.size(), all.getMessages().size());
+            assertFalse(all.hasFailures());
+        }
+
+        // a zip of per record XML, and a gzipped JSON record, is parsed an entry at a time on the pool
+        java.io.ByteArrayOutputStream zipped = new java.io.ByteArrayOutputStream();
+        try (java.util.zip.ZipOutputStream zip = new java.util.zip.ZipOutputStream(zipped)) {
+            zip.putNextEntry(new java.util.zip.ZipEntry("records/"));
+            zip.closeEntry();
+            for (int i = 0; i < messages.size(); i++) {
+                zip.putNextEntry(new java.util.zip.ZipEntry("records/record-" + i + ".xml"));
+                zip.write(messages.get(i).toXML(ctx).getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+                if (i == 1) {
+                    zip.putNextEntry(new java.util.zip.ZipEntry("records/broken.xml"));
+                    zip.write("<Bundle xmlns=\"http://hl7.org/fhir\"><type value=\"message\"/></Bundle>".getBytes(StandardCharsets.UTF_8));
+                    zip.closeEntry();
+                }
+            }
+            zip.putNextEntry(new java.util.zip.ZipEntry("records/record-gzipped.json.gz"));
+            java.io.ByteArrayOutputStream gzippedJson = new java.io.ByteArrayOutputStream();
+            try (OutputStream gzip = Gzip.compress(gzippedJson)) {
+                gzip.write(messages.get(0).toJson(ctx).getBytes(StandardCharsets.UTF_8));
+            }
+            zip.write(gzippedJson.toByteArray());
+            zip.closeEntry();
+        }
+
+        java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(3);
+        try (ZipBatchReader reader = new ZipBatchReader(ctx, new java.io.ByteArrayInputStream(zipped.toByteArray()))) {
+            List<BaseMessage> read = new ArrayList<>();
+            List<BundleOfBundlesResult.EntryFailure> failures = new ArrayList<>();
+            for (BundleOfBundlesResult batch = reader.readBatch(pool, 3); !batch.getMessages().isEmpty() || batch.hasFailures();
+                    batch = reader.readBatch(pool, 3)) {
+                assertTrue(batch.getMessages().size() + batch.getFailures().size() <= 3);
+                read.addAll(batch.getMessages());
+                failures.addAll(batch.getFailures());
+            }
+            assertEquals(messages.size() + 1, read.size());
+            for (int i = 0; i < messages.size(); i++) {
+                assertEquals(messages.get(i).getClass(), read.get(i).getClass());
+                assertEquals(BaseMessage.parseXML(BaseMessage.class, ctx, messages.get(i).toXML(ctx)).toJson(ctx), read.get(i).toJson(ctx));
+            }
+            assertEquals(BaseMessage.parseJson(BaseMessage.class, ctx, messages.get(0).toJson(ctx)).toJson(ctx), read.get(messages.size()).toJson(ctx));
+            assertEquals(1, failures.size());
+            assertEquals(3, failures.get(0).getIndex());
+            assertEquals("records/broken.xml", failures.get(0).getFullUrl());
+        } finally {
+            pool.shutdown();
+        }
+
+        try (ZipBatchReader reader = new ZipBatchReader(ctx, new java.io.ByteArrayInputStream(zipped.toByteArray()))) {
+            ZipBatchReader.Entry entry = reader.next();
+            assertEquals(1, entry.getEntryNumber());
+            assertEquals("records/record-0.xml", entry.getName());
+            assertEquals(((DeathRecordSubmissionMessage) messages.get(0)).getStateAuxiliaryId(),
+                    entry.getMessage(DeathRecordSubmissionMessage.class).getStateAuxiliaryId());
+            assertSame(entry.getMessage(), entry.getMessage());
+        }
+
+        // an entry over the maximum size ends the archive instead of being read into memory
+        try (ZipBatchReader reader = new ZipBatchReader(ctx, new java.io.ByteArrayInputStream(zipped.toByteArray()))) {
+            reader.setMaxEntrySize(100);
+            reader.hasNext();
+            fail("Expected the first record to be too large");
+        } catch (java.io.UncheckedIOException e) {
+            assertEquals("Zip entry records/record-0.xml is larger than the maximum of 100 bytes", e.getCause().getMessage());
+        }
+
+        // the maximum size also holds for a gzipped entry as it is decompressed, which fails that entry alone
+        java.io.ByteArrayOutputStream bomb = new java.io.ByteArrayOutputStream();
+        try (java.util.zip.ZipOutputStream zip = new java.util.zip.ZipOutputStream(bomb)) {
+            zip.putNextEntry(new java.util.zip.ZipEntry("records/bomb.json.gz"));
+            java.io.ByteArrayOutputStream gzippedJson = new java.io.ByteArrayOutputStream();
+            try (OutputStream gzip = Gzip.compress(gzippedJson)) {
+                byte[] whitespace = new byte[4 * 1024 * 1024];
+                java.util.Arrays.fill(whitespace, (byte) ' ');
+                gzip.write(new byte[] { '{' });
+                gzip.write(whitespace);
+            }
+            assertTrue(gzippedJson.size() < 64 * 1024);
+            zip.write(gzippedJson.toByteArray());
+            zip.closeEntry();
+        }
+        try (ZipBatchReader reader = new ZipBatchReader(ctx, new java.io.ByteArrayInputStream(bomb.toByteArray()))) {
+            reader.setMaxEntrySize(1024 * 1024);
+            BundleOfBundlesResult all = reader.readAll(java.util.concurrent.ForkJoinPool.commonPool());
+            assertTrue(all.getMessages().isEmpty());
+            assertEquals(1, all.getFailures().size());
+            assertTrue(all.getFailures().get(0).getMessage(),
+                    all.getFailures().get(0).getMessage().contains("larger than the maximum of 1048576 bytes"));
+        }
+    }
+
+    public void testBundleTranscoder() throws Exception {
+        DeathRecordSubmissionMessage submission = BaseMessage.parseJsonFile(DeathRecordSubmissionMessage.class, ctx, "src/test/resources/json/DeathRecordSubmissionMessage.json");
+        Bundle bundle = ctx.getJsonParser(false).parseResource(Bundle.class, submission.toJson(ctx));
+        String json = ctx.getJsonParser(false).encodeResourceToString(bundle);
+        String xml = ctx.getXmlParser(false).encodeResourceToString(bundle);
+        BundleTranscoder transcoder = new BundleTranscoder(ctx);
+
+        // what HAPI writes streams into exactly what HAPI writes for the other format, compact or pretty
+        java.io.StringWriter streamed = new java.io.StringWriter();
+        transcoder.jsonToXml(new java.io.StringReader(json), streamed);
+        assertEquals(xml, streamed.toString());
+        streamed = new java.io.StringWriter();
+        transcoder.xmlToJson(new java.io.StringReader(xml), streamed);
+        assertEquals(json, streamed.toString());
+        transcoder.setPrettyPrint(true);
+        assertEquals(ctx.getXmlParser(true).encodeResourceToString(bundle), transcoder.transcode(json, ca.uhn.fhir.rest.api.EncodingEnum.XML));
+        assertEquals(ctx.getJsonParser(true).encodeResourceToString(bundle), transcoder.transcode(xml, ca.uhn.fhir.rest.api.EncodingEnum.JSON));
+        transcoder.setPrettyPrint(false);
+
+        // JSON out of the order of the XML elements needs the first read of transcode to stream
+        String unordered = new String(java.nio.file.Files.readAllBytes(java.nio.file.Paths.get("src/test/resources/json/DeathRecordSubmissionMessage.json")), StandardCharsets.UTF_8);
+        try {
+            transcoder.jsonToXml(new java.io.StringReader(unordered), new java.io.StringWriter());
+            fail("Expected the out of order entry to be rejected");
+        } catch (BundleTranscoder.NotStreamableException e) {
+            assertTrue(e.getMessage().contains("out of order"));
+        }
+        // the profile classes add fixed values when the model parses them, so both sides go through the model to compare
+        String unorderedXml = transcoder.transcode(unordered, ca.uhn.fhir.rest.api.EncodingEnum.XML);
+        assertEquals(ctx.getXmlParser(false).encodeResourceToString(ctx.getJsonParser(false).parseResource(Bundle.class, unordered)),
+                ctx.getXmlParser(false).encodeResourceToString(ctx.getXmlParser(false).parseResource(Bundle.class, unorderedXml)));
+
+        // a primitive's value and its _ id and extensions, repeating ones matched up by position, are one element in XML
+        Patient patient = new Patient();
+        patient.setId("transcoded");
+        HumanName name = patient.addName();
+        name.addGiven("Jo");
+        StringType withoutValue = name.addGivenElement();
+        withoutValue.setId("given-2");
+        withoutValue.addExtension("http://example.org/nickname", new StringType("JJ"));
+        name.addGiven("Ann");
+        patient.setBirthDateElement(new DateType("1950-02-01"));
+        patient.getBirthDateElement().addExtension("http://hl7.org/fhir/StructureDefinition/patient-birthTime", new DateTimeType("1950-02-01T10:00:00Z"));
+        patient.setActive(true);
+        patient.setMultipleBirth(new IntegerType(2));
+        Bundle collection = new Bundle();
+        collection.setType(Bundle.BundleType.COLLECTION);
+        collection.addEntry().setFullUrl("urn:uuid:4f1a6a4e-6d2b-4c3a-9a55-0e8f1f6c7b21").setResource(patient);
+        String patientJson = ctx.getJsonParser(false).encodeResourceToString(collection);
+        String patientXml = ctx.getXmlParser(false).encodeResourceToString(collection);
+        assertTrue(patientJson.contains("\"given\":[\"Jo\",null,\"Ann\"],\"_given\":[null,{\"id\":\"given-2\""));
+        assertEquals(patientXml, transcoder.transcode(patientJson, ca.uhn.fhir.rest.api.EncodingEnum.XML));
+        assertEquals(patientJson, transcoder.transcode(patientXml, ca.uhn.fhir.rest.api.EncodingEnum.JSON));
+
+        // narrative XHTML is not streamed, transcode converts it through the model instead
+        patient.getText().setStatus(Narrative.NarrativeStatus.GENERATED).setDivAsString("<div xmlns=\"http://www.w3.org/1999/xhtml\">Jo</div>");
+        String narrativeJson = ctx.getJsonParser(false).encodeResourceToString(collection);
+        try {
+            transcoder.jsonToXml(new java.io.StringReader(narrativeJson), new java.io.StringWriter());
+            fail("Expected the narrative to be rejected");
+        } catch (BundleTranscoder.NotStreamableException e) {
+            assertTrue(e.getMessage().contains("div"));
+        }
+        assertEquals(ctx.getXmlParser(false).encodeResourceToString(ctx.getJsonParser(false).parseResource(Bundle.class, narrativeJson)),
+                transcoder.transcode(narrativeJson, ca.uhn.fhir.rest.api.EncodingEnum.XML));
+
+        // files are read gzipped or not and written gzipped when named .gz
+        java.nio.file.Path directory = java.nio.file.Files.createTempDirectory("vrdr-transcode");
+        try {
+            java.nio.file.Path source = directory.resolve("submission.json.gz");
+            try (java.io.Writer writer = Gzip.newBufferedWriter(source)) {
+                writer.write(unordered);
+            }
+            java.nio.file.Path target = directory.resolve("submission.xml");
+            transcoder.transcode(source, ca.uhn.fhir.rest.api.EncodingEnum.XML, target);
+            assertEquals(unorderedXml, new String(java.nio.file.Files.readAllBytes(target), StandardCharsets.UTF_8));
+            java.nio.file.Path back = directory.resolve("round-trip.json.gz");
+            transcoder.transcode(target, ca.uhn.fhir.rest.api.EncodingEnum.JSON, back);
+            assertTrue(Gzip.isGzipPath(back));
+            assertEquals(ctx.getJsonParser(false).encodeResourceToString(ctx.getJsonParser(false).parseResource(Bundle.class, unordered)),
+                    ctx.getJsonParser(false).encodeResourceToString(BaseMessage.parseJsonFile(Bundle.class, ctx, back.toString())));
+
+            // a file cannot be its own target
+            try {
+                transcoder.transcode(target, ca.uhn.fhir.rest.api.EncodingEnum.JSON, directory.resolve(".").resolve("submission.xml"));
+                fail("expected an IllegalArgumentException");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().startsWith("Cannot transcode a file into itself"));
+            }
+            assertEquals(unorderedXml, new String(java.nio.file.Files.readAllBytes(target), StandardCharsets.UTF_8));
+
+            // the stream writes the bad timestamp and gives up at the narrative, then the model path fails on the
+            // timestamp, which leaves the target as it was
+            java.nio.file.Path broken = directory.resolve("broken.json");
+            java.nio.file.Files.write(broken, narrativeJson.replace("\"resourceType\":\"Bundle\",", "\"resourceType\":\"Bundle\",\"timestamp\":\"yesterday\",")
+                    .getBytes(StandardCharsets.UTF_8));
+            try {
+                transcoder.transcode(broken, ca.uhn.fhir.rest.api.EncodingEnum.XML, target);
+                fail("expected the model path to fail");
+            } catch (ca.uhn.fhir.parser.DataFormatException e) {
+                assertTrue(e.getMessage().contains("yesterday"));
+            }
+            assertEquals(unorderedXml, new String(java.nio.file.Files.readAllBytes(target), StandardCharsets.UTF_8));
+            assertEquals(4, directory.toFile().list().length);
+        } finally {
+            for (String file : directory.toFile().list()) {
+                java.nio.file.Files.deleteIfExists(directory.resolve(file));
+            }
+            java.nio.file.Files.delete(directory);
+        }
+    }
+
     public void testCodeableConceptPlaceOfDeath() {
         CodeableConcept codeableConceptPlaceofDeath = CommonUtil.findConceptFromCollectionUsingSimpleString("Death in hospital", DeathDateUtil.placeOfDeathTypeSet);
         assertEquals("16983000", codeableConceptPlaceofDeath.getCoding().get(0).getCode());
@@ -1101,4 +1877,518 @@ public class MessagingTest extends TestCase {
         assertEquals(submission.getNCHSIdentifier(), parsed.getNCHSIdentifier());
         assertEquals(submission.getMessageDestinations(), parsed.getMessageDestinations());
     }
+
+    public void testSharedContextParserCache() throws Exception {
+        VRDRFhirContext shared = VRDRFhirContext.shared();
+        assertSame(shared, VRDRFhirContext.shared());
+        assertSame(shared.getJsonParser(false), shared.getJsonParser(false));
+        assertNotSame(shared.getJsonParser(false), shared.getJsonParser(true));
+        assertNotSame(shared.getJsonParser(false), shared.getXmlParser(false));
+
+        final String submissionJson = BaseMessage.parseJsonFile(DeathRecordSubmissionMessage.class, ctx, "src/test/resources/json/DeathRecordSubmissionMessage.json").toJson(ctx);
+        final String expected = BaseMessage.parseJson(DeathRecordSubmissionMessage.class, ctx, submissionJson).toJson(ctx);
+        final IParser[] otherThreadParser = new IParser[1];
+        final List<String> results = java.util.Collections.synchronizedList(new ArrayList<String>());
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread(() -> {
+                otherThreadParser[0] = shared.getJsonParser(false);
+                for (int j = 0; j < 5; j++) {
+                    results.add(BaseMessage.parseJson(DeathRecordSubmissionMessage.class, shared, submissionJson).toJson(shared));
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNotSame(shared.getJsonParser(false), otherThreadParser[0]);
+        assertEquals(40, results.size());
+        for (String result : results) {
+            assertEquals(expected, result);
+        }
+
+        // a shared parser is used as it is, a strict one is refused rather than made lenient for everyone after
+        assertTrue(BaseMessage.parse(DeathRecordSubmissionMessage.class, shared.getJsonParser(false), null, submissionJson) instanceof DeathRecordSubmissionMessage);
+        IParser strict = shared.getParser(ca.uhn.fhir.rest.api.EncodingEnum.JSON, false, false);
+        try {
+            BaseMessage.parse(DeathRecordSubmissionMessage.class, strict, null, submissionJson);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(VRDRFhirContext.isSharedParser(strict));
+            assertFalse(VRDRFhirContext.isSharedLenientParser(strict));
+        }
+        assertFalse(VRDRFhirContext.isSharedParser(shared.getCtx().newJsonParser()));
+        assertTrue(BaseMessage.parse(DeathRecordSubmissionMessage.class, shared.getCtx().newJsonParser(), null, submissionJson) instanceof DeathRecordSubmissionMessage);
+    }
+
+    public void testParseAsBaseMessage() {
+        BaseMessage message = BaseMessage.parseJsonFile(BaseMessage.class, ctx, "src/test/resources/json/DeathRecordVoidMessage.json");
+        assertTrue(message instanceof DeathRecordVoidMessage);
+        assertEquals(DeathRecordVoidMessage.MESSAGE_TYPE, message.getMessageType());
+        message = BaseMessage.parseJsonFile(BaseMessage.class, ctx, "src/test/resources/json/CauseOfDeathCodingMessage.json");
+        assertTrue(message instanceof CauseOfDeathCodingMessage);
+        try {
+            BaseMessage.parseJsonFile(BaseMessage.class, ctx, "src/test/resources/json/InvalidMessageType.json");
+            fail();
+        } catch (MessageParseException ex) {
+            assertEquals("Unsupported message type: http://nchs.cdc.gov/vrdr_invalid_type", ex.getMessage());
+        }
+        try {
+            BaseMessage.parseJsonFile(BaseMessage.class, ctx, "src/test/resources/json/MissingMessageType.json");
+            fail();
+        } catch (MessageParseException ex) {
+            assertEquals("Message type was missing from MessageHeader", ex.getMessage());
+        }
+    }
+
+    public void testMessageEnvelope() throws Exception {
+        String[] files = { "DeathRecordSubmissionMessage", "DeathRecordUpdateMessage", "DeathRecordVoidMessage",
+                "DeathRecordAliasMessage", "AcknowledgementMessage", "CauseOfDeathCodingMessage", "DemographicsCodingUpdateMessage",
+                "ExtractionErrorMessage", "StatusMessage", "DeathRecordSubmissionNoIdentifiers" };
+        for (String file : files) {
+            String json = new String(java.nio.file.Files.readAllBytes(java.nio.file.Paths.get("src/test/resources/json/" + file + ".json")), StandardCharsets.UTF_8);
+            BaseMessage message = BaseMessage.parseJson(BaseMessage.class, ctx, json);
+            assertEnvelope(message, MessageEnvelope.peekJson(json));
+            String xml = message.toXML(ctx, true);
+            assertEnvelope(BaseMessage.parseXML(BaseMessage.class, ctx, xml), MessageEnvelope.peekXml(xml));
+        }
+
+        AcknowledgementMessage ack = BaseMessage.parseXMLFile(AcknowledgementMessage.class, ctx, "src/test/resources/xml/AcknowledgementMessage.xml");
+        MessageEnvelope envelope = MessageEnvelope.peekXml(new java.io.InputStreamReader(new FileInputStream("src/test/resources/xml/AcknowledgementMessage.xml"), StandardCharsets.UTF_8));
+        assertEnvelope(ack, envelope);
+        assertEquals(ack.getAckedMessageId(), envelope.getResponseIdentifier());
+
+        // resourceType is not always the first member
+        envelope = MessageEnvelope.peekJson("{\"entry\": [{\"resource\": {\"id\": \"h1\", \"eventUri\": \"http://nchs.cdc.gov/vrdr_submission\", \"resourceType\": \"MessageHeader\"}},"
+                + " {\"resource\": {\"resourceType\": \"Parameters\", \"parameter\": [{\"valueUnsignedInt\": 12, \"name\": \"cert_no\"}]}}], \"id\": \"b1\", \"resourceType\": \"Bundle\"}");
+        assertEquals("h1", envelope.getMessageHeaderId());
+        assertEquals("http://nchs.cdc.gov/vrdr_submission", envelope.getMessageType());
+        assertEquals(Integer.valueOf(12), envelope.getCertNo());
+        // the bundle id after the entries is still read, as the parser reads it
+        assertEquals("b1", envelope.getMessageId());
+        assertEquals("b1", MessageEnvelope.peekJson("{\"resourceType\": \"Bundle\", \"entry\": [{\"resource\": {\"resourceType\": \"MessageHeader\", \"id\": \"h1\"}},"
+                + " {\"resource\": {\"resourceType\": \"Parameters\"}}, {\"resource\": {\"resourceType\": \"Bundle\", \"id\": \"doc\"}}], \"id\": \"b1\"}").getMessageId());
+        DeathRecordSubmissionMessage idLast = BaseMessage.parseJsonFile(DeathRecordSubmissionMessage.class, ctx, "src/test/resources/json/DeathRecordSubmissionMessage.json");
+        com.google.gson.JsonObject reordered = new com.google.gson.JsonParser().parse(idLast.toJson(ctx)).getAsJsonObject();
+        com.google.gson.JsonElement id = reordered.remove("id");
+        reordered.add("id", id);
+        assertEnvelope(BaseMessage.parseJson(BaseMessage.class, ctx, reordered.toString()), MessageEnvelope.peekJson(reordered.toString()));
+
+        try {
+            MessageEnvelope.peekJson("{\"resourceType\": \"Bundle\", \"entry\": [");
+            fail();
+        } catch (IllegalArgumentException ex) {
+            assertTrue(ex.getMessage().startsWith("Unable to parse bundle"));
+        }
+    }
+
+    private static void assertEnvelope(BaseMessage message, MessageEnvelope envelope) {
+        assertEquals(message.getId(), envelope.getMessageId());
+        assertEquals(message.getMessageHeaderId(), envelope.getMessageHeaderId());
+        assertEquals(message.getMessageType(), envelope.getMessageType());
+        assertEquals(message.getMessageSource(), envelope.getMessageSource());
+        assertEquals(message.getMessageDestination(), envelope.getMessageDestination());
+        assertEquals(message.getCertNo(), envelope.getCertNo());
+        assertEquals(message.getDeathYear(), envelope.getDeathYear());
+        assertEquals(message.getJurisdictionId(), envelope.getJurisdictionId());
+        assertEquals(message.getStateAuxiliaryId(), envelope.getStateAuxiliaryId());
+        assertEquals(message.getNCHSIdentifier(), envelope.getNCHSIdentifier());
+    }
+
+    public void testParseBytesAndPaths() throws Exception {
+        java.nio.file.Path jsonPath = java.nio.file.Paths.get("src/test/resources/json/DeathRecordSubmissionMessage.json");
+        byte[] jsonBytes = java.nio.file.Files.readAllBytes(jsonPath);
+        DeathRecordSubmissionMessage expected = BaseMessage.parseJsonFile(DeathRecordSubmissionMessage.class, ctx, jsonPath.toString());
+
+        assertEquals(expected.toJson(ctx), BaseMessage.parse(DeathRecordSubmissionMessage.class, ctx, jsonBytes).toJson(ctx));
+        assertEquals(expected.toJson(ctx), BaseMessage.parse(DeathRecordSubmissionMessage.class, ctx, jsonPath).toJson(ctx));
+        assertTrue(BaseMessage.parse(BaseMessage.class, ctx, jsonPath) instanceof DeathRecordSubmissionMessage);
+
+        // a byte order mark and leading whitespace, read from the middle of a larger buffer
+        byte[] xmlBytes = ("\uFEFF \n" + expected.toXML(ctx)).getBytes(StandardCharsets.UTF_8);
+        java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocate(xmlBytes.length + 8);
+        buffer.put(new byte[4]).put(xmlBytes).put(new byte[4]);
+        buffer.position(4).limit(4 + xmlBytes.length);
+        assertEquals(ca.uhn.fhir.rest.api.EncodingEnum.XML, BaseMessage.detectEncoding(buffer));
+        DeathRecordSubmissionMessage fromXml = BaseMessage.parse(DeathRecordSubmissionMessage.class, ctx, buffer);
+        assertEquals(4, buffer.position());
+        assertEquals(expected.getNCHSIdentifier(), fromXml.getNCHSIdentifier());
+
+        // large enough to be memory mapped, with non ASCII content that must be decoded as UTF-8
+        DeathRecordSubmissionMessage large = BaseMessage.parse(DeathRecordSubmissionMessage.class, ctx, jsonBytes);
+        large.setStateAuxiliaryId("Zoë-" + StringUtils.repeat("x", (int) BaseMessage.MEMORY_MAP_THRESHOLD));
+        java.nio.file.Path largePath = java.nio.file.Files.createTempFile("vrdr-large", ".json");
+        try {
+            java.nio.file.Files.write(largePath, large.toJson(ctx).getBytes(StandardCharsets.UTF_8));
+            assertTrue(java.nio.file.Files.size(largePath) > BaseMessage.MEMORY_MAP_THRESHOLD);
+            assertEquals(large.getStateAuxiliaryId(), BaseMessage.parse(DeathRecordSubmissionMessage.class, ctx, largePath).getStateAuxiliaryId());
+            assertEquals(large.getStateAuxiliaryId(), BaseMessage.parseJsonFile(DeathRecordSubmissionMessage.class, ctx, largePath.toString()).getStateAuxiliaryId());
+        } finally {
+            java.nio.file.Files.delete(largePath);
+        }
+
+        try {
+            BaseMessage.parse(Bundle.class, ctx, "  [1, 2]".getBytes(StandardCharsets.UTF_8));
+            fail();
+        } catch (IllegalArgumentException ex) {
+            assertEquals("Unable to parse bundle, content is neither JSON nor XML, first character was: '['", ex.getMessage());
+        }
+        try {
+            BaseMessage.parse(Bundle.class, ctx, " \n".getBytes(StandardCharsets.UTF_8));
+            fail();
+        } catch (IllegalArgumentException ex) {
+            assertEquals("Unable to parse bundle, content is empty", ex.getMessage());
+        }
+    }
+
+    public void testTryParse() throws Exception {
+        DeathRecordSubmissionMessage submission = BaseMessage.parseJsonFile(DeathRecordSubmissionMessage.class, ctx, "src/test/resources/json/DeathRecordSubmissionMessage.json");
+        String json = submission.toJson(ctx);
+
+        ParseResult<DeathRecordSubmissionMessage> result = BaseMessage.tryParseJson(DeathRecordSubmissionMessage.class, ctx, json);
+        assertTrue(result.isSuccess());
+        assertEquals(submission.getNCHSIdentifier(), result.getMessage().getNCHSIdentifier());
+        assertTrue(result.getDiagnostics().isEmpty());
+        assertNull(result.getErrorMessage());
+        assertNull(result.getUnknownMessage());
+        assertTrue(BaseMessage.tryParseXML(BaseMessage.class, ctx, submission.toXML(ctx)).getMessage() instanceof DeathRecordSubmissionMessage);
+        assertTrue(BaseMessage.tryParse(BaseMessage.class, ctx, json.getBytes(StandardCharsets.UTF_8)).isSuccess());
+
+        // the failures report the same error the throwing parse does
+        ParseResult<AcknowledgementMessage> wrongType = assertSameFailure(AcknowledgementMessage.class, json);
+        assertEquals("Message event uri type " + DeathRecordSubmissionMessage.MESSAGE_TYPE
+                + " does not match the expected message type " + AcknowledgementMessage.MESSAGE_TYPE, wrongType.getErrorMessage());
+        assertEquals(OperationOutcome.IssueSeverity.ERROR, wrongType.getDiagnostics().get(0).getIssueSeverity());
+        assertEquals(submission.getMessageHeaderId(), wrongType.getUnknownMessage().getMessageHeaderId());
+        ExtractionErrorMessage extractionError = wrongType.createExtractionErrorMessage();
+        assertEquals(submission.getId(), extractionError.getFailedMessageId());
+        assertEquals(wrongType.getErrorMessage(), extractionError.getIssues().get(0).getDescription());
+
+        submission.setMessageType("http://example.org/not_registered");
+        assertEquals("Unsupported message type: http://example.org/not_registered",
+                assertSameFailure(BaseMessage.class, submission.toJson(ctx)).getErrorMessage());
+        submission.setMessageType(DeathRecordSubmissionMessage.MESSAGE_TYPE);
+
+        Bundle bundle = BaseMessage.parseJson(Bundle.class, ctx, json);
+        bundle.setType(Bundle.BundleType.COLLECTION);
+        assertEquals("The FHIR Bundle must be of type message, not COLLECTION",
+                assertSameFailure(DeathRecordSubmissionMessage.class, ctx.getJsonParser(false).encodeResourceToString(bundle)).getErrorMessage());
+
+        // only the message constructor knows a submission needs a death record
+        bundle.setType(Bundle.BundleType.MESSAGE);
+        bundle.getEntry().removeIf(entry -> entry.getResource() instanceof Bundle);
+        assertSameFailure(DeathRecordSubmissionMessage.class, ctx.getJsonParser(false).encodeResourceToString(bundle));
+
+        ParseResult<BaseMessage> malformed = assertSameFailure(BaseMessage.class, "{\"resourceType\": \"Bundle\", ");
+        assertTrue(malformed.getErrorMessage().startsWith("Unable to parse bundle, exception: "));
+        assertNull(malformed.getUnknownMessage());
+        assertNotNull(malformed.createExtractionErrorMessage());
+
+        assertEquals("Unable to parse bundle, content is neither JSON nor XML, first character was: '['",
+                BaseMessage.tryParse(Bundle.class, ctx, "  [1, 2]".getBytes(StandardCharsets.UTF_8)).getErrorMessage());
+        assertEquals("Unable to parse bundle, content is empty",
+                BaseMessage.tryParse(Bundle.class, ctx, new byte[0]).getErrorMessage());
+
+        // gzipped bytes are accepted like parse accepts them
+        java.io.ByteArrayOutputStream gzipped = new java.io.ByteArrayOutputStream();
+        try (OutputStream gzip = Gzip.compress(gzipped)) {
+            gzip.write(json.getBytes(StandardCharsets.UTF_8));
+        }
+        ParseResult<BaseMessage> unzipped = BaseMessage.tryParse(BaseMessage.class, ctx, gzipped.toByteArray());
+        assertTrue(unzipped.getErrorMessage(), unzipped.isSuccess());
+        assertEquals(submission.getNCHSIdentifier(), ((DeathRecordSubmissionMessage) unzipped.getMessage()).getNCHSIdentifier());
+        byte[] truncated = Arrays.copyOf(gzipped.toByteArray(), 4);
+        assertTrue(BaseMessage.tryParse(BaseMessage.class, ctx, truncated).getErrorMessage().startsWith("Unable to parse bundle, exception: "));
+    }
+
+    public void testEncodeTo() throws Exception {
+        DeathRecordSubmissionMessage submission = BaseMessage.parseJsonFile(DeathRecordSubmissionMessage.class, ctx, "src/test/resources/json/DeathRecordSubmissionMessage.json");
+        submission.setStateAuxiliaryId("Zoë");
+
+        java.io.StringWriter writer = new java.io.StringWriter();
+        submission.encodeTo(ctx, ca.uhn.fhir.rest.api.EncodingEnum.JSON, false, writer);
+        assertEquals(submission.toJson(ctx), writer.toString());
+
+        java.io.ByteArrayOutputStream stream = new java.io.ByteArrayOutputStream();
+        submission.encodeTo(ctx, ca.uhn.fhir.rest.api.EncodingEnum.XML, true, stream);
+        assertEquals(submission.toXML(ctx, true), new String(stream.toByteArray(), StandardCharsets.UTF_8));
+
+        java.nio.file.Path path = java.nio.file.Files.createTempFile("vrdr-encode", ".json");
+        try {
+            submission.encodeTo(ctx, ca.uhn.fhir.rest.api.EncodingEnum.JSON, false, path);
+            assertEquals("Zoë", BaseMessage.parse(DeathRecordSubmissionMessage.class, ctx, path).getStateAuxiliaryId());
+
+            DeathCertificateDocument document = submission.getDeathRecord();
+            document.encodeTo(ctx, ca.uhn.fhir.rest.api.EncodingEnum.JSON, true, path);
+            assertEquals(document.toJson(ctx, true), new String(java.nio.file.Files.readAllBytes(path), StandardCharsets.UTF_8));
+        } finally {
+            java.nio.file.Files.delete(path);
+        }
+    }
+
+    private <T extends Bundle> ParseResult<T> assertSameFailure(Class<T> tClass, String json) {
+        ParseResult<T> result = BaseMessage.tryParseJson(tClass, ctx, json);
+        assertFalse(result.isSuccess());
+        assertNull(result.getMessage());
+        try {
+            BaseMessage.parseJson(tClass, ctx, json);
+            fail();
+        } catch (IllegalArgumentException ex) {
+            assertEquals(ex.getMessage(), result.getErrorMessage());
+        }
+        return result;
+    }
+
+    public static class CustomEventMessage extends BaseMessage {
+        public static final String MESSAGE_TYPE = "http://example.org/vrdr_custom_event";
+
+        public CustomEventMessage(Bundle messageBundle) {
+            super(messageBundle);
+        }
+
+        public String getIGMessageType() {
+            return MESSAGE_TYPE;
+        }
+    }
+
+    public void testMessageTypeRegistry() {
+        assertNotNull(MessageTypeRegistry.getFactory(DeathRecordAliasMessage.MESSAGE_TYPE));
+        assertNotNull(MessageTypeRegistry.getFactory(DeathRecordAliasMessage.class));
+        assertNull(MessageTypeRegistry.getFactory("http://example.org/not_registered"));
+        assertNull(MessageTypeRegistry.getFactory((String) null));
+
+        DeathRecordSubmissionMessage submission = BaseMessage.parseJsonFile(DeathRecordSubmissionMessage.class, ctx, "src/test/resources/json/DeathRecordSubmissionMessage.json");
+        submission.setMessageType(CustomEventMessage.MESSAGE_TYPE);
+        String json = submission.toJson(ctx);
+        try {
+            BaseMessage.parseJson(BaseMessage.class, ctx, json);
+            fail();
+        } catch (MessageParseException ex) {
+            assertEquals("Unsupported message type: " + CustomEventMessage.MESSAGE_TYPE, ex.getMessage());
+        }
+
+        MessageTypeRegistry.register(CustomEventMessage.MESSAGE_TYPE, CustomEventMessage.class, CustomEventMessage::new);
+        try {
+            BaseMessage message = BaseMessage.parseJson(BaseMessage.class, ctx, json);
+            assertTrue(message instanceof CustomEventMessage);
+            assertEquals(submission.getNCHSIdentifier(), message.getNCHSIdentifier());
+            assertEquals(CustomEventMessage.MESSAGE_TYPE, BaseMessage.parseJson(CustomEventMessage.class, ctx, json).getMessageType());
+        } finally {
+            MessageTypeRegistry.unregister(CustomEventMessage.class);
+        }
+        assertNull(MessageTypeRegistry.getFactory(CustomEventMessage.MESSAGE_TYPE));
+        assertNull(MessageTypeRegistry.getFactory(CustomEventMessage.class));
+        assertNull(MessageTypeRegistry.getEventUri(CustomEventMessage.class));
+        assertNotNull(MessageTypeRegistry.getFactory(DeathRecordSubmissionMessage.MESSAGE_TYPE));
+    }
+
+    public void testMessageService() throws Exception {
+        MessageService service = new MessageService(ctx, 0, 2, 4);
+        assertTrue(service.getAddress().getAddress().isLoopbackAddress());
+        service.start();
+        try {
+            String base = "http://localhost:" + service.getPort();
+            DeathRecordSubmissionMessage submission = BaseMessage.parseJsonFile(DeathRecordSubmissionMessage.class, ctx, "src/test/resources/json/DeathRecordSubmissionMessage.json");
+            String submissionJson = submission.toJson(ctx);
+
+            HttpURLConnection connection = post(base + "/parse", submissionJson);
+            assertEquals(200, connection.getResponseCode());
+            assertNotNull(connection.getHeaderField("Server-Timing"));
+            String summary = read(connection.getInputStream());
+            assertTrue(summary.contains("\"messageType\":\"DeathRecordSubmissionMessage\""));
+            assertTrue(summary.contains("\"nchsIdentifier\":\"" + submission.getNCHSIdentifier() + "\""));
+
+            connection = post(base + "/parse", submission.toXML(ctx));
+            assertEquals(200, connection.getResponseCode());
+            assertEquals(summary, read(connection.getInputStream()));
+
+            connection = post(base + "/ack", submissionJson);
+            assertEquals(200, connection.getResponseCode());
+            AcknowledgementMessage ack = BaseMessage.parseJson(AcknowledgementMessage.class, ctx, read(connection.getInputStream()));
+            assertEquals(submission.getMessageHeaderId(), ack.getAckedMessageId());
+
+            connection = post(base + "/convert", submissionJson);
+            assertEquals(200, connection.getResponseCode());
+            DeathRecordSubmissionMessage converted = BaseMessage.parseXML(DeathRecordSubmissionMessage.class, ctx, read(connection.getInputStream()));
+            assertEquals(submission.getNCHSIdentifier(), converted.getNCHSIdentifier());
+
+            List<BaseMessage> messages = new ArrayList<>();
+            messages.add(submission);
+            messages.add(BaseMessage.parseJsonFile(DeathRecordVoidMessage.class, ctx, "src/test/resources/json/DeathRecordVoidMessage.json"));
+            connection = post(base + "/split", UploadUtil.CreateBulkUploadPayload(ctx, messages, "http://nchs.cdc.gov/vrdr_submission", false));
+            assertEquals(200, connection.getResponseCode());
+            String[] lines = read(connection.getInputStream()).split("\n");
+            assertEquals(2, lines.length);
+            assertTrue(BaseMessage.parseJson(BaseMessage.class, ctx, lines[1]) instanceof DeathRecordVoidMessage);
+            connection = post(base + "/split", submission.toXML(ctx));
+            assertEquals(400, connection.getResponseCode());
+            assertEquals("Bundles of bundles are only supported in JSON", read(connection.getErrorStream()));
+
+            // bodies over the limit are refused without being read
+            service.setMaxBodyBytes(1024);
+            connection = post(base + "/parse", submissionJson);
+            assertEquals(413, connection.getResponseCode());
+            assertEquals("Request body is larger than the maximum of 1024 bytes", read(connection.getErrorStream()));
+            connection = post(base + "/split", UploadUtil.CreateBulkUploadPayload(ctx, messages, "http://nchs.cdc.gov/vrdr_submission", false));
+            assertEquals(413, connection.getResponseCode());
+            // a chunked body has no length up front and is cut off once it passes the limit
+            connection = (HttpURLConnection) new URL(base + "/split").openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setChunkedStreamingMode(512);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(UploadUtil.CreateBulkUploadPayload(ctx, messages, "http://nchs.cdc.gov/vrdr_submission", false).getBytes(StandardCharsets.UTF_8));
+            } catch (IOException ignored) {
+                // the service may answer and close before the whole body is sent
+            }
+            assertEquals(413, connection.getResponseCode());
+            service.setMaxBodyBytes(MessageService.DEFAULT_MAX_BODY_BYTES);
+
+            connection = post(base + "/parse", read(new FileInputStream("src/test/resources/json/MissingMessageType.json")));
+            assertEquals(400, connection.getResponseCode());
+            assertEquals("Message type was missing from MessageHeader", read(connection.getErrorStream()));
+
+            DeathRecordSubmissionMessage mismatched = BaseMessage.parseJson(DeathRecordSubmissionMessage.class, ctx, submissionJson);
+            mismatched.setMessageType("http://nchs.cdc.gov/vrdr_unknown");
+            connection = post(base + "/parse", mismatched.toJson(ctx));
+            assertEquals(400, connection.getResponseCode());
+            ExtractionErrorMessage error = BaseMessage.parseJson(ExtractionErrorMessage.class, ctx, read(connection.getErrorStream()));
+            assertEquals("Unsupported message type: http://nchs.cdc.gov/vrdr_unknown", error.getIssues().get(0).getDescription());
+            assertEquals(mismatched.getId(), error.getFailedMessageId());
+
+            connection = (HttpURLConnection) new URL(base + "/parse").openConnection();
+            assertEquals(405, connection.getResponseCode());
+
+            connection = (HttpURLConnection) new URL(base + "/stats").openConnection();
+            assertEquals(200, connection.getResponseCode());
+            // requests are counted once their exchange is closed, which can trail the client reading the response
+            assertTrue(read(connection.getInputStream()).contains("\"/parse\":{\"count\":"));
+        } finally {
+            service.stop(0);
+        }
+    }
+
+    public void testStreamBundleOfBundles() throws Exception {
+        List<BaseMessage> messages = new ArrayList<>();
+        messages.add(BaseMessage.parseJsonFile(DeathRecordSubmissionMessage.class, ctx, "src/test/resources/json/DeathRecordSubmissionMessage.json"));
+        messages.add(BaseMessage.parseJsonFile(DeathRecordVoidMessage.class, ctx, "src/test/resources/json/DeathRecordVoidMessage.json"));
+        messages.add(BaseMessage.parseJsonFile(CauseOfDeathCodingMessage.class, ctx, "src/test/resources/json/CauseOfDeathCodingMessage.json"));
+        messages.add(BaseMessage.parseJsonFile(AcknowledgementMessage.class, ctx, "src/test/resources/json/AcknowledgementMessage.json"));
+        Bundle nchsResponse = new Bundle();
+        nchsResponse.setType(Bundle.BundleType.BATCHRESPONSE);
+        for (BaseMessage message : messages) {
+            nchsResponse.addEntry().setResource(message.cloneAsBundle());
+        }
+        String payload = ctx.getJsonParser(true).encodeResourceToString(nchsResponse);
+        List<BaseMessage> parsed = BaseMessage.parseBundleOfBundles(ctx, payload);
+
+        List<BaseMessage> streamed;
+        try (java.util.stream.Stream<BaseMessage> stream = BaseMessage.streamBundleOfBundles(ctx, new java.io.StringReader(payload))) {
+            streamed = stream.collect(java.util.stream.Collectors.toList());
+        }
+        assertEquals(4, streamed.size());
+        for (int i = 0; i < parsed.size(); i++) {
+            assertEquals(parsed.get(i).getClass(), streamed.get(i).getClass());
+            assertEquals(parsed.get(i).toJson(ctx), streamed.get(i).toJson(ctx));
+        }
+
+        // bulk upload payloads name the inner resources after the message classes
+        payload = UploadUtil.CreateBulkUploadPayload(ctx, messages, "http://nchs.cdc.gov/vrdr_submission", false);
+        Iterator<BaseMessage> iterator = new BundleOfBundlesReader(ctx, new java.io.StringReader(payload));
+        for (BaseMessage message : messages) {
+            BaseMessage next = iterator.next();
+            assertEquals(message.getClass(), next.getClass());
+            assertEquals(message.getMessageType(), next.getMessageType());
+            assertEquals(message.getNCHSIdentifier(), next.getNCHSIdentifier());
+        }
+        assertFalse(iterator.hasNext());
+
+        // entries that are not bundles are skipped and elements after the entry array are never read
+        Bundle outer = new Bundle();
+        outer.setType(Bundle.BundleType.BATCHRESPONSE);
+        outer.addEntry().setResource(new OperationOutcome());
+        outer.addEntry().setFullUrl("urn:uuid:9b9e7e3e-0d3a-4e8c-9a8a-2c2f39a1e3c1").setResource(messages.get(1).cloneAsBundle());
+        String response = ctx.getJsonParser(false).encodeResourceToString(outer);
+        BundleOfBundlesReader reader = new BundleOfBundlesReader(ctx,
+                new java.io.ByteArrayInputStream((response.substring(0, response.length() - 1) + ", \"link\": [{\"url\": ").getBytes(StandardCharsets.UTF_8)));
+        assertTrue(reader.hasNext());
+        BaseMessage message = reader.next();
+        assertTrue(message instanceof DeathRecordVoidMessage);
+        assertEquals("urn:uuid:9b9e7e3e-0d3a-4e8c-9a8a-2c2f39a1e3c1", message.getId());
+        assertFalse(reader.hasNext());
+        reader.close();
+
+        reader = new BundleOfBundlesReader(ctx, new java.io.StringReader("{\"resourceType\": \"Bundle\", \"entry\": [{\"resource\": "));
+        try {
+            reader.hasNext();
+            fail();
+        } catch (IllegalArgumentException ex) {
+            assertTrue(ex.getMessage().startsWith("Unable to parse bundle"));
+        }
+    }
+
+    public void testParseBundleOfBundlesParallel() throws Exception {
+        Bundle nchsResponse = new Bundle();
+        nchsResponse.setType(Bundle.BundleType.BATCHRESPONSE);
+        String[] files = { "DeathRecordSubmissionMessage", "DeathRecordVoidMessage", "CauseOfDeathCodingMessage",
+                "InvalidMessageType", "AcknowledgementMessage", "DemographicsCodingMessage", "StatusMessage" };
+        for (String file : files) {
+            nchsResponse.addEntry().setResource(BaseMessage.parseJsonFile(Bundle.class, ctx, "src/test/resources/json/" + file + ".json"));
+        }
+        nchsResponse.addEntry().setResource(new OperationOutcome().setId("not-a-resource"));
+        String payload = ctx.getJsonParser(false).encodeResourceToString(nchsResponse);
+        // an entry that is not a known resource is a failure of that entry only
+        payload = payload.replace("\"resourceType\":\"OperationOutcome\"", "\"resourceType\":\"NotAResource\"");
+
+        BundleOfBundlesResult result = BaseMessage.parseBundleOfBundlesParallel(ctx, payload, 4);
+        assertTrue(result.hasFailures());
+        assertEquals(2, result.getFailures().size());
+        assertEquals(3, result.getFailures().get(0).getIndex());
+        assertTrue(result.getFailures().get(0).getException() instanceof MessageParseException);
+        assertEquals("Unsupported message type: http://nchs.cdc.gov/vrdr_invalid_type", result.getFailures().get(0).getMessage());
+        assertEquals(7, result.getFailures().get(1).getIndex());
+
+        List<BaseMessage> messages = result.getMessages();
+        assertEquals(6, messages.size());
+        Class<?>[] expected = { DeathRecordSubmissionMessage.class, DeathRecordVoidMessage.class, CauseOfDeathCodingMessage.class,
+                AcknowledgementMessage.class, DemographicsCodingMessage.class, StatusMessage.class };
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], messages.get(i).getClass());
+        }
+
+        nchsResponse.getEntry().remove(7);
+        nchsResponse.getEntry().remove(3);
+        payload = ctx.getJsonParser(false).encodeResourceToString(nchsResponse);
+        List<BaseMessage> sequential = BaseMessage.parseBundleOfBundles(ctx, payload);
+        messages = BaseMessage.parseBundleOfBundlesParallel(ctx, payload, 3).getMessages();
+        assertEquals(sequential.size(), messages.size());
+        // coded content without ids gets fresh random ones every time it is wrapped
+        String uuid = "[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}";
+        for (int i = 0; i < sequential.size(); i++) {
+            assertEquals(sequential.get(i).toJson(ctx).replaceAll(uuid, ""), messages.get(i).toJson(ctx).replaceAll(uuid, ""));
+        }
+    }
+
+    private static HttpURLConnection post(String url, String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        return connection;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            StringBuilder content = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                content.append(line).append('\n');
+            }
+            return content.toString().trim();
+        }
+    }
 }
@@ -0,0 +1,32 @@
+#!/bin/sh
+# Compares cold start of the command line tool with (app-cds) and without (app) the class data sharing
+# archive built by tools/build_cds_archive.sh, timing a full "create submission" run per JVM.
+#
+# Usage: sh tools/benchmark_cds_startup.sh [runs]
+
+set -e
+
+APP_DIR=${APPASSEMBLER_DIR:-"$(cd "$(dirname "$0")/.." && pwd)/target/appassembler"}
+RUNS=${1:-10}
+OUTPUT_DIR=$(mktemp -d)
+trap 'rm -rf "$OUTPUT_DIR"' EXIT
+
+if [ ! -f "$APP_DIR/cds/vrdr-cli.jsa" ]; then
+    echo "No archive found in $APP_DIR/cds, run tools/build_cds_archive.sh first"
+    exit 1
+fi
+
+for launcher in app app-cds; do
+    # one untimed run to warm the OS file cache
+    sh "$APP_DIR/bin/$launcher" create submission "$OUTPUT_DIR/submission.json" > /dev/null 2>&1
+    total=0
+    i=0
+    while [ $i -lt "$RUNS" ]; do
+        start=$(date +%s%N)
+        sh "$APP_DIR/bin/$launcher" create submission "$OUTPUT_DIR/submission.json" > /dev/null 2>&1
+        end=$(date +%s%N)
+        total=$((total + (end - start) / 1000000))
+        i=$((i + 1))
+    done
+    echo "$launcher: $((total / RUNS)) ms average over $RUNS runs"
+done
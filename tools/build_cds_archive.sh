@@ -0,0 +1,23 @@
+#!/bin/sh
+# Trains a class data sharing (AppCDS) archive for the command line tool by running the hidden
+# cds-train command once under -XX:ArchiveClassesAtExit (JDK 13 or later). Run it after
+#   mvn clean package appassembler:assemble
+# The app-cds launcher maps the archive from target/appassembler/cds/vrdr-cli.jsa; rebuild the archive
+# whenever the jars or the JDK change, otherwise the JVM silently ignores it.
+#
+# Usage: sh tools/build_cds_archive.sh
+
+set -e
+
+APP_DIR=${APPASSEMBLER_DIR:-"$(cd "$(dirname "$0")/.." && pwd)/target/appassembler"}
+ARCHIVE="$APP_DIR/cds/vrdr-cli.jsa"
+
+if [ ! -f "$APP_DIR/bin/app" ]; then
+    echo "No launcher found in $APP_DIR/bin, run mvn clean package appassembler:assemble first"
+    exit 1
+fi
+
+mkdir -p "$APP_DIR/cds"
+rm -f "$ARCHIVE"
+JAVA_OPTS="$JAVA_OPTS -XX:ArchiveClassesAtExit=$ARCHIVE -Xlog:cds=off" sh "$APP_DIR/bin/app" cds-train
+echo "Wrote $ARCHIVE"
@@ -0,0 +1,97 @@
+import os
+import re
+import sys
+from pathlib import Path
+
+# Generates src/main/java/edu/gatech/chai/VRDR/context/VRDRProfileRegistry.java from the @ResourceDef
+# annotations on the model and messaging classes, so that the FHIR contexts can register every profile
+# from one static table instead of a hand maintained list.
+#
+# Usage: python generate_profile_registry.py
+
+ROOT = Path(__file__).parent.parent
+JAVA_ROOT = ROOT / "src/main/java/edu/gatech/chai/VRDR"
+OUTPUT = JAVA_ROOT / "context/VRDRProfileRegistry.java"
+
+RESOURCE_DEF = re.compile(r'@ResourceDef\(\s*name\s*=\s*"([^"]+)"\s*,\s*profile\s*=\s*"([^"]+)"\s*\)')
+VRDR_SD = "http://hl7.org/fhir/us/vrdr/StructureDefinition/"
+
+# classes whose context registration differs from their annotation
+PROFILE_OVERRIDES = {
+    # registered under the pre STU2 url
+    "DecedentMilitaryService": VRDR_SD + "vrdr-military-service",
+    # the annotation repeats the record axis profile
+    "PlaceOfInjury": VRDR_SD + "vrdr-place-of-injury",
+}
+
+# annotated classes that are not registered with the context and are parsed as their base resource
+SKIPPED = {"EmergingIssues"}
+
+# profiles that map to a HAPI class rather than one of ours
+EXTRA_DATA_STRUCTURE_PROFILES = {
+    VRDR_SD + "us-core-practitioner": "org.hl7.fhir.r4.model.Practitioner",
+}
+
+
+def scan(package_dir):
+    found = {}
+    for java_file in sorted(package_dir.glob("*.java")):
+        match = RESOURCE_DEF.search(java_file.read_text())
+        if match and java_file.stem not in SKIPPED:
+            found[java_file.stem] = PROFILE_OVERRIDES.get(java_file.stem, match.group(2))
+    return found
+
+
+def put_lines(map_name, profiles):
+    return "\n".join(
+        f'        {map_name}.put("{profile}",\n                {class_name}.class);'
+        for profile, class_name in sorted(profiles.items())
+    )
+
+
+def main():
+    model = {profile: f"edu.gatech.chai.VRDR.model.{name}" for name, profile in scan(JAVA_ROOT / "model").items()}
+    model.update(EXTRA_DATA_STRUCTURE_PROFILES)
+    messaging = {profile: f"edu.gatech.chai.VRDR.messaging.{name}"
+                 for name, profile in scan(JAVA_ROOT / "messaging").items()}
+    print(f"{len(model)} data structure profiles, {len(messaging)} message profiles")
+
+    with open(OUTPUT, "w") as f:
+        f.write(f"""package edu.gatech.chai.VRDR.context;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.hl7.fhir.r4.model.Resource;
+
+import edu.gatech.chai.VRDR.messaging.BaseMessage;
+
+// Generated by tools/generate_profile_registry.py from the @ResourceDef annotations in
+// edu.gatech.chai.VRDR.model and edu.gatech.chai.VRDR.messaging, do not edit by hand.
+public final class VRDRProfileRegistry {{
+    public static final Map<String, Class<? extends Resource>> DATA_STRUCTURE_PROFILES;
+    public static final Map<String, Class<? extends BaseMessage>> MESSAGE_PROFILES;
+
+    static {{
+        Map<String, Class<? extends Resource>> dataStructureProfiles = new LinkedHashMap<>();
+{put_lines("dataStructureProfiles", model)}
+        DATA_STRUCTURE_PROFILES = Collections.unmodifiableMap(dataStructureProfiles);
+
+        Map<String, Class<? extends BaseMessage>> messageProfiles = new LinkedHashMap<>();
+{put_lines("messageProfiles", messaging)}
+        MESSAGE_PROFILES = Collections.unmodifiableMap(messageProfiles);
+    }}
+
+    private VRDRProfileRegistry() {{
+    }}
+}}
+""")
+
+
+if __name__ == "__main__":
+    if len(sys.argv[1:]) != 0:
+        print("Usage: python generate_profile_registry.py")
+        sys.exit(1)
+
+    main()